@@ -0,0 +1,72 @@
+package it.carloni.luca.lgd.benchmark;
+
+import it.carloni.luca.lgd.benchmark.StepHarness.StepRun;
+import it.carloni.luca.lgd.spark.common.StepContext;
+import it.carloni.luca.lgd.spark.step.Step;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+
+/***
+ * Plan regression guard of LGD steps, e.g. mvn -P benchmark,linux test-compile exec:exec@plans.
+ * Inputs of all steps are written by GENERATE_INPUTS (with scale factor plans.guard.scale.factor, at plans.guard.data.dir/input),
+ * then each step of benchmark.steps (with options benchmark.step.options.*) is run by StepRunner with plans.guard.mode = check,
+ * so that it fails when the physical plan of a dataset it writes has more Exchange or scan nodes than the baseline one.
+ * The guard fails if any step does. Baselines are stored again by running it with -Dplans.guard.mode=update
+ */
+
+public class PlanRegressionGuard {
+
+    private final Logger logger = Logger.getLogger(getClass());
+    private final StepHarness stepHarness = new StepHarness();
+
+    public static void main(String[] args) {
+
+        new PlanRegressionGuard().run();
+    }
+
+    public void run() {
+
+        StepContext stepContext = StepContext.getInstance();
+        Map<Step, String> stepOptions = stepHarness.getStepOptions();
+        List<Step> steps = new ArrayList<>(stepOptions.keySet());
+
+        String scaleFactor = stepContext.getValue("plans.guard.scale.factor");
+        String dataDir = stepContext.getValue("plans.guard.data.dir");
+
+        // PLANS DEPEND ON SIZES OF INPUTS (e.g. BROADCAST JOINS), HENCE INPUTS ARE ALWAYS THE SAME
+        stepHarness.useDataDir(dataDir, scaleFactor);
+        String guardMode = System.getProperty("plans.guard.mode", "check");
+
+        logger.info(String.format("Running plan regression guard (mode: %s, baselines: %s) on steps %s with scale factor %s",
+                guardMode, stepContext.getValue("plans.baseline.dir"), steps, scaleFactor));
+
+        StepContext.reset();
+        System.setProperty("plans.guard.mode", "none");
+        StepRun generation = stepHarness.runStep(Step.GENERATE_INPUTS, "");
+        if (!generation.isSucceeded()) {
+
+            throw new IllegalStateException(String.format("Unable to generate inputs for scale factor %s (%s)", scaleFactor, generation.getError()));
+        }
+
+        System.setProperty("plans.guard.mode", guardMode);
+        Map<String, String> failures = new LinkedHashMap<>();
+        // EACH STEP IS RUN WITHIN A NEW SPARKSESSION, SO THAT PLANS DO NOT DEPEND ON DATASETS CACHED BY PREVIOUS STEPS
+        for (Step step : steps) {
+
+            StepRun stepRun = stepHarness.runStep(step, stepOptions.get(step));
+            if (!stepRun.isSucceeded()) {
+
+                failures.put(step.getName(), stepRun.getError());
+            }
+        }
+
+        if (!failures.isEmpty()) {
+
+            failures.forEach((stepName, error) -> logger.error(String.format("Step %s failed (%s)", stepName, error)));
+            throw new IllegalStateException(String.format("Plan regression guard failed for %s step(s) out of %s: %s", failures.size(), steps.size(), failures.keySet()));
+        }
+
+        logger.info(String.format("Plan regression guard succeeded for all %s step(s)", steps.size()));
+    }
+}
@@ -0,0 +1,379 @@
+package it.carloni.luca.lgd.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.carloni.luca.lgd.spark.common.StepContext;
+import it.carloni.luca.lgd.spark.common.StorageFormat;
+import it.carloni.luca.lgd.benchmark.StepHarness.StepRun;
+import it.carloni.luca.lgd.spark.step.Step;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+/***
+ * End-to-end benchmark of LGD steps (settings benchmark.*), e.g. mvn -P benchmark,linux test-compile exec:exec@steps.
+ * For each scale factor, inputs of all steps are written by GENERATE_INPUTS (at benchmark.data.dir/sf<scale factor>/input),
+ * then each step is run by StepRunner with each number of local cores (spark.master = local[<cores>]), each run within a new SparkSession.
+ * Wall time, totals of task metrics (input and output rows, shuffle, spill, GC time) taken from the run summary of the step (see StepMetrics)
+ * and bytes of outputs of each run are written as a .json report
+ * (benchmark.report.path), along with medians of each configuration and their scaling efficiencies
+ * (1 when time grows linearly with scale factor, or decreases linearly with cores)
+ */
+
+public class StepBenchmark {
+
+    private final Logger logger = Logger.getLogger(getClass());
+    private final StepHarness stepHarness = new StepHarness();
+
+    public static void main(String[] args) {
+
+        new StepBenchmark().run();
+    }
+
+    public void run() {
+
+        // TASK METRICS OF EACH RUN ARE READ FROM ITS RUN SUMMARY
+        System.setProperty("metrics.enabled", "true");
+        StepContext stepContext = StepContext.getInstance();
+        String sparkVersion = stepContext.getSparkSession().version();
+
+        Map<Step, String> stepOptions = stepHarness.getStepOptions();
+        List<Step> steps = new ArrayList<>(stepOptions.keySet());
+
+        String[] scaleFactors = stepContext.getValues("benchmark.scale.factors");
+        int[] cores = Arrays.stream(stepContext.getValues("benchmark.cores")).mapToInt(Integer::parseInt).toArray();
+        int warmupRuns = Integer.parseInt(stepContext.getValue("benchmark.warmup.runs"));
+        int measuredRuns = Integer.parseInt(stepContext.getValue("benchmark.runs"));
+        boolean generateInputs = Boolean.parseBoolean(stepContext.getValue("benchmark.generate.inputs"));
+        String dataDir = stepContext.getValue("benchmark.data.dir");
+        String reportPath = stepContext.getValue("benchmark.report.path");
+
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("steps", stepOptions);
+        settings.put("scaleFactors", scaleFactors);
+        settings.put("ndgsPerScaleUnit", stepContext.getValue("generator.ndgs.per.scale.unit"));
+        settings.put("cores", cores);
+        settings.put("warmupRuns", warmupRuns);
+        settings.put("runs", measuredRuns);
+        settings.put("dataDir", dataDir);
+
+        logger.info(String.format("Benchmarking steps %s with scale factors %s and cores %s (%s warmup run(s), %s measured run(s))",
+                steps, Arrays.toString(scaleFactors), Arrays.toString(cores), warmupRuns, measuredRuns));
+
+        StepContext.reset();
+
+        List<Run> runs = new ArrayList<>();
+        for (String scaleFactor : scaleFactors) {
+
+            String scaleFactorDir = String.format("%s/sf%s", dataDir, scaleFactor);
+            stepHarness.useDataDir(scaleFactorDir, scaleFactor);
+
+            if (generateInputs) {
+
+                Run generation = runStep(Step.GENERATE_INPUTS, "", scaleFactor, Arrays.stream(cores).max().orElse(1), 0, false);
+                if (!generation.isSucceeded()) {
+
+                    throw new IllegalStateException(String.format("Unable to generate inputs for scale factor %s (%s)", scaleFactor, generation.getError()));
+                }
+
+            } else logger.info("Reusing inputs at path " + scaleFactorDir + "/input");
+
+            for (Step step : steps) {
+
+                for (int stepCores : cores) {
+
+                    for (int i = 0; i < warmupRuns + measuredRuns; i++) {
+
+                        runs.add(runStep(step, stepOptions.get(step), scaleFactor, stepCores, i, i >= warmupRuns));
+                    }
+                }
+            }
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("startTime", LocalDateTime.now().toString());
+        report.put("sparkVersion", sparkVersion);
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        report.put("settings", settings);
+        report.put("runs", runs);
+        report.put("summary", summarize(runs));
+        writeReport(report, reportPath);
+    }
+
+    private Run runStep(Step step, String options, String scaleFactor, int cores, int run, boolean measured) {
+
+        String stepName = step.getName();
+        System.setProperty("spark.master", String.format("local[%s]", cores));
+
+        // EACH RUN WRITES ITS RUN SUMMARY (SEE StepMetrics) WITHIN ITS OWN DIR, SO THAT A RUN NEVER READS THE SUMMARY OF A PREVIOUS ONE
+        File metricsDir = createMetricsDir();
+        System.setProperty("metrics.output.dir", metricsDir.toURI().toString());
+
+        logger.info(String.format("Starting %s run %s of step %s (scale factor %s, %s core(s))", measured ? "measured" : "warmup", run, stepName, scaleFactor, cores));
+
+        long[] outputBytes = {0};
+        StepRun stepRun = stepHarness.runStep(step, options, stepContext -> {
+
+            if (step != Step.GENERATE_INPUTS) {
+
+                outputBytes[0] = measureOutputBytes(stepContext, step);
+            }
+        });
+
+        String error = stepRun.getError();
+        long wallTimeMs = stepRun.getWallTimeMs();
+        JsonNode runSummary = readRunSummary(metricsDir);
+
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        for (String name : new String[] {"jobs", "tasks", "failedTasks", "executorRunTimeMs", "gcTimeMs",
+                "shuffleReadBytes", "shuffleWriteBytes", "memorySpillBytes", "diskSpillBytes"}) {
+
+            metrics.put(name, runSummary != null ? runSummary.path(name).asLong() : 0);
+        }
+
+        metrics.put("inputRows", sumOf(runSummary, "inputRows"));
+        metrics.put("outputRows", sumOf(runSummary, "outputRows"));
+        metrics.put("outputBytes", outputBytes[0]);
+        boolean succeeded = error == null && runSummary != null && runSummary.path("succeeded").asBoolean();
+        logger.info(String.format("Completed run %s of step %s (scale factor %s, %s core(s)) in %s ms (succeeded: %s, input rows: %s, output rows: %s, shuffle write bytes: %s, disk spill bytes: %s)",
+                run, stepName, scaleFactor, cores, wallTimeMs, succeeded,
+                metrics.get("inputRows"), metrics.get("outputRows"), metrics.get("shuffleWriteBytes"), metrics.get("diskSpillBytes")));
+
+        return new Run(stepName, scaleFactor, cores, run, measured, succeeded, error, wallTimeMs,
+                perSecond(metrics.get("inputRows"), wallTimeMs), perSecond(metrics.get("outputRows"), wallTimeMs), metrics);
+    }
+
+    private File createMetricsDir() {
+
+        try {
+
+            return Files.createTempDirectory("lgd-benchmark-metrics").toFile();
+        }
+
+        catch (IOException e) {
+
+            logger.error("IOException occurred while creating a temporary dir for run summaries");
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // RUN SUMMARY WRITTEN BY AbstractStep.runWithMetrics, OR null IF THE STEP FAILED BEFORE RUNNING (e.g. DUE TO INVALID OPTIONS)
+    private JsonNode readRunSummary(File metricsDir) {
+
+        File[] summaryFiles = metricsDir.listFiles((dir, name) -> name.endsWith(".json"));
+        JsonNode runSummary = null;
+        if (summaryFiles != null && summaryFiles.length > 0) {
+
+            try {
+
+                runSummary = new ObjectMapper().readTree(summaryFiles[0]);
+            }
+
+            catch (IOException e) {
+
+                logger.warn(String.format("Unable to read run summary at path %s (%s)", summaryFiles[0], e.getMessage()));
+            }
+
+        } else logger.warn("No run summary found at path " + metricsDir);
+
+        // .crc FILES ARE WRITTEN TOO BY HADOOP LOCAL FILESYSTEM
+        Optional.ofNullable(metricsDir.listFiles()).ifPresent(files -> Arrays.stream(files).forEach(File::delete));
+        metricsDir.delete();
+        return runSummary;
+    }
+
+    // SUM OF ROWS OF ALL PATHS WITHIN GIVEN FIELD OF THE RUN SUMMARY
+    private long sumOf(JsonNode runSummary, String fieldName) {
+
+        long sum = 0;
+        if (runSummary != null) {
+
+            Iterator<JsonNode> rows = runSummary.path(fieldName).elements();
+            while (rows.hasNext()) {
+
+                sum += rows.next().asLong();
+            }
+        }
+
+        return sum;
+    }
+
+    // BYTES WRITTEN AT OUTPUT PATHS OF THE STEP, AS SPARK 2.2 DOES NOT REPORT OUTPUT METRICS OF SQL WRITES
+    private long measureOutputBytes(StepContext stepContext, Step step) {
+
+        long bytes = 0;
+        for (String key : step.getOutputKeys()) {
+
+            String storageFormatSetting = stepContext.getValue("storage.format." + key);
+            StorageFormat storageFormat = StorageFormat.fromName(storageFormatSetting != null && !storageFormatSetting.trim().isEmpty() ?
+                    storageFormatSetting :
+                    stepContext.getValue("storage.format"));
+
+            String path = stepContext.getValue(key);
+            String storagePath = storageFormat == StorageFormat.CSV ? path : path.replaceAll("\\.csv$", "") + "." + storageFormat.getName();
+            Path hadoopPath = new Path(storagePath);
+            try {
+
+                FileSystem fileSystem = hadoopPath.getFileSystem(stepContext.getSparkSession().sparkContext().hadoopConfiguration());
+                bytes += fileSystem.exists(hadoopPath) ? fileSystem.getContentSummary(hadoopPath).getLength() : 0;
+            }
+
+            catch (IOException e) {
+
+                logger.warn(String.format("Unable to measure data at path %s (%s)", storagePath, e.getMessage()));
+            }
+        }
+
+        return bytes;
+    }
+
+    // MEDIANS OF MEASURED AND SUCCEEDED RUNS OF EACH (STEP, SCALE FACTOR, CORES), COMPARED TO THOSE OF THE SAME STEP
+    // WITH THE SMALLEST SCALE FACTOR (AND SAME CORES) AND WITH THE FEWEST CORES (AND SAME SCALE FACTOR)
+    private List<Summary> summarize(List<Run> runs) {
+
+        Map<List<Object>, List<Run>> runsByConfiguration = runs.stream()
+                .filter(Run::isMeasured)
+                .collect(Collectors.groupingBy(run -> Arrays.asList(run.getStep(), run.getScaleFactor(), run.getCores()), LinkedHashMap::new, Collectors.toList()));
+
+        Map<List<Object>, Long> medianWallTimes = new LinkedHashMap<>();
+        runsByConfiguration.forEach((configuration, configurationRuns) -> medianWallTimes.put(configuration, median(configurationRuns, Run::getWallTimeMs)));
+
+        List<Summary> summaries = new ArrayList<>();
+        runsByConfiguration.forEach((configuration, configurationRuns) -> {
+
+            Run firstRun = configurationRuns.get(0);
+            String step = firstRun.getStep();
+            double scaleFactor = Double.parseDouble(firstRun.getScaleFactor());
+            int cores = firstRun.getCores();
+            Long medianWallTimeMs = medianWallTimes.get(configuration);
+
+            List<Object> dataBaseline = medianWallTimes.keySet()
+                    .stream()
+                    .filter(other -> other.get(0).equals(step) && other.get(2).equals(cores))
+                    .min(Comparator.comparing(other -> Double.parseDouble((String) other.get(1))))
+                    .orElse(configuration);
+
+            List<Object> coreBaseline = medianWallTimes.keySet()
+                    .stream()
+                    .filter(other -> other.get(0).equals(step) && other.get(1).equals(firstRun.getScaleFactor()))
+                    .min(Comparator.comparing(other -> (Integer) other.get(2)))
+                    .orElse(configuration);
+
+            Long dataBaselineMs = medianWallTimes.get(dataBaseline);
+            Long coreBaselineMs = medianWallTimes.get(coreBaseline);
+            Double dataScalingEfficiency = medianWallTimeMs == null || dataBaselineMs == null ? null :
+                    (dataBaselineMs / Double.parseDouble((String) dataBaseline.get(1))) / (medianWallTimeMs / scaleFactor);
+
+            Double coreScalingEfficiency = medianWallTimeMs == null || coreBaselineMs == null ? null :
+                    ((double) coreBaselineMs * (Integer) coreBaseline.get(2)) / ((double) medianWallTimeMs * cores);
+
+            Summary summary = new Summary(step, firstRun.getScaleFactor(), cores,
+                    configurationRuns.size(),
+                    (int) configurationRuns.stream().filter(run -> !run.isSucceeded()).count(),
+                    medianWallTimeMs,
+                    median(configurationRuns, run -> run.getMetrics().get("inputRows")),
+                    median(configurationRuns, run -> run.getMetrics().get("outputRows")),
+                    median(configurationRuns, run -> run.getMetrics().get("shuffleWriteBytes")),
+                    median(configurationRuns, run -> run.getMetrics().get("memorySpillBytes") + run.getMetrics().get("diskSpillBytes")),
+                    median(configurationRuns, run -> run.getMetrics().get("gcTimeMs")),
+                    dataScalingEfficiency,
+                    coreScalingEfficiency);
+
+            logger.info(String.format("Step %s (scale factor %s, %s core(s)): median wall time %s ms, data scaling efficiency %s, core scaling efficiency %s",
+                    step, firstRun.getScaleFactor(), cores, medianWallTimeMs, dataScalingEfficiency, coreScalingEfficiency));
+
+            summaries.add(summary);
+        });
+
+        return summaries;
+    }
+
+    // MEDIAN OF GIVEN VALUE AMONG SUCCEEDED RUNS, OR null IF NONE SUCCEEDED
+    private Long median(List<Run> runs, ToLongFunction<Run> value) {
+
+        long[] values = runs.stream()
+                .filter(Run::isSucceeded)
+                .mapToLong(value)
+                .sorted()
+                .toArray();
+
+        return values.length == 0 ? null : values.length % 2 == 1 ?
+                values[values.length / 2] :
+                (values[values.length / 2 - 1] + values[values.length / 2]) / 2;
+    }
+
+    private double perSecond(long value, long wallTimeMs) {
+
+        return wallTimeMs > 0 ? value * 1000.0 / wallTimeMs : 0;
+    }
+
+    private void writeReport(Map<String, Object> report, String reportPath) {
+
+        File reportFile = new File(reportPath);
+        try {
+
+            if (reportFile.getParentFile() != null) {
+
+                Files.createDirectories(reportFile.getParentFile().toPath());
+            }
+
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(reportFile, report);
+        }
+
+        catch (IOException e) {
+
+            logger.error("IOException occurred while writing benchmark report at path " + reportPath);
+            throw new UncheckedIOException(e);
+        }
+
+        logger.info("Successfully written benchmark report at path " + reportPath);
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Run {
+
+        private final String step;
+        private final String scaleFactor;
+        private final int cores;
+        private final int run;
+        private final boolean measured;
+        private final boolean succeeded;
+        private final String error;
+        private final long wallTimeMs;
+        private final double inputRowsPerSecond;
+        private final double outputRowsPerSecond;
+        private final Map<String, Long> metrics;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Summary {
+
+        private final String step;
+        private final String scaleFactor;
+        private final int cores;
+        private final int measuredRuns;
+        private final int failedRuns;
+        private final Long medianWallTimeMs;
+        private final Long medianInputRows;
+        private final Long medianOutputRows;
+        private final Long medianShuffleWriteBytes;
+        private final Long medianSpillBytes;
+        private final Long medianGcTimeMs;
+        private final Double dataScalingEfficiency;
+        private final Double coreScalingEfficiency;
+    }
+}
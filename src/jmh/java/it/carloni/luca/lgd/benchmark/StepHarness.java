@@ -0,0 +1,111 @@
+package it.carloni.luca.lgd.benchmark;
+
+import it.carloni.luca.lgd.StepRunner;
+import it.carloni.luca.lgd.spark.common.StepContext;
+import it.carloni.luca.lgd.spark.step.Step;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/***
+ * Runs of LGD steps shared by StepBenchmark and PlanRegressionGuard: steps to be run (benchmark.steps) along with their options
+ * (benchmark.step.options.*), data dirs of their inputs and outputs, and runs of a single step by StepRunner,
+ * each one within a new SparkSession
+ */
+
+public class StepHarness {
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    /***
+     * Steps of benchmark.steps, in the given order, along with their options (benchmark.step.options.<step name, lower case>)
+     * @return: options of each step (empty if none)
+     */
+
+    public Map<Step, String> getStepOptions() {
+
+        StepContext stepContext = StepContext.getInstance();
+        Map<Step, String> stepOptions = new LinkedHashMap<>();
+        Arrays.stream(stepContext.getValues("benchmark.steps"))
+                .map(stepName -> Step.valueOf(stepName.toUpperCase()))
+                .forEach(step -> stepOptions.put(step, Optional.ofNullable(stepContext.getValue("benchmark.step.options." + step.getName().toLowerCase())).orElse("")));
+
+        return stepOptions;
+    }
+
+    /***
+     * Makes inputs of all steps (written by GENERATE_INPUTS with given scale factor) and their outputs refer to given data dir,
+     * by means of system properties, which next StepContext picks up
+     * @param dataDir: data dir (inputs being at <dataDir>/input and outputs at <dataDir>/output)
+     * @param scaleFactor: scale factor of generated inputs
+     */
+
+    public void useDataDir(String dataDir, String scaleFactor) {
+
+        // INPUT AND OUTPUT PATHS OF ALL STEPS REFER TO lgd.input.data.dir AND lgd.output.data.dir
+        System.setProperty("generator.scale.factor", scaleFactor);
+        System.setProperty("lgd.input.data.dir", dataDir + "/input");
+        System.setProperty("lgd.output.data.dir", dataDir + "/output");
+        // INPUTS WITHIN dataDir ARE WRITTEN AGAIN BY EACH GENERATE_INPUTS RUN
+        System.setProperty("generator.overwrite", "true");
+    }
+
+    public StepRun runStep(Step step, String options) {
+
+        return runStep(step, options, stepContext -> {});
+    }
+
+    /***
+     * Runs given step by StepRunner, then stops its SparkSession (see StepContext.reset), so that next run
+     * does not depend on datasets cached by this one and picks up settings provided as system properties in the meantime
+     * (e.g. spark.master)
+     * @param step: step to be run
+     * @param options: options of the step
+     * @param beforeReset: called with the StepContext of the run once the step has completed (even if it failed)
+     * @return: error and wall time of the run
+     */
+
+    public StepRun runStep(Step step, String options, Consumer<StepContext> beforeReset) {
+
+        String stepName = step.getName();
+        String[] stepArgs = String.format("-s %s %s", stepName, options).trim().split("\\s+");
+        String error = null;
+        long startTime = System.nanoTime();
+        try {
+
+            new StepRunner().run(stepArgs, stepName);
+        }
+
+        // A FAILED RUN IS REPORTED, WHILE THE REMAINING ONES ARE RUN ANYWAY
+        catch (Throwable e) {
+
+            logger.error(String.format("Exception occurred while running step %s", stepName));
+            logger.error(e);
+            error = e.toString();
+        }
+
+        long wallTimeMs = (System.nanoTime() - startTime) / 1000000;
+        beforeReset.accept(StepContext.getInstance());
+        StepContext.reset();
+        return new StepRun(error, wallTimeMs);
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class StepRun {
+
+        private final String error;
+        private final long wallTimeMs;
+
+        public boolean isSucceeded() {
+
+            return error == null;
+        }
+    }
+}
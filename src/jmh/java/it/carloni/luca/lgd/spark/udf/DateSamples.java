@@ -0,0 +1,82 @@
+package it.carloni.luca.lgd.spark.udf;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/***
+ * Sample dates for date benchmarks, resembling values found in LGD inputs. According to the distribution,
+ * valid: only valid dates
+ * realistic: 90% valid dates, 3% nulls, 3% invalid values (month 00 or 13, day 00 or 32, empty or non numeric strings),
+ * 4% days exceeding the end of the month (e.g. 20190231, adjusted to the last day of the month)
+ * Samples are drawn from a fixed seed, so that runs are comparable
+ */
+
+public class DateSamples {
+
+    public static final String VALID = "valid";
+    public static final String REALISTIC = "realistic";
+
+    private static final LocalDate MIN_DATE = LocalDate.of(1950, 1, 1);
+    private static final LocalDate MAX_DATE = LocalDate.of(2030, 12, 31);
+    private static final String[] INVALID_Y4M2D2_DATES = {"20191301", "20190001", "20190100", "20190132", "", "2019-07-", "00000000"};
+    private static final String[] INVALID_Y2M2D2_DATES = {"19-13-01", "19-00-01", "19-01-00", "19-01-32", "", "190731", "--"};
+
+    private final Random random;
+    private final String distribution;
+
+    public DateSamples(String distribution, long seed) {
+
+        if (!VALID.equals(distribution) && !REALISTIC.equals(distribution)) {
+
+            throw new IllegalArgumentException("Unknown date distribution: " + distribution);
+        }
+
+        this.distribution = distribution;
+        this.random = new Random(seed);
+    }
+
+    /***
+     * Draws numberOfDates dates with the given pattern
+     * @param numberOfDates: number of dates
+     * @param pattern: date pattern ending with dd (invalid values are those of yy-MM-dd or, for other patterns, of yyyyMMdd)
+     * @return: array of dates (String)
+     */
+
+    public String[] draw(int numberOfDates, String pattern) {
+
+        boolean isY2M2D2 = "yy-MM-dd".equals(pattern);
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern(pattern);
+
+        String[] dates = new String[numberOfDates];
+        for (int i = 0; i < numberOfDates; i++) {
+
+            int draw = random.nextInt(100);
+            LocalDate date = LocalDate.ofEpochDay(MIN_DATE.toEpochDay() + random.nextInt((int) (MAX_DATE.toEpochDay() - MIN_DATE.toEpochDay())));
+            if (VALID.equals(distribution) || draw >= 10) {
+
+                dates[i] = date.format(formatter);
+
+            } else if (draw < 3) {
+
+                dates[i] = null;
+
+            } else if (draw < 6) {
+
+                String[] invalidDates = isY2M2D2 ? INVALID_Y2M2D2_DATES : INVALID_Y4M2D2_DATES;
+                dates[i] = invalidDates[random.nextInt(invalidDates.length)];
+
+            } else {
+
+                // DAY BEYOND THE END OF THE MONTH (PATTERNS ENDING WITH dd)
+                int lengthOfMonth = date.lengthOfMonth();
+                String formattedDate = date.format(formatter);
+                dates[i] = lengthOfMonth == 31 ?
+                        formattedDate :
+                        formattedDate.substring(0, formattedDate.length() - 2) + (lengthOfMonth + 1 + random.nextInt(31 - lengthOfMonth));
+            }
+        }
+
+        return dates;
+    }
+}
@@ -0,0 +1,175 @@
+package it.carloni.luca.lgd.spark.udf;
+
+import org.apache.spark.sql.api.java.UDF3;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Throughput of each UDF built by UDFFactory, called as Spark does (i.e. through its UDF3 lambda) on ROWS sample dates.
+ * Allocation rates are reported when running with the gc profiler (-prof gc, default in profile benchmark).
+ * UDFs backed by DateFunctions are also compared with their previous implementation (*PerRowFormatter),
+ * which compiled a DateTimeFormatter and round-tripped through LocalDate on every row
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UDFFactoryBenchmark {
+
+    private static final String Y4M2D2_PATTERN = "yyyyMMdd";
+    private static final String Y2M2D2_PATTERN = "yy-MM-dd";
+    private static final int ROWS = 4096;
+
+    @Param({DateSamples.VALID, DateSamples.REALISTIC})
+    public String distribution;
+
+    private final UDF3<String, String, Integer, String> addDurationUDF = UDFFactory.buildAddDurationUDF();
+    private final UDF3<String, String, Integer, String> subtractDurationUDF = UDFFactory.buildSubstractDurationUDF();
+    private final UDF3<String, String, String, String> changeDateFormatUDF = UDFFactory.buildChangeDateFormatUDF();
+    private final UDF3<String, String, String, String> changeDateFormatFromY2toY4UDF = UDFFactory.buildChangeDateFormatFromY2toY4();
+    private final UDF3<String, String, String, Long> daysBetweenUDF = UDFFactory.buildDaysBetweenUDF();
+    private final UDF3<String, String, String, String> greatestDateUDF = UDFFactory.buildGreatestDateUDF();
+    private final UDF3<String, String, String, String> leastDateUDF = UDFFactory.buildLeastDateUDF();
+
+    private String[] firstDates;
+    private String[] secondDates;
+    private String[] y2m2d2Dates;
+
+    @Setup
+    public void setup() {
+
+        DateSamples dateSamples = new DateSamples(distribution, 42);
+        firstDates = dateSamples.draw(ROWS, Y4M2D2_PATTERN);
+        secondDates = dateSamples.draw(ROWS, Y4M2D2_PATTERN);
+        y2m2d2Dates = dateSamples.draw(ROWS, Y2M2D2_PATTERN);
+    }
+
+    @Benchmark
+    public void addDuration(Blackhole blackhole) throws Exception {
+
+        for (String date : firstDates) {
+
+            blackhole.consume(addDurationUDF.call(date, Y4M2D2_PATTERN, 3));
+        }
+    }
+
+    @Benchmark
+    public void addDurationPerRowFormatter(Blackhole blackhole) {
+
+        for (String date : firstDates) {
+
+            try {
+
+                DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern(Y4M2D2_PATTERN);
+                blackhole.consume(LocalDate.parse(date, dateTimeFormatter).plusMonths(3).format(dateTimeFormatter));
+            }
+
+            catch (NullPointerException | DateTimeParseException e) { blackhole.consume(e); }
+        }
+    }
+
+    @Benchmark
+    public void subtractDuration(Blackhole blackhole) throws Exception {
+
+        for (String date : firstDates) {
+
+            blackhole.consume(subtractDurationUDF.call(date, Y4M2D2_PATTERN, 3));
+        }
+    }
+
+    // yyyyMMdd TO yyyy-MM-dd, AS IN CicliPreview AND SofferenzePreview
+    @Benchmark
+    public void changeDateFormat(Blackhole blackhole) throws Exception {
+
+        for (String date : firstDates) {
+
+            blackhole.consume(changeDateFormatUDF.call(date, Y4M2D2_PATTERN, "yyyy-MM-dd"));
+        }
+    }
+
+    // yy-MM-dd TO yyyyMMdd, AS IN QuadFposi AND QuadFcoll
+    @Benchmark
+    public void changeDateFormatFromY2toY4(Blackhole blackhole) throws Exception {
+
+        for (String date : y2m2d2Dates) {
+
+            blackhole.consume(changeDateFormatFromY2toY4UDF.call(date, Y2M2D2_PATTERN, Y4M2D2_PATTERN));
+        }
+    }
+
+    @Benchmark
+    public void daysBetween(Blackhole blackhole) throws Exception {
+
+        for (int i = 0; i < ROWS; i++) {
+
+            blackhole.consume(daysBetweenUDF.call(firstDates[i], secondDates[i], Y4M2D2_PATTERN));
+        }
+    }
+
+    @Benchmark
+    public void daysBetweenPerRowFormatter(Blackhole blackhole) {
+
+        for (int i = 0; i < ROWS; i++) {
+
+            try {
+
+                DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern(Y4M2D2_PATTERN);
+                LocalDate firstDate = LocalDate.parse(firstDates[i], dateTimeFormatter);
+                LocalDate secondDate = LocalDate.parse(secondDates[i], dateTimeFormatter);
+                blackhole.consume(Math.abs(firstDate.minusDays(secondDate.toEpochDay()).toEpochDay()));
+            }
+
+            catch (NullPointerException | DateTimeException e) { blackhole.consume(e); }
+        }
+    }
+
+    // UNLIKE OTHER UDFs, greatestDate DOES NOT MAP INVALID DATES TO null
+    @Benchmark
+    public void greatestDate(Blackhole blackhole) {
+
+        for (int i = 0; i < ROWS; i++) {
+
+            try {
+
+                blackhole.consume(greatestDateUDF.call(firstDates[i], secondDates[i], Y4M2D2_PATTERN));
+            }
+
+            catch (Exception e) { blackhole.consume(e); }
+        }
+    }
+
+    @Benchmark
+    public void leastDate(Blackhole blackhole) throws Exception {
+
+        for (int i = 0; i < ROWS; i++) {
+
+            blackhole.consume(leastDateUDF.call(firstDates[i], secondDates[i], Y4M2D2_PATTERN));
+        }
+    }
+
+    @Benchmark
+    public void leastDatePerRowFormatter(Blackhole blackhole) {
+
+        for (int i = 0; i < ROWS; i++) {
+
+            try {
+
+                DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern(Y4M2D2_PATTERN);
+                LocalDate firstDate = LocalDate.parse(firstDates[i], dateTimeFormatter);
+                LocalDate secondDate = LocalDate.parse(secondDates[i], dateTimeFormatter);
+                blackhole.consume(firstDate.compareTo(secondDate) <= 0 ? firstDate.format(dateTimeFormatter) : secondDate.format(dateTimeFormatter));
+            }
+
+            catch (NullPointerException | DateTimeException e) { blackhole.consume(e); }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package it.carloni.luca.lgd.spark.utils;
+
+import it.carloni.luca.lgd.spark.common.StepContext;
+import it.carloni.luca.lgd.spark.udf.UDFFactory;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.functions;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.function.BiFunction;
+
+/***
+ * Edge-case parity check of native date functions (date.functions.mode = native) against LGD date UDFs,
+ * e.g. mvn -P benchmark,linux test-compile exec:exec@dates.
+ * Each function of StepUtils on yyyyMMdd dates is evaluated natively (by Spark) on null, malformed and out-of-range dates
+ * (e.g. 20190231, 20191301, 99991231 plus some months) and compared with the related UDF (called on the driver).
+ * UDF exceptions (which would make a task fail) are reported as mismatches too. The check fails if any mismatch is found
+ */
+
+public class NativeDateFunctionsParityCheck {
+
+    private static final String Y4M2D2_PATTERN = "yyyyMMdd";
+    private static final String UDF_EXCEPTION = "<exception>";
+
+    private static final String[] EDGE_CASE_DATES = {
+            null, "", " ", "2019", "2019073", "201907311", " 20190731", "20190731 ", "2019-7-1", "abcdefgh", "+2019073", "-2019073",
+            "00000000", "00000101", "00010101", "20190001", "20191301", "20199901", "20190100", "20190132", "20190199",
+            "20190229", "20200229", "21000229", "20000229", "20190230", "20190231", "20190431", "20191231", "20190131",
+            "99991201", "99991231"};
+
+    private static final String[] OTHER_DATES = {null, "20190231", "20190731", "00010101", "99991231"};
+    private static final int[] NUMBERS_OF_MONTHS = {0, 1, -1, 3, 12, -12, 1200};
+    private static final String[] OUTPUT_PATTERNS = {"yyyyMMdd", "yyyy-MM-dd", "dd/MM/yyyy"};
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    public static void main(String[] args) {
+
+        new NativeDateFunctionsParityCheck().run();
+    }
+
+    public void run() {
+
+        SparkSession sparkSession = StepContext.getInstance().getSparkSession();
+        Dataset<Row> dates = sparkSession.createDataset(Arrays.asList(EDGE_CASE_DATES), Encoders.STRING()).toDF("date");
+        Dataset<Row> otherDates = sparkSession.createDataset(Arrays.asList(OTHER_DATES), Encoders.STRING()).toDF("other_date");
+        Dataset<Row> datePairs = dates.crossJoin(otherDates);
+
+        List<String> mismatches = new ArrayList<>();
+        for (int numberOfMonths : NUMBERS_OF_MONTHS) {
+
+            mismatches.addAll(compare(String.format("addDuration(%s)", numberOfMonths), dates,
+                    StepUtils.addDurationUDF(functions.col("date"), Y4M2D2_PATTERN, numberOfMonths, true),
+                    (date, otherDate) -> call(() -> UDFFactory.buildAddDurationUDF().call(date, Y4M2D2_PATTERN, numberOfMonths))));
+
+            mismatches.addAll(compare(String.format("subtractDuration(%s)", numberOfMonths), dates,
+                    StepUtils.subtractDurationUDF(functions.col("date"), Y4M2D2_PATTERN, numberOfMonths, true),
+                    (date, otherDate) -> call(() -> UDFFactory.buildSubstractDurationUDF().call(date, Y4M2D2_PATTERN, numberOfMonths))));
+        }
+
+        for (String outputPattern : OUTPUT_PATTERNS) {
+
+            mismatches.addAll(compare(String.format("changeDateFormat(%s)", outputPattern), dates,
+                    StepUtils.changeDateFormatUDF(functions.col("date"), Y4M2D2_PATTERN, outputPattern, true),
+                    (date, otherDate) -> call(() -> UDFFactory.buildChangeDateFormatUDF().call(date, Y4M2D2_PATTERN, outputPattern))));
+        }
+
+        mismatches.addAll(compare("leastDate", datePairs,
+                StepUtils.leastDateUDF(functions.col("date"), functions.col("other_date"), Y4M2D2_PATTERN, true),
+                (date, otherDate) -> call(() -> UDFFactory.buildLeastDateUDF().call(date, otherDate, Y4M2D2_PATTERN))));
+
+        mismatches.addAll(compare("daysBetween", datePairs,
+                StepUtils.daysBetweenUDF(functions.col("date"), functions.col("other_date"), Y4M2D2_PATTERN, true),
+                (date, otherDate) -> call(() -> UDFFactory.buildDaysBetweenUDF().call(date, otherDate, Y4M2D2_PATTERN))));
+
+        if (!mismatches.isEmpty()) {
+
+            mismatches.forEach(logger::error);
+            throw new IllegalStateException(String.format("Native date functions differ from UDFs for %s edge case(s)", mismatches.size()));
+        }
+
+        logger.info("Native date functions match UDFs on all edge cases");
+    }
+
+    // NATIVE RESULTS ARE COMPUTED BY SPARK, WHILE UDF RESULTS ARE COMPUTED ON THE DRIVER
+    private List<String> compare(String functionName, Dataset<Row> inputs, Column nativeCol, BiFunction<String, String, String> udf) {
+
+        boolean withOtherDate = Arrays.asList(inputs.columns()).contains("other_date");
+        Column otherDateCol = withOtherDate ? functions.col("other_date") : functions.lit(null).cast("string");
+        List<Row> rows = inputs.select(functions.col("date"), otherDateCol, nativeCol.cast("string")).collectAsList();
+
+        List<String> mismatches = new ArrayList<>();
+        for (Row row : rows) {
+
+            String date = row.getString(0);
+            String otherDate = row.getString(1);
+            String nativeResult = row.getString(2);
+            String udfResult = udf.apply(date, otherDate);
+            if (!Objects.equals(nativeResult, udfResult)) {
+
+                String arguments = withOtherDate ? String.format("'%s', '%s'", date, otherDate) : String.format("'%s'", date);
+                mismatches.add(String.format("%s(%s): native %s, UDF %s", functionName, arguments, nativeResult, udfResult));
+            }
+        }
+
+        logger.info(String.format("Compared %s on %s edge case(s): %s mismatch(es)", functionName, rows.size(), mismatches.size()));
+        return mismatches;
+    }
+
+    private String call(Callable<?> udfCall) {
+
+        try {
+
+            Object result = udfCall.call();
+            return result != null ? String.valueOf(result) : null;
+        }
+
+        catch (Exception e) {
+
+            return UDF_EXCEPTION;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package it.carloni.luca.lgd.spark.utils;
+
+import it.carloni.luca.lgd.spark.udf.DateSamples;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.DateTimeException;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Throughput of StepUtils date functions that are called outside of UDFs (e.g. for parsing step options)
+ * on ROWS sample dates. Invalid dates lead to exceptions, which are consumed as results
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StepUtilsBenchmark {
+
+    private static final String Y4M2D2_PATTERN = "yyyyMMdd";
+    private static final String Y4_M2_D2_PATTERN = "yyyy-MM-dd";
+    private static final int ROWS = 4096;
+
+    @Param({DateSamples.VALID, DateSamples.REALISTIC})
+    public String distribution;
+
+    private String[] y4m2d2Dates;
+    private String[] y4_m2_d2Dates;
+
+    @Setup
+    public void setup() {
+
+        DateSamples dateSamples = new DateSamples(distribution, 42);
+        y4m2d2Dates = dateSamples.draw(ROWS, Y4M2D2_PATTERN);
+        y4_m2_d2Dates = dateSamples.draw(ROWS, Y4_M2_D2_PATTERN);
+    }
+
+    @Benchmark
+    public void changeDateFormatFromY4M2D2(Blackhole blackhole) {
+
+        for (String date : y4m2d2Dates) {
+
+            try {
+
+                blackhole.consume(StepUtils.changeDateFormat(date, Y4M2D2_PATTERN, Y4_M2_D2_PATTERN));
+            }
+
+            catch (NullPointerException | DateTimeException e) { blackhole.consume(e); }
+        }
+    }
+
+    @Benchmark
+    public void changeDateFormatToY4M2D2(Blackhole blackhole) {
+
+        for (String date : y4_m2_d2Dates) {
+
+            try {
+
+                blackhole.consume(StepUtils.changeDateFormat(date, Y4_M2_D2_PATTERN, Y4M2D2_PATTERN));
+            }
+
+            catch (NullPointerException | DateTimeException e) { blackhole.consume(e); }
+        }
+    }
+
+    @Benchmark
+    public void parseStringToLocalDate(Blackhole blackhole) {
+
+        for (String date : y4m2d2Dates) {
+
+            try {
+
+                blackhole.consume(StepUtils.parseStringToLocalDate(date, Y4M2D2_PATTERN));
+            }
+
+            catch (NullPointerException | DateTimeException e) { blackhole.consume(e); }
+        }
+    }
+}
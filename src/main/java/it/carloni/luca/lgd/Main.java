@@ -28,8 +28,21 @@ public class Main {
 
         try {
 
-            String stepName = stepOptionParser.buildStepNameValue(args, firstStageOptions).getStepName();
-            new StepRunner().run(args, stepName);
+            // MORE THAN ONE STEP CAN BE PROVIDED (COMMA-SEPARATED). IN SUCH CASE, STEPS ARE RUN WITHIN THE SAME DRIVER,
+            // SHARING BOTH SPARKSESSION AND APPLICATION SETTINGS, AND RESPECTING THEIR DATA DEPENDENCIES
+            String stepNames = stepOptionParser.buildStepNameValue(args, firstStageOptions).getStepName();
+            List<String> stepNameList = Arrays.stream(stepNames.split(","))
+                    .map(String::trim)
+                    .filter(stepName -> !stepName.isEmpty())
+                    .collect(Collectors.toList());
+
+            logger.info(String.format("Steps to be run: %s", String.join(", ", stepNameList)));
+
+            if (stepNameList.size() == 1) {
+
+                new StepRunner().run(args, stepNameList.get(0));
+
+            } else new StepScheduler().run(args, stepNameList);
 
         } catch (ParseException e) {
 
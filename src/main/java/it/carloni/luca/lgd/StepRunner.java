@@ -20,14 +20,27 @@ public class StepRunner {
     private final Logger logger = Logger.getLogger(getClass());
     private final StepOptionParser stepOptionParser = new StepOptionParser();
 
+    // FAILURES (UNKNOWN STEP NAME, INVALID STEP OPTIONS, STEP EXCEPTIONS) ARE PROPAGATED TO THE CALLER,
+    // SO THAT BOTH Main AND StepScheduler CAN TELL A FAILED STEP FROM A SUCCESSFUL ONE
     public void run(String[] args, String stepName) {
 
         Options stepParameterOptions = new Options();
+        String stepnameUC = stepName.toUpperCase();
+        Step stepElem;
+        try {
+
+            stepElem = Step.valueOf(stepnameUC);
+        }
+
+        catch (IllegalArgumentException e) {
+
+            logger.error("IllegalArgumentException occurred");
+            logger.error(String.format("Unable to match provided step name %s", stepName));
+            throw e;
+        }
 
         try {
 
-            String stepnameUC = stepName.toUpperCase();
-            Step stepElem = Step.valueOf(stepnameUC);
             switch (stepElem) {
 
                 case CICLILAV_STEP_1: {
@@ -41,7 +54,7 @@ public class StepRunner {
                     stepParameterOptions.addOption(dataAOption);
 
                     DataDaDataAValue stepValues = stepOptionParser.buildDataDaDataAValues(args, stepParameterOptions);
-                    new CiclilavStep1().run(stepValues);
+                    new CiclilavStep1().runWithMetrics(stepValues);
                     break;
                 }
 
@@ -56,7 +69,31 @@ public class StepRunner {
                     stepParameterOptions.addOption(ufficioOption);
 
                     DataAUfficioValue stepValues = stepOptionParser.buildDataAUfficioValues(args, stepParameterOptions);
-                    new CicliPreview().run(stepValues);
+                    new CicliPreview().runWithMetrics(stepValues);
+                    break;
+                }
+
+                case CSV_TO_COLUMNAR: {
+
+                    logger.info("Matched step name " + stepnameUC);
+
+                    new CsvToColumnar().runWithMetrics(new EmptyValue());
+                    break;
+                }
+
+                case PARITY_CHECK: {
+
+                    logger.info("Matched step name " + stepnameUC);
+
+                    new ParityCheck().runWithMetrics(new EmptyValue());
+                    break;
+                }
+
+                case GENERATE_INPUTS: {
+
+                    logger.info("Matched step name " + stepnameUC);
+
+                    new GenerateInputs().runWithMetrics(new EmptyValue());
                     break;
                 }
 
@@ -73,7 +110,7 @@ public class StepRunner {
                     stepParameterOptions.addOption(numeroMesi2Option);
 
                     DataANumeroMesi12Value stepValues = stepOptionParser.buildDataANumeroMesi12Values(args, stepParameterOptions);
-                    new FanagMonthly().run(stepValues);
+                    new FanagMonthly().runWithMetrics(stepValues);
                     break;
                 }
 
@@ -81,7 +118,7 @@ public class StepRunner {
 
                     logger.info("Matched step name " + stepnameUC);
 
-                    new Fpasperd().run(new EmptyValue());
+                    new Fpasperd().runWithMetrics(new EmptyValue());
                     break;
                 }
 
@@ -98,7 +135,7 @@ public class StepRunner {
                     stepParameterOptions.addOption(numeroMesi2Option);
 
                     DataANumeroMesi12Value stepvalues = stepOptionParser.buildDataANumeroMesi12Values(args, stepParameterOptions);
-                    new FrappNdgMonthly().run(stepvalues);
+                    new FrappNdgMonthly().runWithMetrics(stepvalues);
                     break;
                 }
 
@@ -111,7 +148,7 @@ public class StepRunner {
                     stepParameterOptions.addOption(dataAOption);
 
                     DataAValue dataAValue = stepOptionParser.buildDataAValue(args, stepParameterOptions);
-                    new FrappPuma().run(dataAValue);
+                    new FrappPuma().runWithMetrics(dataAValue);
                     break;
                 }
 
@@ -124,7 +161,7 @@ public class StepRunner {
                     stepParameterOptions.addOption(dataOsservazioneOption);
 
                     DataOsservazioneValue dataOsservazioneValue = stepOptionParser.buildDataOsservazioneValue(args, stepParameterOptions);
-                    new Movimenti().run(dataOsservazioneValue);
+                    new Movimenti().runWithMetrics(dataOsservazioneValue);
                     break;
                 }
 
@@ -132,7 +169,7 @@ public class StepRunner {
 
                     logger.info("Matched step name " + stepnameUC);
 
-                    new Posaggr().run(new EmptyValue());
+                    new Posaggr().runWithMetrics(new EmptyValue());
                     break;
                 }
 
@@ -140,7 +177,7 @@ public class StepRunner {
 
                     logger.info("Matched step name " + stepnameUC);
 
-                    new QuadFcoll().run(new EmptyValue());
+                    new QuadFcoll().runWithMetrics(new EmptyValue());
                     break;
                 }
 
@@ -153,7 +190,7 @@ public class StepRunner {
                     stepParameterOptions.addOption(ufficioOption);
 
                     UfficioValue ufficioValue = stepOptionParser.buildUfficioValue(args, stepParameterOptions);
-                    new QuadFcollCicli().run(ufficioValue);
+                    new QuadFcollCicli().runWithMetrics(ufficioValue);
                     break;
                 }
 
@@ -166,7 +203,7 @@ public class StepRunner {
                     stepParameterOptions.addOption(ufficioOption);
 
                     UfficioValue ufficioValue = stepOptionParser.buildUfficioValue(args, stepParameterOptions);
-                    new QuadFposi().run(ufficioValue);
+                    new QuadFposi().runWithMetrics(ufficioValue);
                     break;
                 }
 
@@ -179,7 +216,7 @@ public class StepRunner {
                     stepParameterOptions.addOption(ufficioOption);
 
                     UfficioValue ufficioValue = stepOptionParser.buildUfficioValue(args, stepParameterOptions);
-                    new QuadFrapp().run(ufficioValue);
+                    new QuadFrapp().runWithMetrics(ufficioValue);
                     break;
                 }
 
@@ -187,7 +224,7 @@ public class StepRunner {
 
                     logger.info("Matched step name " + stepnameUC);
 
-                    new RaccInc().run(new EmptyValue());
+                    new RaccInc().runWithMetrics(new EmptyValue());
                     break;
                 }
 
@@ -202,24 +239,18 @@ public class StepRunner {
                     stepParameterOptions.addOption(ufficioOption);
 
                     DataAUfficioValue dataAUfficioValue = stepOptionParser.buildDataAUfficioValues(args, stepParameterOptions);
-                    new SofferenzePreview().run(dataAUfficioValue);
+                    new SofferenzePreview().runWithMetrics(dataAUfficioValue);
                     break;
                 }
 
                 default: {
 
                     logger.error(String.format("Undefined step name (%s)", stepName));
-                    break;
+                    throw new IllegalArgumentException(String.format("Undefined step name (%s)", stepName));
                 }
             }
         }
 
-        catch (IllegalArgumentException e) {
-
-            logger.error("IllegalArgumentException occurred");
-            logger.error(String.format("Unable to match provided step name %s", stepName));
-        }
-
         catch (ParseException e) {
 
             // IF THE PROVIDED STEP PARAMETERS ARE INCORRECT
@@ -240,6 +271,7 @@ public class StepRunner {
             String helpFooterString = OptionEnum.HELP_FOOTER_STRING.getString();
             helpFormatter.setWidth(getHelpFormatterWidth(helpUsageString, helpHeaderString, helpFooterString));
             helpFormatter.printHelp(helpUsageString, helpHeaderString, stepParameterOptions, helpFooterString, true);
+            throw new IllegalArgumentException(String.format("Unable to parse options of step %s", stepName), e);
         }
     }
 
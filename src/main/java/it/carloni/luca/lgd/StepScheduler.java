@@ -0,0 +1,225 @@
+package it.carloni.luca.lgd;
+
+import it.carloni.luca.lgd.spark.common.DatasetRegistry;
+import it.carloni.luca.lgd.spark.common.StepContext;
+import it.carloni.luca.lgd.spark.step.ParityCheck;
+import it.carloni.luca.lgd.spark.step.Step;
+import org.apache.log4j.Logger;
+import org.apache.spark.SparkContext;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/***
+ * Runs a list of steps within the same driver, as a DAG of data dependencies.
+ * Step B depends on a step A listed before it when B reads a dataset written by A, or when both steps write
+ * the same dataset, or when B overwrites a dataset read by A. Steps with no pending dependencies are submitted
+ * concurrently, each one within its own FAIR scheduler pool, so that independent Spark jobs share the cluster.
+ * If pipeline.handoff.enabled is true, outputs read by later steps are handed off in memory (see DatasetRegistry)
+ */
+
+public class StepScheduler {
+
+    private final Logger logger = Logger.getLogger(getClass());
+    private final StepContext stepContext = StepContext.getInstance();
+    private final StepRunner stepRunner = new StepRunner();
+
+    public void run(String[] args, List<String> stepNames) {
+
+        List<Step> steps = resolveSteps(stepNames);
+        Map<Step, List<Step>> stepDependencies = buildStepDependencies(steps);
+
+        DatasetRegistry datasetRegistry = stepContext.getDatasetRegistry();
+        boolean handoffEnabled = Boolean.parseBoolean(stepContext.getValue("pipeline.handoff.enabled"));
+        logger.info("pipeline.handoff.enabled: " + handoffEnabled);
+        if (handoffEnabled) {
+
+            Set<String> handoffPaths = getHandoffPaths(steps);
+            logger.info(String.format("Datasets to be handed off in memory: %s", String.join(", ", handoffPaths)));
+            datasetRegistry.setHandoffPaths(handoffPaths);
+        }
+
+        int maxParallelSteps = Integer.parseInt(stepContext.getValue("pipeline.max.parallel.steps"));
+        logger.info("pipeline.max.parallel.steps: " + maxParallelSteps);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, maxParallelSteps));
+        Map<Step, CompletableFuture<Void>> stepFutures = new LinkedHashMap<>();
+
+        try {
+
+            // STEPS ARE SUBMITTED IN THE GIVEN ORDER, SO THAT DEPENDENCIES' FUTURES ALREADY EXIST
+            for (Step step : steps) {
+
+                CompletableFuture<?>[] dependencyFutures = stepDependencies.get(step)
+                        .stream()
+                        .map(stepFutures::get)
+                        .toArray(CompletableFuture<?>[]::new);
+
+                CompletableFuture<Void> stepFuture = CompletableFuture.allOf(dependencyFutures)
+                        .thenRunAsync(() -> runInSchedulerPool(args, step), executorService);
+
+                stepFutures.put(step, stepFuture);
+            }
+
+            List<String> failedSteps = new ArrayList<>();
+            stepFutures.forEach((step, stepFuture) -> {
+
+                try {
+
+                    stepFuture.join();
+                    logger.info(String.format("Step %s completed", step.getName()));
+
+                } catch (CompletionException e) {
+
+                    logger.error(String.format("Step %s failed or has been skipped due to a failed dependency", step.getName()));
+                    logger.error(e.getCause());
+                    failedSteps.add(step.getName());
+                }
+            });
+
+            // A PIPELINE WITH A FAILED (OR SKIPPED) STEP FAILS AS A WHOLE, AS A SINGLE FAILED STEP DOES
+            if (!failedSteps.isEmpty()) {
+
+                throw new IllegalStateException(String.format("%s step(s) out of %s failed or have been skipped: %s",
+                        failedSteps.size(), steps.size(), String.join(", ", failedSteps)));
+            }
+        }
+
+        finally {
+
+            executorService.shutdown();
+            datasetRegistry.clear();
+        }
+    }
+
+    private List<Step> resolveSteps(List<String> stepNames) {
+
+        List<Step> steps = new ArrayList<>();
+        List<String> unknownStepNames = new ArrayList<>();
+        for (String stepName : stepNames) {
+
+            try {
+
+                Step step = Step.valueOf(stepName.toUpperCase());
+                if (steps.contains(step)) {
+
+                    logger.warn(String.format("Step %s has been provided more than once. Running it only once", stepName));
+
+                } else steps.add(step);
+            }
+
+            catch (IllegalArgumentException e) {
+
+                unknownStepNames.add(stepName);
+            }
+        }
+
+        // SKIPPING UNKNOWN STEPS WOULD DROP THE DEPENDENCIES OF THE REMAINING ONES, SO NO STEP IS RUN AT ALL
+        if (!unknownStepNames.isEmpty()) {
+
+            throw new IllegalArgumentException(String.format("Unable to match provided step name(s) %s. Valid step names are %s",
+                    String.join(", ", unknownStepNames), Arrays.toString(Step.values())));
+        }
+
+        return steps;
+    }
+
+    private Map<Step, List<Step>> buildStepDependencies(List<Step> steps) {
+
+        Map<Step, List<Step>> stepDependencies = new LinkedHashMap<>();
+        for (int j = 0; j < steps.size(); j++) {
+
+            Step step = steps.get(j);
+            Set<String> stepInputs = resolvePaths(getInputKeys(step));
+            Set<String> stepOutputs = resolvePaths(step.getOutputKeys());
+
+            List<Step> dependencies = new ArrayList<>();
+            for (int i = 0; i < j; i++) {
+
+                Step previousStep = steps.get(i);
+                Set<String> previousStepInputs = resolvePaths(getInputKeys(previousStep));
+                Set<String> previousStepOutputs = resolvePaths(previousStep.getOutputKeys());
+
+                boolean readsPreviousOutput = !Collections.disjoint(previousStepOutputs, stepInputs);
+                boolean overwritesPreviousOutput = !Collections.disjoint(previousStepOutputs, stepOutputs);
+                boolean overwritesPreviousInput = !Collections.disjoint(previousStepInputs, stepOutputs);
+
+                if (readsPreviousOutput || overwritesPreviousOutput || overwritesPreviousInput) {
+
+                    dependencies.add(previousStep);
+                }
+            }
+
+            String dependenciesString = dependencies.isEmpty() ? "none" : dependencies
+                    .stream()
+                    .map(Step::getName)
+                    .collect(Collectors.joining(", "));
+
+            logger.info(String.format("Step %s depends on: %s", step.getName(), dependenciesString));
+            stepDependencies.put(step, dependencies);
+        }
+
+        return stepDependencies;
+    }
+
+    // INPUTS OF PARITY_CHECK ARE THE DATASETS IT COMPARES (WHICH DEPEND ON parity.datasets), SO THAT IT RUNS AFTER THE STEPS WRITING THEM
+    // AND BEFORE THE ONES OVERWRITING THEM. AS IT READS THEM FROM STORAGE, THEY ARE NOT HANDED OFF (see getHandoffPaths)
+    private List<String> getInputKeys(Step step) {
+
+        return step == Step.PARITY_CHECK ? ParityCheck.getComparedKeys() : step.getInputKeys();
+    }
+
+    private Set<String> getHandoffPaths(List<Step> steps) {
+
+        // OUTPUTS OF A STEP THAT ARE READ BY AT LEAST ONE OF THE FOLLOWING STEPS
+        Set<String> handoffPaths = new LinkedHashSet<>();
+        for (int i = 0; i < steps.size(); i++) {
+
+            Set<String> stepOutputs = resolvePaths(steps.get(i).getOutputKeys());
+            for (int j = i + 1; j < steps.size(); j++) {
+
+                Set<String> followingStepInputs = resolvePaths(steps.get(j).getInputKeys());
+                stepOutputs.stream()
+                        .filter(followingStepInputs::contains)
+                        .forEach(handoffPaths::add);
+            }
+        }
+
+        return handoffPaths;
+    }
+
+    private Set<String> resolvePaths(List<String> keys) {
+
+        return keys.stream()
+                .map(stepContext::getValue)
+                .filter(Objects::nonNull)
+                .map(DatasetRegistry::normalizePath)
+                .collect(Collectors.toSet());
+    }
+
+    private void runInSchedulerPool(String[] args, Step step) {
+
+        SparkContext sparkContext = stepContext.getSparkSession().sparkContext();
+        String stepName = step.getName();
+
+        // SCHEDULER POOL AND JOB GROUP ARE THREAD-LOCAL PROPERTIES
+        sparkContext.setLocalProperty("spark.scheduler.pool", stepName);
+        sparkContext.setJobGroup(stepName, "LGD step " + stepName, false);
+
+        try {
+
+            logger.info(String.format("Starting step %s within scheduler pool %s", stepName, stepName));
+            stepRunner.run(args, stepName);
+        }
+
+        finally {
+
+            sparkContext.clearJobGroup();
+            sparkContext.setLocalProperty("spark.scheduler.pool", null);
+        }
+    }
+}
@@ -8,7 +8,7 @@ public enum OptionEnum {
 
     STEP_NAME_SHORT_OPTION("s"),
     STEP_NAME_LONG_OPTION("step-name"),
-    STEP_NAME_OPTION_DESCRIPTION("job Spark da eseguire"),
+    STEP_NAME_OPTION_DESCRIPTION("job Spark da eseguire (uno o più, separati da virgola)"),
 
     DATA_A_SHORT_OPTION("da"),
     DATA_A_LONG_OPTION("data-a"),
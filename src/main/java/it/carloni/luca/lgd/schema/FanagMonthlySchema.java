@@ -11,8 +11,8 @@ public class FanagMonthlySchema {
 
             put("codicebanca", "chararray");
             put("ndgprincipale", "chararray");
-            put("datainiziodef", "int");
-            put("datafinedef", "int");
+            put("datainiziodef", "date");
+            put("datafinedef", "date");
             put("datainiziopd", "chararray");
             put("datainizioristrutt", "chararray");
             put("datainizioinc", "chararray");
@@ -32,7 +32,7 @@ public class FanagMonthlySchema {
             put("codicebanca_collegato", "chararray");
             put("cd_collegamento", "chararray");
             put("cd_fiscale", "chararray");
-            put("dt_rif_udct", "int");
+            put("dt_rif_udct", "date");
         }};
     }
 
@@ -42,7 +42,7 @@ public class FanagMonthlySchema {
 
             put("cd_istituto", "chararray");
             put("ndg", "chararray");
-            put("dt_riferimento", "int");
+            put("dt_riferimento", "date");
             put("cab_prov_com_stato", "chararray");
             put("provincia", "chararray");
             put("sae", "chararray");
@@ -83,7 +83,7 @@ public class FanagMonthlySchema {
 
             put("cd_istituto", "chararray");
             put("ndg", "chararray");
-            put("dt_riferimento", "int");
+            put("dt_riferimento", "date");
             put("reddito", "chararray");
             put("totale_utilizzi", "chararray");
             put("totale_fidi_delib", "chararray");
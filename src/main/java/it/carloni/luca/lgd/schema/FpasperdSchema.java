@@ -11,8 +11,8 @@ public class FpasperdSchema {
 
             put("codicebanca", "chararray");
             put("ndgprincipale", "chararray");
-            put("datainiziodef", "int");
-            put("datafinedef", "int");
+            put("datainiziodef", "date");
+            put("datafinedef", "date");
             put("datainiziopd", "chararray");
             put("datainizioristrutt", "chararray");
             put("datainizioinc", "chararray");
@@ -42,7 +42,7 @@ public class FpasperdSchema {
 
             put("cd_istituto", "chararray");
             put("ndg", "chararray");
-            put("datacont", "int");
+            put("datacont", "date");
             put("causale", "chararray");
             put("importo", "chararray");
 
@@ -59,7 +59,7 @@ public class FpasperdSchema {
 
             put("_cd_istituto", "chararray");
             put("_ndg", "chararray");
-            put("_datacont", "int");
+            put("_datacont", "date");
             put("_causale", "chararray");
             put("_importo", "chararray");
 
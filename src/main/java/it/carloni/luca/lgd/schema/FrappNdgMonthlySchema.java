@@ -11,8 +11,8 @@ public class FrappNdgMonthlySchema {
 
             put("codicebanca", "chararray");
             put("ndgprincipale", "chararray");
-            put("datainiziodef", "int");
-            put("datafinedef", "int");
+            put("datainiziodef", "date");
+            put("datafinedef", "date");
             put("datainiziopd", "chararray");
             put("datainizioristrutt", "chararray");
             put("datainizioinc", "chararray");
@@ -32,7 +32,7 @@ public class FrappNdgMonthlySchema {
             put("codicebanca_collegato", "chararray");
             put("cd_collegamento", "chararray");
             put("cd_fiscale", "chararray");
-            put("dt_rif_udct", "int");
+            put("dt_rif_udct", "date");
         }};
     }
 
@@ -45,7 +45,7 @@ public class FrappNdgMonthlySchema {
             put("sportello", "chararray");
             put("conto", "chararray");
             put("progr_segmento", "int");
-            put("dt_riferimento", "int");
+            put("dt_riferimento", "date");
             put("conto_esteso", "chararray");
             put("forma_tecnica", "chararray");
             put("flag_durata_contr", "chararray");
@@ -11,8 +11,8 @@ public class FrappPumaSchema {
 
             put("codicebanca", "chararray");
             put("ndgprincipale", "chararray");
-            put("datainiziodef", "int");
-            put("datafinedef", "int");
+            put("datainiziodef", "date");
+            put("datafinedef", "date");
             put("datainiziopd", "chararray");
             put("datainizioristrutt", "chararray");
             put("datainizioinc", "chararray");
@@ -32,7 +32,7 @@ public class FrappPumaSchema {
             put("codicebanca_collegato", "chararray");
             put("cd_collegamento", "chararray");
             put("cd_fiscale", "chararray");
-            put("dt_rif_udct", "int");
+            put("dt_rif_udct", "date");
         }};
     }
 
@@ -43,7 +43,7 @@ public class FrappPumaSchema {
             put("cd_istituto", "chararray");
             put("ndg", "chararray");
             put("sportello", "chararray");
-            put("dt_riferimento", "int");
+            put("dt_riferimento", "date");
             put("conto_esteso", "chararray");
             put("cd_puma2", "chararray");
             put("ide_garanzia", "chararray");
@@ -0,0 +1,43 @@
+package it.carloni.luca.lgd.schema;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class InputSchema {
+
+    // PIG SCHEMA OF EACH STEP INPUT, INDEXED BY ITS KEY WITHIN lgd.properties
+    public static Map<String, Map<String, String>> getInputPigSchemas(){
+
+        return new LinkedHashMap<String, Map<String, String>>(){{
+
+            put("ciclilav.step1.tlbcidef.csv", CicliLavStep1Schema.getTlbcidefPigSchema());
+            put("ciclilav.step1.tlbcracc.csv", CicliLavStep1Schema.getTlbcraccLoadPigSchema());
+            put("cicli.preview.fposi.outdir.csv", CicliPreviewSchema.getFposiOutDirPigSchema());
+            put("fanag.monthly.cicli.ndg.path.csv", FanagMonthlySchema.getCicliNdgPigSchema());
+            put("fanag.monthly.tlbuact.csv", FanagMonthlySchema.getTlbuactPigSchema());
+            put("fanag.monthly.tlbduct.path.csv", FanagMonthlySchema.getTlbudctPigSchema());
+            put("fpasperd.cicli.ndg.path.csv", FpasperdSchema.getTlbcidefLoadPigSchema());
+            put("fpasperd.tlbpaspe.filter.csv", FpasperdSchema.getTlbpaspeFilterPigSchema());
+            put("fpasperd.tlbpaspeoss.csv", FpasperdSchema.getTlbpaspeossPigSchema());
+            put("frapp.ndg.monthly.cicli.ndg.path.csv", FrappNdgMonthlySchema.getTlbcidefPigSchema());
+            put("frapp.ndg.monthly.tlburtt.csv", FrappNdgMonthlySchema.getTlburttPigSchema());
+            put("frapp.puma.cicli.ndg.path", FrappPumaSchema.getTlbcidefPigSchema());
+            put("frapp.puma.tlbgaran.path", FrappPumaSchema.getTlbgaranPigSchema());
+            put("movimenti.tlbmovconta.csv", MovimentiSchema.getTlbmovcontaPigSchema());
+            put("posaggr.tblcomp.path.csv", PosaggrSchema.getTblCompPigSchema());
+            put("posaggr.tlbaggr.path.csv", PosaggrSchema.getTlbaggrPigSchema());
+            put("posaggr.tlbposi.load.csv", PosaggrSchema.getTlbposiLoadPigSchema());
+            put("quad.fcoll.fcoll.csv", QuadFcollSchema.getFcollLoadPigSchema());
+            put("quad.fcoll.oldfposi.csv", QuadFcollSchema.getOldFposiLoadPigSchema());
+            put("quad.fcoll.cicli.fcoll.csv", QuadFcollCicliSchema.getFcollPigSchema());
+            put("quad.fcoll.cicli.cicli.ndg.load.csv", QuadFcollCicliSchema.getCicliNdgLoadPigSchema());
+            put("quad.fposi.hadoop.fposi.csv", QuadFposiSchema.getHadoopFposiPigSchema());
+            put("quad.fposi.old.fposi.load.csv", QuadFposiSchema.getOldFposiLoadPigSchema());
+            put("quad.frapp.hadoop.frapp.csv", QuadFrappSchema.getHadoopFrappPigSchema());
+            put("quad.frapp.old.frapp.load.csv", QuadFrappSchema.getOldFrappLoadPigSchema());
+            put("quad.frapp.fcoll.csv", QuadFrappSchema.getFcollPigSchema());
+            put("racc.inc.tlbmign.path.csv", RaccIncSchema.getTlbmignPigSchema());
+            put("sofferenze.preview.soff.outdir.csv", SofferenzePreviewSchema.getSoffLoadPigSchema());
+        }};
+    }
+}
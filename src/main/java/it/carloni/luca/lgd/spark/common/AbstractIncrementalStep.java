@@ -0,0 +1,301 @@
+package it.carloni.luca.lgd.spark.common;
+
+import it.carloni.luca.lgd.parameter.common.AbstractStepValue;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.functions;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static it.carloni.luca.lgd.spark.utils.StepUtils.changeDateFormat;
+
+/***
+ * Base class of monthly steps (FANAG_MONTHLY, FRAPP_NDG_MONTHLY, FRAPP_PUMA) that can run in incremental mode (incremental.mode = true).
+ * Output data are partitioned by reference date and the state of the last run (data_a, numero_mesi_1, numero_mesi_2 and a snapshot of cicli_ndg)
+ * is kept at <output path>_incremental. Only months since (last data_a - numero_mesi_2), as well as the ones covered by cycles
+ * that changed since last run, are recomputed and swapped into the previous output
+ */
+
+public abstract class AbstractIncrementalStep<T extends AbstractStepValue> extends AbstractStep<T> {
+
+    private static final String Y4M2D2_FORMAT = "yyyyMMdd";
+    private static final String Y4M2_FORMAT = "yyyyMM";
+
+    private final Logger logger = Logger.getLogger(getClass());
+    private final StepContext stepContext = StepContext.getInstance();
+
+    protected IncrementalWindow getIncrementalWindow(String outputPath, String outputDateColumn, Dataset<Row> cicliNdg,
+                                                     String dataA, int numeroMesi1, int numeroMesi2) {
+
+        String dataAY4M2D2 = changeDateFormat(dataA, dataAPattern, Y4M2D2_FORMAT);
+        boolean incrementalModeEnabled = Boolean.parseBoolean(getDatasetSetting("incremental.mode", outputPath));
+        IncrementalWindow fullRecomputationWindow = new IncrementalWindow(incrementalModeEnabled, null, dataAY4M2D2, numeroMesi1, numeroMesi2, cicliNdg);
+        if (!incrementalModeEnabled) {
+
+            return fullRecomputationWindow;
+        }
+
+        if (stepContext.getDatasetRegistry().isHandoffPath(outputPath)) {
+
+            logger.warn(String.format("Data at path %s are handed off in memory. Incremental mode is not available", outputPath));
+            return new IncrementalWindow(false, null, dataAY4M2D2, numeroMesi1, numeroMesi2, cicliNdg);
+        }
+
+        if (!Arrays.equals(getPartitionColumns(outputPath), new String[] {outputDateColumn})) {
+
+            logger.warn(String.format("Incremental mode requires data at path %s to be partitioned only by %s " +
+                    "(output.partition.columns.<key> = %s). Running full recomputation", outputPath, outputDateColumn, outputDateColumn));
+            return new IncrementalWindow(false, null, dataAY4M2D2, numeroMesi1, numeroMesi2, cicliNdg);
+        }
+
+        try {
+
+            FileSystem fileSystem = getFileSystem();
+            Path statePath = new Path(getStatePath(outputPath));
+            Path watermarkPath = new Path(statePath, "watermark");
+            if (!fileSystem.exists(watermarkPath) || !fileSystem.exists(new Path(getStoragePath(outputPath, getStorageFormat(outputPath))))) {
+
+                logger.info(String.format("No previous incremental run found for path %s. Running full recomputation", outputPath));
+                return fullRecomputationWindow;
+            }
+
+            // WATERMARK: <data_a (yyyyMMdd)>;<numero_mesi_1>;<numero_mesi_2>
+            String[] watermark;
+            try (BufferedReader watermarkReader = new BufferedReader(new InputStreamReader(fileSystem.open(watermarkPath), StandardCharsets.UTF_8))) {
+
+                watermark = watermarkReader.readLine().split(";");
+            }
+
+            logger.info(String.format("Last incremental run for path %s: data_a %s, numero_mesi_1 %s, numero_mesi_2 %s",
+                    outputPath, watermark[0], watermark[1], watermark[2]));
+
+            if (Integer.parseInt(watermark[1]) != numeroMesi1 || Integer.parseInt(watermark[2]) != numeroMesi2) {
+
+                logger.info("numero_mesi_1 or numero_mesi_2 changed since last run. Running full recomputation");
+                return fullRecomputationWindow;
+            }
+
+            Dataset<Row> cicliNdgSnapshot = stepContext.getSparkSession().read().parquet(new Path(statePath, "cicli_ndg").toString());
+            if (!Arrays.equals(cicliNdgSnapshot.dtypes(), cicliNdg.dtypes())) {
+
+                logger.info("cicli_ndg schema changed since last run. Running full recomputation");
+                return fullRecomputationWindow;
+            }
+
+            // CYCLES ADDED, REMOVED OR UPDATED SINCE LAST RUN. THEIR WINDOW STARTS AT LEAST(datainiziodef, dt_rif_udct) - numero_mesi_1
+            Dataset<Row> dirtyCicliNdg = cicliNdg.except(cicliNdgSnapshot).union(cicliNdgSnapshot.except(cicliNdg));
+            Row dirtyCicliNdgSummary = dirtyCicliNdg
+                    .agg(functions.count(functions.lit(1)),
+                            functions.min(functions.least(dirtyCicliNdg.col("datainiziodef"), dirtyCicliNdg.col("dt_rif_udct"))))
+                    .first();
+
+            LocalDate lastDataA = LocalDate.parse(watermark[0], DateTimeFormatter.ofPattern(Y4M2D2_FORMAT));
+            LocalDate currentDataA = LocalDate.parse(dataAY4M2D2, DateTimeFormatter.ofPattern(Y4M2D2_FORMAT));
+            LocalDate lowerBound = (lastDataA.isBefore(currentDataA) ? lastDataA : currentDataA).minusMonths(numeroMesi2);
+
+            long dirtyCycles = dirtyCicliNdgSummary.getLong(0);
+            if (dirtyCycles > 0 && !dirtyCicliNdgSummary.isNullAt(1)) {
+
+                // CYCLE DATES ARE EITHER DateType OR yyyyMMdd VALUES
+                Object dirtyCyclesMinDate = dirtyCicliNdgSummary.get(1);
+                LocalDate dirtyCyclesLowerBound = (dirtyCyclesMinDate instanceof java.sql.Date ?
+                        ((java.sql.Date) dirtyCyclesMinDate).toLocalDate() :
+                        LocalDate.parse(String.valueOf(dirtyCyclesMinDate), DateTimeFormatter.ofPattern(Y4M2D2_FORMAT)))
+                        .minusMonths(numeroMesi1);
+
+                lowerBound = dirtyCyclesLowerBound.isBefore(lowerBound) ? dirtyCyclesLowerBound : lowerBound;
+            }
+
+            IncrementalWindow incrementalWindow = new IncrementalWindow(true, lowerBound.format(DateTimeFormatter.ofPattern(Y4M2_FORMAT)),
+                    dataAY4M2D2, numeroMesi1, numeroMesi2, cicliNdg);
+
+            logger.info(String.format("Cycles changed since last run: %s. Incremental window: %s", dirtyCycles, incrementalWindow));
+            return incrementalWindow;
+        }
+
+        catch (Exception e) {
+
+            logger.warn(String.format("Could not restore state of last incremental run for path %s. Running full recomputation", outputPath));
+            logger.warn(e);
+            return fullRecomputationWindow;
+        }
+    }
+
+    protected void writeDatasetIncrementally(Dataset<Row> dataset, String outputPath, String outputDateColumn, IncrementalWindow incrementalWindow) {
+
+        if (incrementalWindow.isFullRecomputation()) {
+
+            writeDatasetAsCsvAtPath(dataset, outputPath);
+
+        } else {
+
+            // RECOMPUTED PARTITIONS ARE WRITTEN TO A STAGING PATH AND SWAPPED IN ONLY ONCE THEY HAVE BEEN COMPLETELY WRITTEN
+            StorageFormat storageFormat = getStorageFormat(outputPath);
+            String storagePath = getStoragePath(outputPath, storageFormat);
+            String stagingPath = storagePath + "_staging";
+
+            Dataset<Row> repartitionedDataset = repartitionForOutput(dataset, outputPath, new String[] {outputDateColumn});
+            if (storageFormat == StorageFormat.CSV) {
+
+                writeCsv(repartitionedDataset, stagingPath, true, outputDateColumn);
+
+            } else writeDatasetAtPath(repartitionedDataset, stagingPath, storageFormat, outputDateColumn);
+
+            swapPartitions(storagePath, stagingPath, outputDateColumn, incrementalWindow.getLowerBoundMonth());
+        }
+
+        if (incrementalWindow.isIncrementalModeEnabled()) {
+
+            saveState(outputPath, incrementalWindow);
+        }
+    }
+
+    // PARTITIONS SINCE lowerBoundMonth ARE MOVED ASIDE AND REPLACED BY THE RECOMPUTED ONES. IN CASE OF FAILURE, PREVIOUS PARTITIONS ARE RESTORED
+    private void swapPartitions(String storagePath, String stagingPath, String partitionColumn, String lowerBoundMonth) {
+
+        logger.info(String.format("Starting to swap partitions since %s at path %s with the ones at path %s", lowerBoundMonth, storagePath, stagingPath));
+
+        Path outputDir = new Path(storagePath);
+        Path stagingDir = new Path(stagingPath);
+        Path replacedDir = new Path(storagePath + "_replaced");
+        List<Path> replacedPartitions = new ArrayList<>();
+        List<Path> installedPartitions = new ArrayList<>();
+
+        try {
+
+            FileSystem fileSystem = getFileSystem();
+            FileStatus[] partitionsToBeReplaced = fileSystem.listStatus(outputDir, partition -> isPartitionSince(partition.getName(), partitionColumn, lowerBoundMonth));
+            FileStatus[] recomputedPartitions = fileSystem.listStatus(stagingDir, partition -> partition.getName().startsWith(partitionColumn + "="));
+
+            fileSystem.delete(replacedDir, true);
+            fileSystem.mkdirs(replacedDir);
+
+            try {
+
+                for (FileStatus partition : partitionsToBeReplaced) {
+
+                    rename(fileSystem, partition.getPath(), new Path(replacedDir, partition.getPath().getName()));
+                    replacedPartitions.add(partition.getPath());
+                }
+
+                for (FileStatus partition : recomputedPartitions) {
+
+                    Path installedPartition = new Path(outputDir, partition.getPath().getName());
+                    rename(fileSystem, partition.getPath(), installedPartition);
+                    installedPartitions.add(installedPartition);
+                }
+            }
+
+            catch (IOException e) {
+
+                logger.error(String.format("IOException occurred while swapping partitions at path %s. Restoring previous partitions", storagePath));
+                for (Path installedPartition : installedPartitions) {
+
+                    fileSystem.delete(installedPartition, true);
+                }
+
+                for (Path replacedPartition : replacedPartitions) {
+
+                    rename(fileSystem, new Path(replacedDir, replacedPartition.getName()), replacedPartition);
+                }
+
+                throw e;
+            }
+
+            fileSystem.delete(replacedDir, true);
+            fileSystem.delete(stagingDir, true);
+        }
+
+        catch (IOException e) {
+
+            logger.error(String.format("IOException occurred while swapping partitions at path %s", storagePath));
+            throw new UncheckedIOException(e);
+        }
+
+        logger.info(String.format("Successfully replaced %s partition(s) with %s recomputed partition(s) at path %s",
+                replacedPartitions.size(), installedPartitions.size(), storagePath));
+    }
+
+    // PARTITION DIR <partitionColumn>=<yyyyMMdd> (OR <partitionColumn>=<yyyy-MM-dd>, FOR DATE COLUMNS) WHOSE MONTH IS GREATER OR EQUAL THAN lowerBoundMonth
+    private boolean isPartitionSince(String partitionDirName, String partitionColumn, String lowerBoundMonth) {
+
+        if (!partitionDirName.startsWith(partitionColumn + "=")) {
+
+            return false;
+        }
+
+        String partitionValue = partitionDirName.substring(partitionColumn.length() + 1).replace("-", "");
+        return partitionValue.length() >= 6 &&
+                partitionValue.substring(0, 6).chars().allMatch(Character::isDigit) &&
+                partitionValue.substring(0, 6).compareTo(lowerBoundMonth) >= 0;
+    }
+
+    private void rename(FileSystem fileSystem, Path source, Path target) throws IOException {
+
+        if (!fileSystem.rename(source, target)) {
+
+            throw new IOException(String.format("Could not rename %s to %s", source, target));
+        }
+    }
+
+    // WATERMARK IS WRITTEN LAST, SO THAT A PARTIALLY SAVED STATE LEADS TO A FULL RECOMPUTATION
+    private void saveState(String outputPath, IncrementalWindow incrementalWindow) {
+
+        Path statePath = new Path(getStatePath(outputPath));
+        Path watermarkPath = new Path(statePath, "watermark");
+        String watermark = String.join(";", incrementalWindow.getDataA(),
+                String.valueOf(incrementalWindow.getNumeroMesi1()),
+                String.valueOf(incrementalWindow.getNumeroMesi2()));
+
+        logger.info(String.format("Starting to save incremental state (%s) at path %s", watermark, statePath));
+
+        try {
+
+            FileSystem fileSystem = getFileSystem();
+            fileSystem.delete(watermarkPath, false);
+
+            incrementalWindow.getCicliNdg()
+                    .write()
+                    .mode(SaveMode.Overwrite)
+                    .parquet(new Path(statePath, "cicli_ndg").toString());
+
+            try (FSDataOutputStream watermarkFile = fileSystem.create(watermarkPath, true)) {
+
+                watermarkFile.write((watermark + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        catch (IOException e) {
+
+            logger.error(String.format("IOException occurred while saving incremental state at path %s", statePath));
+            throw new UncheckedIOException(e);
+        }
+
+        logger.info(String.format("Successfully saved incremental state at path %s", statePath));
+    }
+
+    private String getStatePath(String outputPath) {
+
+        return outputPath + "_incremental";
+    }
+
+    private FileSystem getFileSystem() throws IOException {
+
+        return FileSystem.get(stepContext.getSparkSession().sparkContext().hadoopConfiguration());
+    }
+}
@@ -1,111 +1,437 @@
 package it.carloni.luca.lgd.spark.common;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import it.carloni.luca.lgd.parameter.common.AbstractStepValue;
-import org.apache.commons.configuration.ConfigurationException;
-import org.apache.commons.configuration.PropertiesConfiguration;
+import it.carloni.luca.lgd.spark.utils.NativeDateFunctions;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.log4j.Logger;
-import org.apache.spark.sql.Dataset;
-import org.apache.spark.sql.Row;
-import org.apache.spark.sql.SaveMode;
-import org.apache.spark.sql.SparkSession;
+import org.apache.spark.SparkContext;
+import org.apache.spark.sql.*;
+import org.apache.spark.sql.api.java.UDF1;
+import org.apache.spark.sql.execution.QueryExecution;
+import org.apache.spark.sql.execution.debug.package$;
 import org.apache.spark.sql.types.*;
-import it.carloni.luca.lgd.spark.udf.UDFFactory;
-import it.carloni.luca.lgd.spark.udf.UDFName;
-
-import java.util.Map;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.LongAccumulator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.IntStream;
 
 public abstract class AbstractStep<T extends AbstractStepValue> {
 
+    // FORMAT OF DATE COLUMNS WITHIN .csv FILES
+    private static final String DATE_PATTERN = "yyyyMMdd";
+    private static final long METRICS_EVENTS_TIMEOUT_MS = 60000;
+
     private final Logger logger = Logger.getLogger(getClass());
-    private final SparkSession sparkSession = getSparkSessionWithUDFs();
-    private final PropertiesConfiguration properties = new PropertiesConfiguration();
+    private final StepContext stepContext = StepContext.getInstance();
+    private final SparkSession sparkSession = stepContext.getSparkSession();
+    private final DatasetRegistry datasetRegistry = stepContext.getDatasetRegistry();
+    private final Map<String, LongAccumulator> outputRowCounters = new LinkedHashMap<>();
+
+    // PLANS CAPTURED BY THIS RUN ARE STORED WITHIN A DIR NAMED AFTER ITS START TIME
+    private final String plansRunDirName = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss_SSS"));
+    private final Map<String, PlanSummary> planSummaries = new LinkedHashMap<>();
+
+    private final String csvDelimiter;
+    private final String csvFormat;
+    protected final String dataDaPattern;
+    protected final String dataAPattern;
 
-    private String csvDelimiter;
-    private String csvFormat;
-    protected String dataDaPattern;
-    protected String dataAPattern;
+    // WHETHER DATE FUNCTIONS OF StepUtils ARE BUILT FROM CATALYST EXPRESSIONS (date.functions.mode = native) INSTEAD OF UDFs
+    protected final boolean nativeDateFunctions;
 
     protected AbstractStep(){
 
-        try {
+        csvFormat = getValue("csv.format");
+        csvDelimiter = getValue("csv.delimiter");
+        dataDaPattern = getValue("params.datada.pattern");
+        dataAPattern = getValue("params.dataa.pattern");
+        nativeDateFunctions = "native".equalsIgnoreCase(getValue("date.functions.mode"));
+    }
+
+    public String getValue(String key) {
+        return stepContext.getValue(key);
+    }
 
-            properties.load(AbstractStep.class.getClassLoader().getResourceAsStream("lgd.properties"));
+    protected Dataset<Row> readCsvAtPathUsingSchema(String csvFilePath, Map<String, String> pigSchema){
 
-            csvFormat = getValue("csv.format");
-            csvDelimiter = getValue("csv.delimiter");
-            dataDaPattern = getValue("params.datada.pattern");
-            dataAPattern = getValue("params.dataa.pattern");
+        StructType csvStructType = fromPigSchemaToStructType(pigSchema);
+        if (datasetRegistry.isPublished(csvFilePath)) {
 
-            logger.info("csv.format: " + csvFormat);
-            logger.info("csv.delimiter: " + csvDelimiter);
-            logger.info("params.datada.pattern: " + dataDaPattern);
-            logger.info("params.dataa.pattern: " + dataAPattern);
+            logger.info("Reading in-memory dataset published for path " + csvFilePath);
+            return broadcastIfSmall(conformToStructType(datasetRegistry.get(csvFilePath), csvStructType), csvFilePath, null);
         }
-        catch (ConfigurationException e){
 
-            logger.error("Could not load application .properties file");
-            logger.error(e);
+        Dataset<Row> dataframe;
+        StorageFormat storageFormat = getStorageFormat(csvFilePath);
+        String storagePath = getStoragePath(csvFilePath, storageFormat);
+        if (storageFormat == StorageFormat.CSV) {
+
+            dataframe = readCsv(csvFilePath, csvStructType);
+
+        } else {
+
+            logger.info(String.format("Starting to read %s data from path %s", storageFormat.getName(), storagePath));
+
+            dataframe = sparkSession.read()
+                    .format(storageFormat.getName())
+                    .schema(csvStructType)
+                    .load(storagePath);
+
+            logger.info(String.format("Successfully loaded %s data from path %s", storageFormat.getName(), storagePath));
         }
-    }
 
-    public String getValue(String key) {
-        return properties.getString(key);
+        // PARTITION COLUMNS ARE APPENDED BY SPARK AFTER DATA COLUMNS, SO THAT SCHEMA ORDER HAS TO BE RESTORED
+        if (getPartitionColumns(csvFilePath).length > 0) {
+
+            dataframe = dataframe.select(Arrays.stream(csvStructType.fieldNames()).map(functions::col).toArray(Column[]::new));
+        }
+
+        return broadcastIfSmall(dataframe, csvFilePath, storagePath);
     }
 
-    private SparkSession getSparkSessionWithUDFs(){
+    // INPUTS NOT LARGER THAN join.broadcast.threshold BYTES ARE MARKED FOR BROADCAST, SO THAT JOINS WITH THEM DO NOT SHUFFLE THE OTHER SIDE
+    // (SPARK ESTIMATES OF .csv DATA, ESPECIALLY AFTER JOINS AND AGGREGATIONS, OFTEN EXCEED ITS OWN THRESHOLD).
+    // SIZE IS TAKEN FROM SETTING input.size.hint.<dataset key>, IF DEFINED, OR MEASURED ON STORAGE (IF storagePath IS NOT NULL)
+    private Dataset<Row> broadcastIfSmall(Dataset<Row> dataset, String path, String storagePath) {
 
-        SparkSession sparkSession = SparkSession.builder()
-                .master("local")
-                .getOrCreate();
+        long broadcastThreshold = Long.parseLong(getValue("join.broadcast.threshold"));
+        if (broadcastThreshold < 0) {
+
+            return dataset;
+        }
+
+        String sizeHint = getDatasetSetting("input.size.hint", path);
+        long sizeInBytes = sizeHint != null && !sizeHint.trim().isEmpty() ?
+                Long.parseLong(sizeHint.trim()) :
+                storagePath != null ? getSizeOnStorage(storagePath) : -1;
+
+        if (sizeInBytes < 0 || sizeInBytes > broadcastThreshold) {
+
+            return dataset;
+        }
 
-        logger.info("Spark application UI url @ " + sparkSession.sparkContext().uiWebUrl().get());
-        return registerUDFs(sparkSession);
+        logger.info(String.format("Data at path %s (%s bytes) will be broadcast within joins", path, sizeInBytes));
+        return functions.broadcast(dataset);
     }
 
-    private SparkSession registerUDFs(SparkSession sparkSession){
+    // TOTAL SIZE OF FILES AT GIVEN PATH, OR -1 IF IT CANNOT BE DETERMINED
+    private long getSizeOnStorage(String path) {
 
-        sparkSession.udf().register(UDFName.ADD_DURATION.getName(), UDFFactory.buildAddDurationUDF(), DataTypes.StringType);
-        sparkSession.udf().register(UDFName.SUBTRACT_DURATION.getName(), UDFFactory.buildSubstractDurationUDF(), DataTypes.StringType);
-        sparkSession.udf().register(UDFName.CHANGE_DATE_FORMAT.getName(), UDFFactory.buildChangeDateFormatUDF(), DataTypes.StringType);
-        sparkSession.udf().register(UDFName.CHANGE_DATE_FORMAT_FROM_Y2_TO_Y4.getName(), UDFFactory.buildChangeDateFormatFromY2toY4(), DataTypes.StringType);
-        sparkSession.udf().register(UDFName.DAYS_BETWEEN.getName(), UDFFactory.buildDaysBetweenUDF(), DataTypes.LongType);
-        sparkSession.udf().register(UDFName.GREATEST_DATE.getName(), UDFFactory.buildGreatestDateUDF(), DataTypes.StringType);
-        sparkSession.udf().register(UDFName.LEAST_DATE.getName(), UDFFactory.buildLeastDateUDF(), DataTypes.StringType);
+        Path storagePath = new Path(path);
+        try {
+
+            return storagePath.getFileSystem(sparkSession.sparkContext().hadoopConfiguration())
+                    .getContentSummary(storagePath)
+                    .getLength();
+        }
+
+        catch (IOException e) {
 
-        return sparkSession;
+            logger.warn(String.format("Unable to get size of data at path %s (%s)", path, e.getMessage()));
+            return -1;
+        }
     }
 
-    protected Dataset<Row> readCsvAtPathUsingSchema(String csvFilePath, Map<String, String> pigSchema){
+    // DATE COLUMNS ARE READ AS STRINGS AND THEN PARSED AS yyyyMMdd, SO THAT AN INVALID DATE LEADS TO A null VALUE
+    // (RATHER THAN TO A WHOLE ROW OF nulls, AS IT WOULD HAPPEN WITH A DateType FIELD READ IN PERMISSIVE MODE).
+    // DATE PARTITION DIRS ARE NAMED AS dt_riferimento=2019-01-31 BY SPARK, SO THAT DASHES ARE REMOVED BEFORE PARSING
+    protected Dataset<Row> readCsv(String csvFilePath, StructType csvStructType) {
 
         logger.info("Starting to read data from path " + csvFilePath);
 
-        StructType csvStructType = fromPigSchemaToStructType(pigSchema);
+        StructType readStructType = new StructType(Arrays.stream(csvStructType.fields())
+                .map(structField -> structField.dataType() == DataTypes.DateType ?
+                        new StructField(structField.name(), DataTypes.StringType, true, Metadata.empty()) :
+                        structField)
+                .toArray(StructField[]::new));
+
         Dataset<Row> csvDataframe = sparkSession.read()
                 .format(csvFormat)
                 .option("sep", csvDelimiter)
-                .schema(csvStructType)
+                .schema(readStructType)
                 .csv(csvFilePath);
 
+        if (!readStructType.equals(csvStructType)) {
+
+            List<String> partitionColumns = Arrays.asList(getPartitionColumns(csvFilePath));
+            csvDataframe = csvDataframe.select(Arrays.stream(csvStructType.fields())
+                    .map(structField -> {
+
+                        Column column = functions.col(structField.name());
+                        if (structField.dataType() != DataTypes.DateType) {
+
+                            return column;
+                        }
+
+                        Column y4m2d2Column = partitionColumns.contains(structField.name()) ? functions.regexp_replace(column, "-", "") : column;
+                        return NativeDateFunctions.toDate(y4m2d2Column).as(structField.name());
+                    })
+                    .toArray(Column[]::new));
+        }
+
         logger.info("Successfully loaded data from path " + csvFilePath);
         return csvDataframe;
     }
 
     protected void writeDatasetAsCsvAtPath(Dataset<Row> dataset, String path){
 
-        logger.info("Starting to write data at path " + path);
+        capturePlans(dataset, path);
+        if (datasetRegistry.isHandoffPath(path)) {
+
+            StorageLevel storageLevel = StorageLevel.fromString(getValue("pipeline.handoff.storage.level"));
+            dataset = datasetRegistry.publish(path, dataset, storageLevel);
+
+            // DATASETS HANDED OFF TO DOWNSTREAM STEPS ARE WRITTEN ANYWAY, UNLESS EXPLICITLY DECLARED AS INTERMEDIATE ONES
+            if (Boolean.parseBoolean(getDatasetSetting("pipeline.handoff.skip.write", path))) {
+
+                logger.info("Skipping write of intermediate in-memory dataset for path " + path);
+                return;
+            }
+        }
+
+        String[] partitionColumns = getPartitionColumns(path);
+        dataset = repartitionForOutput(dataset, path, partitionColumns);
+        StorageFormat storageFormat = getStorageFormat(path);
+        if (storageFormat == StorageFormat.CSV) {
+
+            boolean mergeOutput = Boolean.parseBoolean(getDatasetSetting("output.merge", path));
+            if (mergeOutput && partitionColumns.length > 0) {
+
+                logger.warn(String.format("Partitioned data at path %s cannot be merged into a single file. Skipping merge", path));
+                mergeOutput = false;
+            }
+
+            // WHEN MERGING, HEADER IS WRITTEN ONLY ONCE WITHIN THE MERGED FILE
+            String csvPath = mergeOutput ? path + "_tmp" : path;
+            writeCsv(dataset, csvPath, !mergeOutput, partitionColumns);
+            if (mergeOutput) {
+
+                String header = String.join(csvDelimiter, dataset.columns());
+                mergeCsvPartFiles(csvPath, path, header);
+            }
+
+        } else writeDatasetAtPath(dataset, getStoragePath(path, storageFormat), storageFormat, partitionColumns);
+    }
+
+    /***
+     * Writes several datasets derived from a shared base, which is persisted (at storage level output.shared.base.storage.level)
+     * so that it is computed only once for all of them, and unpersisted afterwards. With storage level NONE, base is neither persisted nor unpersisted
+     * @param base: shared base dataset
+     * @param outputDatasets: datasets derived from base, by output path (written in iteration order)
+     */
+
+    protected void writeDatasetsFromSharedBase(Dataset<Row> base, Map<String, Dataset<Row>> outputDatasets) {
 
-        dataset.coalesce(1)
-                .write()
-				.format(csvFormat)
+        StorageLevel storageLevel = StorageLevel.fromString(getValue("output.shared.base.storage.level"));
+        if (storageLevel.equals(StorageLevel.NONE())) {
+
+            // persist(NONE) WOULD STILL REGISTER base WITHIN THE CACHE MANAGER, HENCE IT IS NOT CALLED AT ALL
+            logger.info(String.format("Shared base of %s output(s) will be computed for each of them (storage level: NONE)", outputDatasets.size()));
+            outputDatasets.forEach((path, dataset) -> writeDatasetAsCsvAtPath(dataset, path));
+            return;
+        }
+
+        logger.info(String.format("Persisting shared base of %s output(s) (storage level: %s)", outputDatasets.size(), storageLevel.description()));
+        base.persist(storageLevel);
+        try {
+
+            outputDatasets.forEach((path, dataset) -> writeDatasetAsCsvAtPath(dataset, path));
+        }
+
+        finally {
+
+            base.unpersist();
+        }
+    }
+
+    protected void writeCsv(Dataset<Row> dataset, String csvPath, boolean header, String... partitionColumns) {
+
+        logger.info(String.format("Starting to write data at path %s (partition columns: %s)", csvPath, Arrays.toString(partitionColumns)));
+
+        countingOutputRows(dataset, csvPath).write()
+                .format(csvFormat)
                 .option("sep", csvDelimiter)
-                .option("header", true)
+                .option("header", header)
+                .option("dateFormat", DATE_PATTERN)
+                .partitionBy(partitionColumns)
                 .mode(SaveMode.Overwrite)
-                .csv(path);
+                .csv(csvPath);
+
+        logger.info("Successfully written data at path " + csvPath);
+    }
+
+    // output.partitions > 0 REPARTITIONS (WITHOUT REDUCING UPSTREAM PARALLELISM AS A coalesce WOULD DO),
+    // OTHERWISE THE NATURAL PARTITIONING OF THE DATASET IS KEPT.
+    // PARTITIONED DATA ARE REPARTITIONED BY PARTITION COLUMNS, SO THAT EACH PARTITION DIR DOES NOT GET A FILE FROM EACH TASK
+    protected Dataset<Row> repartitionForOutput(Dataset<Row> dataset, String path, String[] partitionColumns) {
+
+        int outputPartitions = Integer.parseInt(getDatasetSetting("output.partitions", path));
+        Column[] partitionCols = Arrays.stream(partitionColumns).map(functions::col).toArray(Column[]::new);
+        if (outputPartitions > 0) {
+
+            logger.info(String.format("Repartitioning data to be written at path %s into %s partition(s)", path, outputPartitions));
+            return partitionCols.length > 0 ? dataset.repartition(outputPartitions, partitionCols) : dataset.repartition(outputPartitions);
+        }
+
+        return partitionCols.length > 0 ? dataset.repartition(partitionCols) : dataset;
+    }
+
+    // MERGES PART FILES WRITTEN AT partFilesPath INTO A SINGLE FILE (<path>/part-00000.csv), THEN DELETES partFilesPath
+    private void mergeCsvPartFiles(String partFilesPath, String path, String header) {
+
+        logger.info(String.format("Starting to merge part files at path %s into a single file at path %s", partFilesPath, path));
+
+        Configuration hadoopConfiguration = sparkSession.sparkContext().hadoopConfiguration();
+        Path partFilesDir = new Path(partFilesPath);
+        Path mergedDir = new Path(path);
+
+        try {
+
+            FileSystem fileSystem = partFilesDir.getFileSystem(hadoopConfiguration);
+            FileStatus[] partFiles = fileSystem.listStatus(partFilesDir, partFile -> partFile.getName().startsWith("part-"));
+            Arrays.sort(partFiles, Comparator.comparing(partFile -> partFile.getPath().getName()));
+
+            fileSystem.delete(mergedDir, true);
+            fileSystem.mkdirs(mergedDir);
+            try (FSDataOutputStream mergedFile = fileSystem.create(new Path(mergedDir, "part-00000.csv"))) {
+
+                mergedFile.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+                for (FileStatus partFile : partFiles) {
+
+                    try (FSDataInputStream partFileStream = fileSystem.open(partFile.getPath())) {
+
+                        IOUtils.copyBytes(partFileStream, mergedFile, hadoopConfiguration, false);
+                    }
+                }
+            }
+
+            fileSystem.create(new Path(mergedDir, "_SUCCESS")).close();
+            fileSystem.delete(partFilesDir, true);
+        }
+
+        catch (IOException e) {
+
+            logger.error(String.format("IOException occurred while merging part files at path %s", partFilesPath));
+            throw new UncheckedIOException(e);
+        }
+
+        logger.info(String.format("Successfully merged part files into path %s", path));
+    }
+
+    protected void writeDatasetAtPath(Dataset<Row> dataset, String path, StorageFormat storageFormat, String... partitionColumns) {
+
+        String compression = getValue("storage.compression");
+        logger.info(String.format("Starting to write %s data (compression: %s, partition columns: %s) at path %s",
+                storageFormat.getName(), compression, Arrays.toString(partitionColumns), path));
+
+        countingOutputRows(dataset, path).write()
+                .format(storageFormat.getName())
+                .option("compression", compression)
+                .partitionBy(partitionColumns)
+                .mode(SaveMode.Overwrite)
+                .save(path);
+
+        logger.info(String.format("Successfully written %s data at path %s", storageFormat.getName(), path));
+    }
+
+    // VALUE OF SETTING <settingPrefix>.<dataset key> FOR THE DATASET AT GIVEN PATH, OR OF <settingPrefix> IF NOT DEFINED
+    protected String getDatasetSetting(String settingPrefix, String path) {
+
+        return stepContext.getKeysForPath(path)
+                .stream()
+                .map(key -> getValue(settingPrefix + "." + key))
+                .filter(value -> value != null && !value.trim().isEmpty())
+                .findFirst()
+                .orElse(getValue(settingPrefix));
+    }
+
+    // VALUES OF LIST SETTING <settingPrefix>.<dataset key> FOR THE DATASET AT GIVEN PATH, OR OF <settingPrefix> IF NOT DEFINED
+    protected String[] getDatasetSettingValues(String settingPrefix, String path) {
+
+        return stepContext.getKeysForPath(path)
+                .stream()
+                .map(key -> stepContext.getValues(settingPrefix + "." + key))
+                .filter(values -> values.length > 0)
+                .findFirst()
+                .orElse(stepContext.getValues(settingPrefix));
+    }
 
-        logger.info("Successfully written data at path " + path);
+    // COLUMNS BY WHICH DATA AT GIVEN PATH ARE PARTITIONED (e.g. dt_riferimento=20190131/cd_istituto=01234/part-*)
+    protected String[] getPartitionColumns(String path) {
+
+        return getDatasetSettingValues("output.partition.columns", path);
+    }
+
+    protected StorageFormat getStorageFormat(String path) {
+
+        return StorageFormat.fromName(getDatasetSetting("storage.format", path));
+    }
+
+    // COLUMNAR DATA ARE STORED NEXT TO THE .csv ONES (e.g. tlbuact.csv -> tlbuact.parquet)
+    protected String getStoragePath(String path, StorageFormat storageFormat) {
+
+        if (storageFormat == StorageFormat.CSV) {
+
+            return path;
+        }
+
+        String pathWithoutExtension = path.endsWith(".csv") ? path.substring(0, path.length() - ".csv".length()) : path;
+        return pathWithoutExtension + "." + storageFormat.getName();
     }
 
-    private StructType fromPigSchemaToStructType(Map<String, String> pigSchema){
+    // MIMICS A .csv ROUND-TRIP: COLUMNS ARE MATCHED BY POSITION, THEN RENAMED AND CASTED ACCORDING TO THE GIVEN SCHEMA
+    // (DATES ARE CONVERTED FROM AND TO yyyyMMdd VALUES, AS THEY ARE WITHIN .csv FILES)
+    private Dataset<Row> conformToStructType(Dataset<Row> dataset, StructType structType) {
+
+        int numberOfColumns = dataset.columns().length;
+        String[] positionalColumnNames = IntStream.range(0, numberOfColumns)
+                .mapToObj(i -> "_c" + i)
+                .toArray(String[]::new);
+
+        Column[] conformedColumns = IntStream.range(0, structType.size())
+                .mapToObj(i -> {
+
+                    StructField structField = structType.fields()[i];
+                    if (i >= numberOfColumns) {
+
+                        return functions.lit(null).cast(structField.dataType()).as(structField.name());
+                    }
+
+                    Column column = functions.col("_c" + i);
+                    DataType dataType = dataset.schema().fields()[i].dataType();
+                    if (structField.dataType() == DataTypes.DateType && dataType != DataTypes.DateType) {
+
+                        column = NativeDateFunctions.toDate(column);
+
+                    } else if (structField.dataType() != DataTypes.DateType && dataType == DataTypes.DateType) {
+
+                        column = NativeDateFunctions.toY4M2D2String(column);
+                    }
+
+                    return column.cast(structField.dataType()).as(structField.name());
+                })
+                .toArray(Column[]::new);
+
+        return dataset.toDF(positionalColumnNames).select(conformedColumns);
+    }
+
+    protected StructType fromPigSchemaToStructType(Map<String, String> pigSchema){
 
         StructField[] structFields = pigSchema.entrySet()
                 .stream()
@@ -127,9 +453,234 @@ public abstract class AbstractStep<T extends AbstractStepValue> {
 
             case "int": return DataTypes.IntegerType;
             case "double": return DataTypes.DoubleType;
+            case "date": return DataTypes.DateType;
             default: return DataTypes.StringType;
         }
     }
 
+    /***
+     * Runs the step and, if metrics.enabled is true, records its metrics (see StepMetricsListener), which are written as
+     * <metrics.output.dir>/<step>.json (run summary) and <metrics.output.dir>/<step>.prom (Prometheus text format)
+     * @param t: step values
+     */
+
+    public void runWithMetrics(T t) {
+
+        if (!stepContext.isMetricsEnabled()) {
+
+            run(t);
+            return;
+        }
+
+        String stepName = getClass().getSimpleName();
+        String runId = stepName + "-" + UUID.randomUUID();
+        SparkContext sparkContext = sparkSession.sparkContext();
+        StepMetricsListener stepMetricsListener = stepContext.getStepMetricsListener();
+
+        // JOBS ARE ATTRIBUTED TO THIS RUN BY MEANS OF A THREAD-LOCAL PROPERTY
+        String previousRunId = sparkContext.getLocalProperty(StepMetricsListener.RUN_ID_PROPERTY);
+        stepMetricsListener.startRun(runId, stepName);
+        sparkContext.setLocalProperty(StepMetricsListener.RUN_ID_PROPERTY, runId);
+
+        LocalDateTime startTime = LocalDateTime.now();
+        long startNanoTime = System.nanoTime();
+        String error = null;
+        try {
+
+            run(t);
+        }
+
+        // CHECKED EXCEPTIONS THROWN BY SCALA CODE (e.g. AnalysisException) AND ERRORS ALSO MAKE THE RUN FAIL
+        catch (Throwable e) {
+
+            error = e.toString();
+            throw e;
+        }
+
+        finally {
+
+            long durationMs = (System.nanoTime() - startNanoTime) / 1000000;
+            sparkContext.setLocalProperty(StepMetricsListener.RUN_ID_PROPERTY, previousRunId);
+
+            // EVENTS ARE DELIVERED TO LISTENERS ASYNCHRONOUSLY (listenerBus IS NOT PART OF SPARK PUBLIC API, BUT IT IS VISIBLE FROM JAVA)
+            try {
+
+                sparkContext.listenerBus().waitUntilEmpty(METRICS_EVENTS_TIMEOUT_MS);
+            }
+
+            catch (TimeoutException e) {
+
+                logger.warn(String.format("Not all Spark events have been delivered within %s ms. Metrics of step %s may be incomplete", METRICS_EVENTS_TIMEOUT_MS, stepName));
+            }
+
+            Map<String, Long> outputRows = new LinkedHashMap<>();
+            outputRowCounters.forEach((path, rows) -> outputRows.put(path, rows.value()));
+            writeStepMetrics(new StepMetrics(stepName, runId, startTime.toString(), durationMs, error == null, error,
+                    stepMetricsListener.finishRun(runId), outputRows));
+        }
+    }
+
+    /***
+     * If plans.capture.enabled is true, writes logical (parsed, analyzed, optimized) and physical plans of given dataset, along with
+     * its generated code, as <plans.output.dir>/<step>/<run start time>/<dataset key>.txt, and the summaries of physical plans of
+     * all datasets written so far by the run as plan_summary.json within the same dir.
+     * If plans.guard.mode is check, the run fails when the physical plan has more Exchange or scan nodes than the baseline one
+     * (stored within <plans.baseline.dir>/<step>.json), while if it is update the plan is stored as the baseline one
+     * @param dataset: dataset to be written
+     * @param path: path of the dataset
+     */
+
+    private void capturePlans(Dataset<Row> dataset, String path) {
+
+        boolean captureEnabled = Boolean.parseBoolean(getValue("plans.capture.enabled"));
+        String guardMode = getValue("plans.guard.mode").trim().toLowerCase();
+        if (!captureEnabled && guardMode.equals("none")) {
+
+            return;
+        }
+
+        String stepName = getClass().getSimpleName();
+        String datasetName = stepContext.getKeysForPath(path).stream().findFirst().orElse(new Path(path).getName());
+        QueryExecution queryExecution = dataset.queryExecution();
+        PlanSummary planSummary = PlanSummary.of(queryExecution.executedPlan());
+        planSummaries.put(datasetName, planSummary);
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        Configuration hadoopConfiguration = sparkSession.sparkContext().hadoopConfiguration();
+        try {
+
+            if (captureEnabled) {
+
+                Path plansRunDir = new Path(new Path(getValue("plans.output.dir"), stepName), plansRunDirName);
+                FileSystem fileSystem = plansRunDir.getFileSystem(hadoopConfiguration);
+                writeTextFile(fileSystem, new Path(plansRunDir, datasetName + ".txt"), String.format("%s\n\n== Generated Code ==\n%s",
+                        queryExecution, package$.MODULE$.codegenString(queryExecution.executedPlan())));
+                writeTextFile(fileSystem, new Path(plansRunDir, "plan_summary.json"), objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(planSummaries));
+                logger.info(String.format("Written plans of dataset %s (%s Exchange node(s), %s scan node(s)) at path %s",
+                        datasetName, planSummary.getExchanges(), planSummary.getScans(), plansRunDir));
+            }
+
+            if (guardMode.equals("none")) {
+
+                return;
+            }
+
+            // LOCAL BASELINES (e.g. THE ONES WITHIN src/jmh/plans) ARE READ AND WRITTEN WITHOUT .crc CHECKSUM FILES
+            Path baselinePath = new Path(getValue("plans.baseline.dir"), stepName + ".json");
+            FileSystem fileSystem = baselinePath.getFileSystem(hadoopConfiguration);
+            if (fileSystem instanceof LocalFileSystem) {
+
+                fileSystem = ((LocalFileSystem) fileSystem).getRawFileSystem();
+            }
+
+            ObjectNode baseline;
+            if (fileSystem.exists(baselinePath)) {
+
+                try (FSDataInputStream baselineStream = fileSystem.open(baselinePath)) {
+
+                    baseline = (ObjectNode) objectMapper.readTree(baselineStream);
+                }
+
+            } else baseline = objectMapper.createObjectNode();
+
+            if (guardMode.equals("update")) {
+
+                baseline.set(datasetName, objectMapper.valueToTree(planSummary));
+                writeTextFile(fileSystem, baselinePath, objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(baseline));
+                logger.info(String.format("Updated baseline plan of dataset %s at path %s", datasetName, baselinePath));
+
+            } else if (!baseline.has(datasetName)) {
+
+                logger.warn(String.format("No baseline plan of dataset %s at path %s. Skipping plan check", datasetName, baselinePath));
+
+            } else {
+
+                List<String> regressions = planSummary.getRegressions(PlanSummary.fromJson(baseline.get(datasetName)));
+                if (!regressions.isEmpty()) {
+
+                    throw new IllegalStateException(String.format("Physical plan of dataset %s of step %s regressed with respect to baseline %s: %s",
+                            datasetName, stepName, baselinePath, String.join(", ", regressions)));
+                }
+
+                logger.info(String.format("Physical plan of dataset %s has no more Exchange or scan nodes than its baseline", datasetName));
+            }
+        }
+
+        catch (IOException e) {
+
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // WHEN METRICS ARE ENABLED, ROWS WRITTEN AT GIVEN PATH ARE COUNTED BY AN ACCUMULATOR WITHIN A FILTER, AS SPARK 2.2 SQL WRITES
+    // DO NOT REPORT outputMetrics.recordsWritten. THE FILTER IS NON-DETERMINISTIC (DUE TO monotonically_increasing_id), SO THAT IT IS NOT
+    // PUSHED DOWN NOR MERGED WITH OTHER FILTERS, BUT IT MAKES THE WRITTEN PLAN NON-DETERMINISTIC (CAPTURED PLANS DO NOT INCLUDE IT).
+    // COUNTS ARE APPROXIMATE: ROWS OF FAILED WRITES, AND ROWS OF RECOMPUTED OR SPECULATIVE TASKS WHOSE UPDATES SPARK MERGES, MAY BE COUNTED TOO
+    private Dataset<Row> countingOutputRows(Dataset<Row> dataset, String path) {
+
+        if (!stepContext.isMetricsEnabled()) {
+
+            return dataset;
+        }
+
+        String runId = sparkSession.sparkContext().getLocalProperty(StepMetricsListener.RUN_ID_PROPERTY);
+        if (runId != null) {
+
+            stepContext.getStepMetricsListener().addCachedScans(runId, dataset.queryExecution().executedPlan());
+        }
+
+        LongAccumulator rows = outputRowCounters.computeIfAbsent(StepMetricsListener.normalizePath(path), key -> sparkSession.sparkContext().longAccumulator());
+        String udfName = "lgd_output_rows_" + rows.id();
+        sparkSession.udf().register(udfName, (UDF1<Long, Boolean>) rowId -> {
+
+            rows.add(1);
+            return true;
+
+        }, DataTypes.BooleanType);
+
+        return dataset.filter(functions.callUDF(udfName, functions.monotonically_increasing_id()));
+    }
+
+    private void writeStepMetrics(StepMetrics stepMetrics) {
+
+        String metricsDir = getValue("metrics.output.dir");
+        logger.info(String.format("Step %s %s in %s ms (jobs: %s, input rows: %s, output rows: %s, shuffle write bytes: %s, spill bytes: %s, max task skew: %.2f)",
+                stepMetrics.getStep(), stepMetrics.isSucceeded() ? "completed" : "failed", stepMetrics.getDurationMs(), stepMetrics.getJobs(),
+                stepMetrics.getInputRows().values().stream().mapToLong(Long::longValue).sum(),
+                stepMetrics.getOutputRows().values().stream().mapToLong(Long::longValue).sum(),
+                stepMetrics.getShuffleWriteBytes(), stepMetrics.getMemorySpillBytes() + stepMetrics.getDiskSpillBytes(), stepMetrics.getMaxTaskSkew()));
+
+        try {
+
+            Path jsonPath = new Path(metricsDir, stepMetrics.getStep() + ".json");
+            Path prometheusPath = new Path(metricsDir, stepMetrics.getStep() + ".prom");
+            Path prometheusTmpPath = new Path(metricsDir, stepMetrics.getStep() + ".prom.tmp");
+            FileSystem fileSystem = jsonPath.getFileSystem(sparkSession.sparkContext().hadoopConfiguration());
+
+            writeTextFile(fileSystem, jsonPath, new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(stepMetrics));
+
+            // .prom FILE IS REPLACED ONLY ONCE COMPLETE, AS IT MAY BE READ AT ANY TIME (e.g. BY node_exporter TEXTFILE COLLECTOR)
+            writeTextFile(fileSystem, prometheusTmpPath, stepMetrics.toPrometheusText());
+            fileSystem.delete(prometheusPath, false);
+            fileSystem.rename(prometheusTmpPath, prometheusPath);
+
+            logger.info(String.format("Successfully written metrics of step %s at path %s", stepMetrics.getStep(), metricsDir));
+        }
+
+        catch (IOException e) {
+
+            // METRICS ARE NOT WORTH FAILING THE STEP
+            logger.warn(String.format("Unable to write metrics of step %s at path %s (%s)", stepMetrics.getStep(), metricsDir, e.getMessage()));
+        }
+    }
+
+    protected void writeTextFile(FileSystem fileSystem, Path path, String text) throws IOException {
+
+        try (FSDataOutputStream outputStream = fileSystem.create(path, true)) {
+
+            outputStream.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
     public abstract void run(T t);
 }
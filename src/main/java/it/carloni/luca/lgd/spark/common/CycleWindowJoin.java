@@ -0,0 +1,80 @@
+package it.carloni.luca.lgd.spark.common;
+
+import lombok.Getter;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.functions;
+
+import static it.carloni.luca.lgd.spark.utils.NativeDateFunctions.addMonthsToDate;
+import static it.carloni.luca.lgd.spark.utils.NativeDateFunctions.toMonthCount;
+
+/***
+ * Join between a monthly table (e.g. tlbuact, tlburtt, tlbgaran) and cicli_ndg by (cd_istituto, ndg) = (codicebanca_collegato, ndg_collegato),
+ * keeping only the records whose reference date falls within the cycle window, i.e.
+ * dt_riferimento >= datainiziodef - numero_mesi_1 AND yyyyMM(dt_riferimento) <= yyyyMM(LeastDate(datafinedef - 1 month, data_a) + numero_mesi_2).
+ * Principal (cd_collegamento IS NULL) and linked cycles are joined together, so that the monthly table is shuffled only once
+ * (heavy keys of the monthly table can be handled by means of settings join.skew.*, see SkewJoin)
+ */
+
+public class CycleWindowJoin {
+
+    private static final String WINDOW_START = "window_start";
+    private static final String WINDOW_END_MONTH = "window_end_month";
+
+    private final String joinName;
+
+    // cicli_ndg WITH WINDOW BOUNDS, COMPUTED ONCE PER CYCLE
+    @Getter private final Dataset<Row> cycles;
+
+    public CycleWindowJoin(String joinName, Dataset<Row> cicliNdg, Column dataACol, int numeroMesi1, int numeroMesi2) {
+
+        this.joinName = joinName;
+
+        Column windowStartCol = addMonthsToDate(cicliNdg.col("datainiziodef"), -numeroMesi1);
+
+        // MONTH SHIFTS DO NOT DEPEND ON THE DAY, HENCE THE WINDOW END IS COMPUTED ON MONTH COUNTS
+        // (NESTING DATE FUNCTIONS WOULD LEAD TO EXPRESSIONS TOO LARGE FOR WHOLE-STAGE CODEGEN)
+        Column dataFineDefCol = cicliNdg.col("datafinedef");
+        Column windowEndMonthCol = functions.when(dataFineDefCol.isNotNull().and(dataACol.isNotNull()),
+                functions.least(toMonthCount(dataFineDefCol).minus(1), toMonthCount(dataACol)).plus(numeroMesi2));
+
+        cycles = cicliNdg
+                .withColumn(WINDOW_START, windowStartCol)
+                .withColumn(WINDOW_END_MONTH, windowEndMonthCol);
+    }
+
+    /***
+     * Joins principal and linked cycles using the same window
+     * @param dataset: monthly table (with columns cd_istituto and ndg)
+     * @param dateColumnName: reference date column of dataset (DateType)
+     * @return: joined dataset, whose columns are to be selected by means of dataset.col(...) and getCycles().col(...)
+     */
+
+    public Dataset<Row> join(Dataset<Row> dataset, String dateColumnName) {
+
+        return join(dataset, dateColumnName, null);
+    }
+
+    /***
+     * Joins principal cycles using the window and linked cycles using the given condition
+     * @param dataset: monthly table (with columns cd_istituto and ndg)
+     * @param dateColumnName: reference date column of dataset (DateType)
+     * @param linkedCycleConditionCol: condition for linked cycles (null for using the window)
+     * @return: joined dataset, whose columns are to be selected by means of dataset.col(...) and getCycles().col(...)
+     */
+
+    public Dataset<Row> join(Dataset<Row> dataset, String dateColumnName, Column linkedCycleConditionCol) {
+
+        Column dateCol = dataset.col(dateColumnName);
+        Column windowConditionCol = dateCol.geq(cycles.col(WINDOW_START))
+                .and(toMonthCount(dateCol).leq(cycles.col(WINDOW_END_MONTH)));
+
+        Column filterConditionCol = linkedCycleConditionCol == null ?
+                windowConditionCol :
+                functions.when(cycles.col("cd_collegamento").isNull(), windowConditionCol).otherwise(linkedCycleConditionCol);
+
+        SkewJoin skewJoin = new SkewJoin(joinName, new String[] {"cd_istituto", "ndg"}, new String[] {"codicebanca_collegato", "ndg_collegato"});
+        return skewJoin.join(dataset, cycles, "inner").filter(filterConditionCol);
+    }
+}
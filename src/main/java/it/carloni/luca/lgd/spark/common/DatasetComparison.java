@@ -0,0 +1,213 @@
+package it.carloni.luca.lgd.spark.common;
+
+import it.carloni.luca.lgd.spark.utils.NativeDateFunctions;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.functions;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/***
+ * Comparison of an expected dataset (e.g. written by a Pig script) and an actual one (e.g. written by the related step) by key,
+ * which scales with their size. Values of both datasets are compared as canonical strings (dates as yyyyMMdd, numbers by value if requested).
+ * Both datasets are hash-partitioned by key (into a given number of partitions) and grouped by key within their partitions,
+ * then fully outer joined without further shuffles. Mismatches are computed as a dataset (never collected to the driver), with a row for
+ * each key missing from the actual dataset (missing) or from the expected one (extra), with a different number of rows (row_count)
+ * or duplicated (duplicate_key), and for each column whose value differs (different).
+ * Per-column checksums (order-independent sums of value hashes) tell at a glance which columns differ.
+ * When no key columns are provided, whole rows are compared as a multiset (only missing, extra and row_count mismatches arise)
+ */
+
+public class DatasetComparison {
+
+    public static final String MISMATCH_COLUMN = "mismatch";
+    public static final String COLUMN_COLUMN = "column";
+    public static final String EXPECTED_COLUMN = "expected";
+    public static final String ACTUAL_COLUMN = "actual";
+    public static final String ROWS_CHECKSUM = "rows";
+
+    private static final String KEY_COLUMN = "parity_key";
+    private static final String ROWS_COLUMN = "parity_rows";
+    private static final String EXPECTED_PREFIX = "expected_";
+    private static final String ACTUAL_PREFIX = "actual_";
+    private static final String KEY_SEPARATOR = "\u0001";
+    private static final String NULL_KEY_VALUE = "\u0000";
+    private static final String ROW_TEXT_SEPARATOR = "|";
+
+    private final String[] keyColumns;
+    private final int partitions;
+    private final boolean normalizeNumbers;
+
+    public DatasetComparison(String[] keyColumns, int partitions, boolean normalizeNumbers) {
+
+        this.keyColumns = keyColumns;
+        this.partitions = partitions;
+        this.normalizeNumbers = normalizeNumbers;
+    }
+
+    // COLUMNS COMPARED BY BOTH getMismatches AND getChecksums
+    public static List<String> getCommonColumns(Dataset<Row> expected, Dataset<Row> actual) {
+
+        List<String> actualColumns = Arrays.asList(actual.columns());
+        return Arrays.stream(expected.columns()).filter(actualColumns::contains).collect(Collectors.toList());
+    }
+
+    /***
+     * Values of given columns as canonical strings: trimmed (empty strings as nulls), dates as yyyyMMdd and,
+     * if numbers are normalized, numbers without trailing zeros nor exponent (e.g. 1.50 and 1.5E0 as 1.5)
+     * @param dataset: dataset
+     * @param columns: columns to be selected
+     * @return: dataset with given columns as canonical strings
+     */
+
+    public Dataset<Row> canonicalize(Dataset<Row> dataset, List<String> columns) {
+
+        Map<String, DataType> dataTypes = Arrays.stream(dataset.schema().fields()).collect(Collectors.toMap(StructField::name, StructField::dataType));
+        return dataset.select(columns.stream()
+                .map(column -> {
+
+                    Column value = dataTypes.get(column) == DataTypes.DateType ?
+                            NativeDateFunctions.toY4M2D2String(functions.col(column)) :
+                            functions.trim(functions.col(column).cast(DataTypes.StringType));
+
+                    value = functions.when(value.notEqual(""), value);
+                    if (normalizeNumbers) {
+
+                        // VALUES THAT ARE NOT NUMBERS ARE CASTED TO null
+                        Column decimalValue = value.cast(DataTypes.createDecimalType(38, 10));
+                        value = functions.when(decimalValue.isNotNull(), functions.regexp_replace(decimalValue.cast(DataTypes.StringType), "\\.?0+$", ""))
+                                .otherwise(value);
+                    }
+
+                    return value.as(column);
+                })
+                .toArray(Column[]::new));
+    }
+
+    /***
+     * Mismatches between given datasets, on their common columns
+     * @param expected: expected dataset
+     * @param actual: actual dataset
+     * @return: dataset with key columns (if any), mismatch, column (null for mismatches of whole rows), expected and actual
+     * (values of the column, whole rows for missing and extra rows, numbers of rows for row_count and duplicate_key)
+     */
+
+    public Dataset<Row> getMismatches(Dataset<Row> expected, Dataset<Row> actual) {
+
+        List<String> columns = getCommonColumns(expected, actual);
+        List<String> matchingColumns = keyColumns.length > 0 ? Arrays.asList(keyColumns) : columns;
+        List<String> valueColumns = columns.stream().filter(column -> !matchingColumns.contains(column)).collect(Collectors.toList());
+
+        Dataset<Row> expectedByKey = groupByKey(canonicalize(expected, columns), matchingColumns, EXPECTED_PREFIX);
+        Dataset<Row> actualByKey = groupByKey(canonicalize(actual, columns), matchingColumns, ACTUAL_PREFIX);
+
+        // BOTH SIDES ARE ALREADY PARTITIONED BY KEY, HENCE THE JOIN DOES NOT SHUFFLE THEM AGAIN
+        Dataset<Row> joined = expectedByKey.join(actualByKey, expectedByKey.col(EXPECTED_PREFIX + KEY_COLUMN).equalTo(actualByKey.col(ACTUAL_PREFIX + KEY_COLUMN)), "full_outer");
+
+        Column expectedRows = functions.col(EXPECTED_PREFIX + ROWS_COLUMN);
+        Column actualRows = functions.col(ACTUAL_PREFIX + ROWS_COLUMN);
+        Column bothSides = expectedRows.isNotNull().and(actualRows.isNotNull());
+        List<Column> candidateMismatches = new ArrayList<>();
+        candidateMismatches.add(functions.when(actualRows.isNull(), mismatch("missing", null, rowText(columns, EXPECTED_PREFIX), null)));
+        candidateMismatches.add(functions.when(expectedRows.isNull(), mismatch("extra", null, null, rowText(columns, ACTUAL_PREFIX))));
+        if (keyColumns.length > 0) {
+
+            // VALUES OF DUPLICATED KEYS CANNOT BE MATCHED, HENCE THEY ARE NOT COMPARED
+            Column uniqueKey = expectedRows.equalTo(1).and(actualRows.equalTo(1));
+            candidateMismatches.add(functions.when(bothSides.and(functions.not(uniqueKey)),
+                    mismatch("duplicate_key", null, expectedRows.cast(DataTypes.StringType), actualRows.cast(DataTypes.StringType))));
+
+            valueColumns.forEach(column -> {
+
+                Column expectedValue = functions.col(EXPECTED_PREFIX + column);
+                Column actualValue = functions.col(ACTUAL_PREFIX + column);
+                candidateMismatches.add(functions.when(bothSides.and(uniqueKey).and(functions.not(expectedValue.eqNullSafe(actualValue))),
+                        mismatch("different", column, expectedValue, actualValue)));
+            });
+
+        } else candidateMismatches.add(functions.when(bothSides.and(expectedRows.notEqual(actualRows)),
+                mismatch("row_count", null, expectedRows.cast(DataTypes.StringType), actualRows.cast(DataTypes.StringType))));
+
+        Column[] outputColumns = Stream.concat(
+                Arrays.stream(keyColumns).map(column -> functions.coalesce(functions.col(EXPECTED_PREFIX + column), functions.col(ACTUAL_PREFIX + column)).as(column)),
+                Stream.of(MISMATCH_COLUMN, COLUMN_COLUMN, EXPECTED_COLUMN, ACTUAL_COLUMN).map(field -> functions.col("parity_mismatch." + field).as(field)))
+                .toArray(Column[]::new);
+
+        return joined
+                .select(functions.col("*"), functions.explode(functions.array(candidateMismatches.toArray(new Column[0]))).as("parity_mismatch"))
+                .filter(functions.col("parity_mismatch").isNotNull())
+                .select(outputColumns);
+    }
+
+    // ROWS ARE GROUPED BY A STRING KEY (NULL-SAFE), WITH VALUES OF ONE OF THEIR ROWS AND THEIR NUMBER
+    private Dataset<Row> groupByKey(Dataset<Row> canonical, List<String> matchingColumns, String prefix) {
+
+        Column key = functions.concat_ws(KEY_SEPARATOR, matchingColumns.stream()
+                .map(column -> functions.coalesce(functions.col(column), functions.lit(NULL_KEY_VALUE)))
+                .toArray(Column[]::new));
+
+        List<Column> aggregations = Arrays.stream(canonical.columns())
+                .map(column -> functions.first(column).as(prefix + column))
+                .collect(Collectors.toList());
+
+        // KEY IS NAMED BEFORE PARTITIONING, SO THAT THE PARTITIONING OF GROUPED ROWS IS THE ONE REQUIRED BY THE JOIN
+        return canonical.withColumn(prefix + KEY_COLUMN, key)
+                .repartition(partitions, functions.col(prefix + KEY_COLUMN))
+                .groupBy(prefix + KEY_COLUMN)
+                .agg(functions.count(functions.lit(1)).as(prefix + ROWS_COLUMN), aggregations.toArray(new Column[0]));
+    }
+
+    // ALL FIELDS BUT mismatch ARE NULLABLE, AS THE TYPE OF AN ARRAY OF STRUCTS IS THE ONE OF ITS FIRST ELEMENT
+    private Column mismatch(String mismatch, String column, Column expected, Column actual) {
+
+        return functions.struct(
+                functions.lit(mismatch).as(MISMATCH_COLUMN),
+                nullable(functions.lit(column).cast(DataTypes.StringType)).as(COLUMN_COLUMN),
+                nullable(expected).as(EXPECTED_COLUMN),
+                nullable(actual).as(ACTUAL_COLUMN));
+    }
+
+    private Column nullable(Column column) {
+
+        return column != null ? functions.when(column.isNotNull(), column) : functions.lit(null).cast(DataTypes.StringType);
+    }
+
+    private Column rowText(List<String> columns, String prefix) {
+
+        return functions.concat_ws(ROW_TEXT_SEPARATOR, columns.stream()
+                .map(column -> functions.coalesce(functions.col(prefix + column), functions.lit("")))
+                .toArray(Column[]::new));
+    }
+
+    /***
+     * Checksums of given dataset (on its canonical values), to be compared with the ones of another dataset
+     * @param dataset: dataset
+     * @param columns: columns whose checksums are computed
+     * @return: number of rows (rows) and checksum of each column (sum of hashes of its values, which does not depend on order of rows)
+     */
+
+    public Map<String, Long> getChecksums(Dataset<Row> dataset, List<String> columns) {
+
+        Dataset<Row> canonical = canonicalize(dataset, columns);
+        Column[] checksums = columns.stream()
+                .map(column -> functions.sum(functions.hash(functions.col(column)).cast(DataTypes.LongType)))
+                .toArray(Column[]::new);
+
+        // A SINGLE ROW IS COLLECTED
+        Row checksumsRow = canonical.agg(functions.count(functions.lit(1)), checksums).first();
+        Map<String, Long> checksumsByColumn = new LinkedHashMap<>();
+        checksumsByColumn.put(ROWS_CHECKSUM, checksumsRow.getLong(0));
+        for (int i = 0; i < columns.size(); i++) {
+
+            checksumsByColumn.put(columns.get(i), checksumsRow.isNullAt(i + 1) ? 0L : checksumsRow.getLong(i + 1));
+        }
+
+        return checksumsByColumn;
+    }
+}
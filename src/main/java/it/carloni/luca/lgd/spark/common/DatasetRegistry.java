@@ -0,0 +1,79 @@
+package it.carloni.luca.lgd.spark.common;
+
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.storage.StorageLevel;
+
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * Registry of datasets handed off in memory from a step to the downstream steps of the same pipeline.
+ * Datasets are identified by their (normalized) output path. Only the paths declared as handoff paths
+ * (i.e. outputs of a step that are also read by a later step of the pipeline) are published
+ */
+
+public class DatasetRegistry {
+
+    private final Logger logger = Logger.getLogger(getClass());
+    private final Map<String, Dataset<Row>> publishedDatasets = new ConcurrentHashMap<>();
+    private final Set<String> handoffPaths = ConcurrentHashMap.newKeySet();
+
+    public static String normalizePath(String path) {
+
+        return Paths.get(path).normalize().toString();
+    }
+
+    public void setHandoffPaths(Collection<String> paths) {
+
+        handoffPaths.clear();
+        paths.stream()
+                .map(DatasetRegistry::normalizePath)
+                .forEach(handoffPaths::add);
+    }
+
+    public boolean isHandoffPath(String path) {
+
+        return handoffPaths.contains(normalizePath(path));
+    }
+
+    public boolean isPublished(String path) {
+
+        return publishedDatasets.containsKey(normalizePath(path));
+    }
+
+    /***
+     * Persists given dataset and computes it, so that it is computed by the producing step (whose failures are its own)
+     * before downstream steps read it, and before later steps overwrite the inputs it is computed from
+     * @param path: output path of the dataset
+     * @param dataset: dataset to be handed off
+     * @param storageLevel: storage level of the persisted dataset
+     * @return: persisted (and computed) dataset
+     */
+
+    public Dataset<Row> publish(String path, Dataset<Row> dataset, StorageLevel storageLevel) {
+
+        Dataset<Row> persistedDataset = dataset.persist(storageLevel);
+        long rows = persistedDataset.count();
+        publishedDatasets.put(normalizePath(path), persistedDataset);
+
+        logger.info(String.format("Published dataset for path %s (%s rows, storage level: %s)", path, rows, storageLevel.description()));
+        return persistedDataset;
+    }
+
+    public Dataset<Row> get(String path) {
+
+        return publishedDatasets.get(normalizePath(path));
+    }
+
+    public void clear() {
+
+        publishedDatasets.values().forEach(Dataset::unpersist);
+        publishedDatasets.clear();
+        handoffPaths.clear();
+    }
+}
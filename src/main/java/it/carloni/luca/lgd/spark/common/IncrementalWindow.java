@@ -0,0 +1,53 @@
+package it.carloni.luca.lgd.spark.common;
+
+import lombok.AllArgsConstructor;
+import it.carloni.luca.lgd.spark.utils.NativeDateFunctions;
+import lombok.Getter;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.functions;
+import org.apache.spark.sql.types.DataTypes;
+
+/***
+ * Months to be (re)computed by a monthly step. A window without lower bound means a full recomputation,
+ * otherwise only months (yyyyMM) greater or equal than lowerBoundMonth are recomputed
+ */
+
+@AllArgsConstructor
+public class IncrementalWindow {
+
+    @Getter private final boolean incrementalModeEnabled;
+    @Getter private final String lowerBoundMonth;
+    @Getter private final String dataA;
+    @Getter private final int numeroMesi1;
+    @Getter private final int numeroMesi2;
+    @Getter private final Dataset<Row> cicliNdg;
+
+    public boolean isFullRecomputation() {
+
+        return lowerBoundMonth == null;
+    }
+
+    // KEEPS ONLY RECORDS WHOSE DATE COLUMN (DateType OR yyyyMMdd) FALLS WITHIN THE WINDOW
+    public Dataset<Row> filter(Dataset<Row> dataset, String dateColumnName) {
+
+        if (isFullRecomputation()) {
+
+            return dataset;
+        }
+
+        Column dateColumn = dataset.col(dateColumnName);
+        return dataset.schema().apply(dateColumnName).dataType() == DataTypes.DateType ?
+                dataset.filter(NativeDateFunctions.toYearMonth(dateColumn).geq(Integer.parseInt(lowerBoundMonth))) :
+                dataset.filter(functions.substring(dateColumn.cast(DataTypes.StringType), 0, 6).geq(lowerBoundMonth));
+    }
+
+    @Override
+    public String toString() {
+
+        return isFullRecomputation() ?
+                "full recomputation" :
+                String.format("recomputation of months since %s", lowerBoundMonth);
+    }
+}
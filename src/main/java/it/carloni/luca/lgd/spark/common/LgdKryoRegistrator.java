@@ -0,0 +1,89 @@
+package it.carloni.luca.lgd.spark.common;
+
+import com.esotericsoftware.kryo.Kryo;
+import it.carloni.luca.lgd.parameter.step.DataANumeroMesi12Value;
+import it.carloni.luca.lgd.parameter.step.DataAUfficioValue;
+import it.carloni.luca.lgd.parameter.step.DataAValue;
+import it.carloni.luca.lgd.parameter.step.DataDaDataAValue;
+import it.carloni.luca.lgd.parameter.step.DataOsservazioneValue;
+import it.carloni.luca.lgd.parameter.step.EmptyValue;
+import it.carloni.luca.lgd.parameter.step.StepNameValue;
+import it.carloni.luca.lgd.parameter.step.UfficioValue;
+import org.apache.log4j.Logger;
+import org.apache.spark.serializer.KryoRegistrator;
+
+import java.util.Arrays;
+import java.util.List;
+
+/***
+ * Registers to Kryo (spark.kryo.registrator) the classes serialized by LGD steps, so that their full names are not written along
+ * with each serialized object. Besides step values, these are the classes of broadcast relations, cached batches, task results
+ * and sort bounds of Spark SQL plans used by LGD steps (as found by running all steps with spark.kryo.registrationRequired = true).
+ * Rows exchanged by SQL shuffles are serialized as UnsafeRow bytes, hence they do not depend on such registrations.
+ * Anonymous classes (e.g. scala.math.Ordering$$anon$4) and sort direction objects (e.g. Descending$) are not registered,
+ * as their names depend on Scala and Spark versions. Classes that cannot be found are skipped (and logged)
+ */
+
+public class LgdKryoRegistrator implements KryoRegistrator {
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private static final List<Class<?>> STEP_VALUE_CLASSES = Arrays.asList(
+            DataANumeroMesi12Value.class,
+            DataAUfficioValue.class,
+            DataAValue.class,
+            DataDaDataAValue.class,
+            DataOsservazioneValue.class,
+            EmptyValue.class,
+            StepNameValue.class,
+            UfficioValue.class);
+
+    // SOME OF THEM ARE NOT PUBLIC (OR ARE SCALA OBJECTS), HENCE THEY ARE LOADED BY NAME
+    private static final List<String> SPARK_CLASS_NAMES = Arrays.asList(
+            "[[B",
+            "[Ljava.lang.Object;",
+            "org.apache.spark.internal.io.FileCommitProtocol$TaskCommitMessage",
+            "org.apache.spark.sql.catalyst.expressions.BoundReference",
+            "org.apache.spark.sql.catalyst.expressions.GenericInternalRow",
+            "org.apache.spark.sql.catalyst.expressions.SortOrder",
+            "[Lorg.apache.spark.sql.catalyst.expressions.SortOrder;",
+            "org.apache.spark.sql.catalyst.expressions.UnsafeRow",
+            "org.apache.spark.sql.catalyst.expressions.codegen.LazilyGeneratedOrdering",
+            "org.apache.spark.sql.catalyst.trees.Origin",
+            "org.apache.spark.sql.execution.columnar.CachedBatch",
+            "org.apache.spark.sql.execution.datasources.FileFormatWriter$WriteTaskResult",
+            "org.apache.spark.sql.execution.joins.UnsafeHashedRelation",
+            "org.apache.spark.sql.execution.joins.LongHashedRelation",
+            "org.apache.spark.sql.execution.joins.LongToUnsafeRowMap",
+            "org.apache.spark.sql.types.DateType$",
+            "org.apache.spark.sql.types.DoubleType$",
+            "org.apache.spark.sql.types.IntegerType$",
+            "org.apache.spark.sql.types.LongType$",
+            "org.apache.spark.sql.types.Metadata",
+            "org.apache.spark.sql.types.StringType$",
+            "org.apache.spark.sql.types.StructField",
+            "[Lorg.apache.spark.sql.types.StructField;",
+            "org.apache.spark.sql.types.StructType",
+            "[Lorg.apache.spark.sql.types.StructType;",
+            "org.apache.spark.unsafe.types.UTF8String",
+            "scala.collection.immutable.Set$EmptySet$",
+            "scala.collection.mutable.WrappedArray$ofRef");
+
+    @Override
+    public void registerClasses(Kryo kryo) {
+
+        STEP_VALUE_CLASSES.forEach(kryo::register);
+        for (String className : SPARK_CLASS_NAMES) {
+
+            try {
+
+                kryo.register(Class.forName(className));
+
+            } catch (ClassNotFoundException e) {
+
+                // e.g. A CLASS RENAMED BY ANOTHER SPARK VERSION: ITS OBJECTS ARE STILL SERIALIZED, ALONG WITH THEIR CLASS NAME
+                logger.warn(String.format("Class %s not found, hence not registered to Kryo", className));
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package it.carloni.luca.lgd.spark.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.spark.sql.execution.DataSourceScanExec;
+import org.apache.spark.sql.execution.SparkPlan;
+import org.apache.spark.sql.execution.columnar.InMemoryTableScanExec;
+import org.apache.spark.sql.execution.exchange.Exchange;
+import scala.collection.JavaConversions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/***
+ * Summary of the physical plan of a dataset written by a step (see AbstractStep.capturePlans): number of Exchange nodes
+ * (shuffles and broadcasts, reused exchanges excluded), of scan nodes (of data sources and of cached or handed off datasets)
+ * and of each operator (by class name). Summaries are stored as plan baselines, and compared with them by the plan regression guard
+ */
+
+@Getter
+@AllArgsConstructor
+public class PlanSummary {
+
+    private final int exchanges;
+    private final int scans;
+    private final Map<String, Integer> operators;
+
+    public static PlanSummary of(SparkPlan sparkPlan) {
+
+        Map<String, Integer> operators = new TreeMap<>();
+        int[] exchangesAndScans = new int[2];
+        collectOperators(sparkPlan, operators, exchangesAndScans);
+        return new PlanSummary(exchangesAndScans[0], exchangesAndScans[1], operators);
+    }
+
+    // PLANS OF CACHED DATASETS ARE NOT VISITED, AS THEY ARE COMPUTED ONLY ONCE (HENCE READING A CACHED DATASET COUNTS AS A SINGLE SCAN)
+    private static void collectOperators(SparkPlan sparkPlan, Map<String, Integer> operators, int[] exchangesAndScans) {
+
+        operators.merge(sparkPlan.getClass().getSimpleName(), 1, Integer::sum);
+        exchangesAndScans[0] += sparkPlan instanceof Exchange ? 1 : 0;
+        exchangesAndScans[1] += sparkPlan instanceof DataSourceScanExec || sparkPlan instanceof InMemoryTableScanExec ? 1 : 0;
+
+        JavaConversions.seqAsJavaList(sparkPlan.children()).forEach(child -> collectOperators(child, operators, exchangesAndScans));
+        JavaConversions.seqAsJavaList(sparkPlan.subqueries()).forEach(subquery -> collectOperators(subquery, operators, exchangesAndScans));
+    }
+
+    public static PlanSummary fromJson(JsonNode jsonNode) {
+
+        Map<String, Integer> operators = new TreeMap<>();
+        jsonNode.path("operators").fields().forEachRemaining(operator -> operators.put(operator.getKey(), operator.getValue().asInt()));
+        return new PlanSummary(jsonNode.path("exchanges").asInt(), jsonNode.path("scans").asInt(), operators);
+    }
+
+    /***
+     * Compares this plan with a baseline one
+     * @param baseline: summary of baseline plan
+     * @return: descriptions of regressions (i.e. extra Exchange or scan nodes) with respect to baseline, empty if none
+     */
+
+    public List<String> getRegressions(PlanSummary baseline) {
+
+        List<String> regressions = new ArrayList<>();
+        if (exchanges > baseline.getExchanges()) {
+
+            regressions.add(String.format("%s Exchange node(s) instead of %s", exchanges, baseline.getExchanges()));
+        }
+
+        if (scans > baseline.getScans()) {
+
+            regressions.add(String.format("%s scan node(s) instead of %s", scans, baseline.getScans()));
+        }
+
+        return regressions;
+    }
+}
@@ -0,0 +1,173 @@
+package it.carloni.luca.lgd.spark.common;
+
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.functions;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/***
+ * Equi-join between a big (left) dataset and another (right) one, whose heavy keys (i.e. those owning a large share of left rows,
+ * detected from a sample) can be joined apart from the others, so that they are not processed by a single straggler task.
+ * According to setting join.skew.mode (which can be overridden for each join by means of join.skew.mode.<join name>), heavy keys are
+ * none: not detected (plain join)
+ * salt: spread over join.skew.salt.buckets tasks (by hash of left rows), by replicating matching right rows for each bucket
+ * broadcast: joined with a broadcast of matching right rows
+ */
+
+public class SkewJoin {
+
+    private static final String LEFT_SALT_COLUMN = "skew_join_left_salt";
+    private static final String RIGHT_SALT_COLUMN = "skew_join_right_salt";
+    private static final List<String> SUPPORTED_JOIN_TYPES = Arrays.asList("inner", "left", "left_outer", "left_semi", "left_anti");
+
+    private final Logger logger = Logger.getLogger(getClass());
+    private final StepContext stepContext = StepContext.getInstance();
+
+    private final String joinName;
+    private final String[] leftKeyColumns;
+    private final String[] rightKeyColumns;
+
+    public SkewJoin(String joinName, String[] leftKeyColumns, String[] rightKeyColumns) {
+
+        this.joinName = joinName;
+        this.leftKeyColumns = leftKeyColumns;
+        this.rightKeyColumns = rightKeyColumns;
+    }
+
+    /***
+     * Joins left and right datasets by means of their key columns
+     * @param left: big dataset (whose keys are sampled)
+     * @param right: other dataset
+     * @param joinType: one among inner, left, left_outer, left_semi, left_anti (others lead to a plain join)
+     * @return: joined dataset, with the same columns of a plain join (to be selected by means of left.col(...) and right.col(...))
+     */
+
+    public Dataset<Row> join(Dataset<Row> left, Dataset<Row> right, String joinType) {
+
+        Column joinCondition = IntStream.range(0, leftKeyColumns.length)
+                .mapToObj(i -> left.col(leftKeyColumns[i]).equalTo(right.col(rightKeyColumns[i])))
+                .reduce(Column::and)
+                .orElseThrow(() -> new IllegalArgumentException("No key columns provided for join " + joinName));
+
+        String skewMode = getSetting("join.skew.mode");
+        if ("none".equalsIgnoreCase(skewMode) || !SUPPORTED_JOIN_TYPES.contains(joinType.toLowerCase())) {
+
+            return left.join(right, joinCondition, joinType);
+        }
+
+        List<Row> heavyKeys = detectHeavyKeys(left);
+        if (heavyKeys.isEmpty()) {
+
+            return left.join(right, joinCondition, joinType);
+        }
+
+        Column isHeavyLeftKey = isHeavyKey(left, leftKeyColumns, heavyKeys);
+        Column isHeavyRightKey = isHeavyKey(right, rightKeyColumns, heavyKeys);
+        Dataset<Row> heavyLeft = left.filter(isHeavyLeftKey);
+        Dataset<Row> heavyRight = right.filter(isHeavyRightKey);
+
+        Dataset<Row> lightJoin = left.filter(functions.not(isHeavyLeftKey))
+                .join(right.filter(functions.not(isHeavyRightKey)), joinCondition, joinType);
+
+        Dataset<Row> heavyJoin;
+        if ("broadcast".equalsIgnoreCase(skewMode)) {
+
+            heavyJoin = heavyLeft.join(functions.broadcast(heavyRight), joinCondition, joinType);
+
+        } else {
+
+            // EACH LEFT ROW GETS A BUCKET FROM THE HASH OF ITS VALUES, WHILE EACH RIGHT ROW IS REPLICATED FOR ALL BUCKETS.
+            // UNLIKE rand(), THE BUCKET OF A ROW DOES NOT CHANGE WHEN ITS TASK IS RETRIED OR RUN SPECULATIVELY
+            int saltBuckets = Integer.parseInt(getSetting("join.skew.salt.buckets"));
+            Column[] saltBucketCols = IntStream.range(0, saltBuckets).mapToObj(functions::lit).toArray(Column[]::new);
+            Column leftRowHash = functions.hash(Arrays.stream(heavyLeft.columns()).map(heavyLeft::col).toArray(Column[]::new));
+
+            Dataset<Row> saltedLeft = heavyLeft.withColumn(LEFT_SALT_COLUMN, functions.pmod(leftRowHash, functions.lit(saltBuckets)));
+            Dataset<Row> saltedRight = heavyRight.withColumn(RIGHT_SALT_COLUMN, functions.explode(functions.array(saltBucketCols)));
+
+            heavyJoin = saltedLeft.join(saltedRight, joinCondition
+                    .and(saltedLeft.col(LEFT_SALT_COLUMN).equalTo(saltedRight.col(RIGHT_SALT_COLUMN))), joinType);
+        }
+
+        // LEFT SEMI AND LEFT ANTI JOINS OUTPUT ONLY LEFT COLUMNS
+        Stream<Column> leftColumns = Arrays.stream(left.columns()).map(left::col);
+        Column[] outputColumns = joinType.toLowerCase().startsWith("left_") && !"left_outer".equalsIgnoreCase(joinType) ?
+                leftColumns.toArray(Column[]::new) :
+                Stream.concat(leftColumns, Arrays.stream(right.columns()).map(right::col)).toArray(Column[]::new);
+
+        return lightJoin.select(outputColumns).union(heavyJoin.select(outputColumns));
+    }
+
+    // KEYS (NOT null) OWNING AT LEAST join.skew.heavy.key.min.share OF SAMPLED LEFT ROWS (AT MOST join.skew.max.heavy.keys)
+    private List<Row> detectHeavyKeys(Dataset<Row> left) {
+
+        double sampleFraction = Double.parseDouble(getSetting("join.skew.sample.fraction"));
+        double heavyKeyMinShare = Double.parseDouble(getSetting("join.skew.heavy.key.min.share"));
+        int maxHeavyKeys = Integer.parseInt(getSetting("join.skew.max.heavy.keys"));
+
+        Column keysNotNull = Arrays.stream(leftKeyColumns)
+                .map(keyColumn -> left.col(keyColumn).isNotNull())
+                .reduce(Column::and)
+                .orElse(functions.lit(true));
+
+        Dataset<Row> sample = left.sample(false, sampleFraction, 0L)
+                .filter(keysNotNull)
+                .select(Arrays.stream(leftKeyColumns).map(functions::col).toArray(Column[]::new));
+
+        long sampledRows = sample.count();
+        if (sampledRows == 0) {
+
+            logger.info(String.format("Join %s: no rows sampled (fraction: %s). Skipping skew handling", joinName, sampleFraction));
+            return Collections.emptyList();
+        }
+
+        List<Row> keyCounts = sample.groupBy(Arrays.stream(leftKeyColumns).map(functions::col).toArray(Column[]::new))
+                .count()
+                .orderBy(functions.col("count").desc())
+                .limit(maxHeavyKeys)
+                .collectAsList();
+
+        List<Row> heavyKeyCounts = keyCounts.stream()
+                .filter(keyCount -> (double) keyCount.getLong(leftKeyColumns.length) / sampledRows >= heavyKeyMinShare)
+                .collect(Collectors.toList());
+
+        String heavyKeysDescription = heavyKeyCounts.stream()
+                .map(keyCount -> String.format("%s (%.2f%%)", keyCount.toSeq().take(leftKeyColumns.length).mkString("(", ", ", ")"),
+                        100.0 * keyCount.getLong(leftKeyColumns.length) / sampledRows))
+                .collect(Collectors.joining(", "));
+
+        logger.info(String.format("Join %s: %s row(s) sampled (fraction: %s), %s heavy key(s) (min share: %s) %s",
+                joinName, sampledRows, sampleFraction, heavyKeyCounts.size(), heavyKeyMinShare, heavyKeysDescription));
+
+        return heavyKeyCounts;
+    }
+
+    // (k1 = v1 AND k2 = v2 ...) OR ... FOR EACH HEAVY KEY, false FOR null KEYS
+    private Column isHeavyKey(Dataset<Row> dataset, String[] keyColumns, List<Row> heavyKeys) {
+
+        Column isHeavyKeyCol = heavyKeys.stream()
+                .map(heavyKey -> IntStream.range(0, keyColumns.length)
+                        .mapToObj(i -> dataset.col(keyColumns[i]).equalTo(functions.lit(heavyKey.get(i))))
+                        .reduce(Column::and)
+                        .orElse(functions.lit(false)))
+                .reduce(Column::or)
+                .orElse(functions.lit(false));
+
+        return functions.coalesce(isHeavyKeyCol, functions.lit(false));
+    }
+
+    // VALUE OF SETTING <settingPrefix>.<join name>, OR OF <settingPrefix> IF NOT DEFINED
+    private String getSetting(String settingPrefix) {
+
+        String joinValue = stepContext.getValue(settingPrefix + "." + joinName);
+        return joinValue != null && !joinValue.trim().isEmpty() ? joinValue.trim() : stepContext.getValue(settingPrefix);
+    }
+}
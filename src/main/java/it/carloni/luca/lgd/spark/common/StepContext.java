@@ -0,0 +1,207 @@
+package it.carloni.luca.lgd.spark.common;
+
+import it.carloni.luca.lgd.spark.udf.UDFFactory;
+import it.carloni.luca.lgd.spark.udf.UDFName;
+import lombok.Getter;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.log4j.Logger;
+import org.apache.spark.SparkConf;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.api.java.UDF3;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.util.LongAccumulator;
+
+import java.nio.file.InvalidPathException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/***
+ * Application-wide state shared by every step run within the same driver:
+ * the parsed .properties file and the SparkSession (with LGD UDFs already registered).
+ * Both are initialized only once, so that a pipeline of many steps pays for them only once
+ */
+
+public class StepContext {
+
+    private static StepContext stepContext;
+
+    private final Logger logger = Logger.getLogger(getClass());
+    private final PropertiesConfiguration properties = new PropertiesConfiguration() {
+
+        // SYSTEM PROPERTIES ALSO OVERRIDE SETTINGS REFERRED BY OTHER ONES (e.g. -Dlgd.input.data.dir=... MOVES ALL INPUT PATHS)
+        @Override
+        protected Object resolveContainerStore(String key) {
+
+            String systemPropertyValue = System.getProperty(key);
+            return systemPropertyValue != null ? systemPropertyValue : super.resolveContainerStore(key);
+        }
+    };
+    @Getter private final SparkSession sparkSession;
+    @Getter private final DatasetRegistry datasetRegistry = new DatasetRegistry();
+    @Getter private final StepMetricsListener stepMetricsListener = new StepMetricsListener();
+    @Getter private final boolean metricsEnabled;
+
+    private StepContext() {
+
+        loadProperties();
+        metricsEnabled = Boolean.parseBoolean(getValue("metrics.enabled"));
+        sparkSession = getSparkSessionWithUDFs();
+        if (metricsEnabled) {
+
+            sparkSession.sparkContext().addSparkListener(stepMetricsListener);
+        }
+    }
+
+    public static synchronized StepContext getInstance() {
+
+        if (stepContext == null) {
+
+            stepContext = new StepContext();
+        }
+
+        return stepContext;
+    }
+
+    // STOPS THE SPARKSESSION (ONCE ALL PENDING LISTENER EVENTS HAVE BEEN DELIVERED) AND DISCARDS THE CONTEXT, SO THAT NEXT getInstance()
+    // RELOADS SETTINGS AND BUILDS A NEW SPARKSESSION (e.g. WITH spark.master PROVIDED AS A SYSTEM PROPERTY IN THE MEANTIME)
+    public static synchronized void reset() {
+
+        if (stepContext != null) {
+
+            stepContext.datasetRegistry.clear();
+            stepContext.sparkSession.stop();
+            SparkSession.clearActiveSession();
+            SparkSession.clearDefaultSession();
+            stepContext = null;
+        }
+    }
+
+    // A SETTING CAN BE OVERRIDDEN FOR A SINGLE RUN BY MEANS OF A SYSTEM PROPERTY (e.g. -Ddate.functions.mode=native)
+    public String getValue(String key) {
+        return System.getProperty(key, properties.getString(key));
+    }
+
+    // NON-EMPTY VALUES OF A COMMA-SEPARATED LIST SETTING
+    public String[] getValues(String key) {
+
+        String systemPropertyValue = System.getProperty(key);
+        String[] values = systemPropertyValue != null ? systemPropertyValue.split(",") : properties.getStringArray(key);
+        return Arrays.stream(values)
+                .map(String::trim)
+                .filter(value -> !value.isEmpty())
+                .toArray(String[]::new);
+    }
+
+    // KEYS WHOSE VALUE IS THE GIVEN PATH
+    public List<String> getKeysForPath(String path) {
+
+        String normalizedPath = DatasetRegistry.normalizePath(path);
+        List<String> keys = new ArrayList<>();
+        // commons-configuration 1.x RETURNS A RAW Iterator
+        Iterator<?> keysIterator = properties.getKeys();
+        while (keysIterator.hasNext()) {
+
+            String key = String.valueOf(keysIterator.next());
+            String value = getValue(key);
+            try {
+
+                if (value != null && DatasetRegistry.normalizePath(value).equals(normalizedPath)) {
+
+                    keys.add(key);
+                }
+            }
+
+            catch (InvalidPathException e) {
+
+                // VALUE IS NOT A PATH
+            }
+        }
+
+        return keys;
+    }
+
+    private void loadProperties() {
+
+        try {
+
+            properties.load(StepContext.class.getClassLoader().getResourceAsStream("lgd.properties"));
+
+            logger.info("csv.format: " + getValue("csv.format"));
+            logger.info("csv.delimiter: " + getValue("csv.delimiter"));
+            logger.info("params.datada.pattern: " + getValue("params.datada.pattern"));
+            logger.info("params.dataa.pattern: " + getValue("params.dataa.pattern"));
+        }
+        catch (ConfigurationException e){
+
+            logger.error("Could not load application .properties file");
+            logger.error(e);
+        }
+    }
+
+    private SparkSession getSparkSessionWithUDFs(){
+
+        // SPARK SETTINGS PROVIDED AT SUBMIT TIME (e.g. spark2-submit --master yarn --conf spark.sql.shuffle.partitions=400),
+        // WHICH ARE LOADED BY SparkConf, TAKE PRECEDENCE OVER spark.* SETTINGS OF .properties FILE (e.g. spark.master = local[*])
+        SparkConf sparkConf = new SparkConf();
+        Iterator<?> keysIterator = properties.getKeys();
+        while (keysIterator.hasNext()) {
+
+            String key = String.valueOf(keysIterator.next());
+            String value = String.join(",", properties.getStringArray(key)).trim();
+            if (key.startsWith("spark.") && !sparkConf.contains(key) && !value.isEmpty()) {
+
+                sparkConf.set(key, value);
+            }
+        }
+
+        SparkSession sparkSession = SparkSession.builder()
+                .config(sparkConf)
+                .getOrCreate();
+
+        logger.info(String.format("Spark master: %s, default parallelism: %s, shuffle partitions: %s",
+                sparkSession.sparkContext().master(),
+                sparkSession.sparkContext().defaultParallelism(),
+                sparkSession.conf().get("spark.sql.shuffle.partitions")));
+
+        if (sparkSession.sparkContext().uiWebUrl().isDefined()) {
+
+            logger.info("Spark application UI url @ " + sparkSession.sparkContext().uiWebUrl().get());
+        }
+
+        return registerUDFs(sparkSession);
+    }
+
+    private SparkSession registerUDFs(SparkSession sparkSession){
+
+        sparkSession.udf().register(UDFName.ADD_DURATION.getName(), countingInvocations(sparkSession, UDFName.ADD_DURATION, UDFFactory.buildAddDurationUDF()), DataTypes.StringType);
+        sparkSession.udf().register(UDFName.SUBTRACT_DURATION.getName(), countingInvocations(sparkSession, UDFName.SUBTRACT_DURATION, UDFFactory.buildSubstractDurationUDF()), DataTypes.StringType);
+        sparkSession.udf().register(UDFName.CHANGE_DATE_FORMAT.getName(), countingInvocations(sparkSession, UDFName.CHANGE_DATE_FORMAT, UDFFactory.buildChangeDateFormatUDF()), DataTypes.StringType);
+        sparkSession.udf().register(UDFName.CHANGE_DATE_FORMAT_FROM_Y2_TO_Y4.getName(), countingInvocations(sparkSession, UDFName.CHANGE_DATE_FORMAT_FROM_Y2_TO_Y4, UDFFactory.buildChangeDateFormatFromY2toY4()), DataTypes.StringType);
+        sparkSession.udf().register(UDFName.DAYS_BETWEEN.getName(), countingInvocations(sparkSession, UDFName.DAYS_BETWEEN, UDFFactory.buildDaysBetweenUDF()), DataTypes.LongType);
+        sparkSession.udf().register(UDFName.GREATEST_DATE.getName(), countingInvocations(sparkSession, UDFName.GREATEST_DATE, UDFFactory.buildGreatestDateUDF()), DataTypes.StringType);
+        sparkSession.udf().register(UDFName.LEAST_DATE.getName(), countingInvocations(sparkSession, UDFName.LEAST_DATE, UDFFactory.buildLeastDateUDF()), DataTypes.StringType);
+
+        logger.info("Registered LGD UDFs");
+        return sparkSession;
+    }
+
+    // WHEN METRICS ARE ENABLED, INVOCATIONS OF EACH UDF ARE COUNTED BY A NAMED ACCUMULATOR, WHOSE TASK UPDATES ARE
+    // ATTRIBUTED TO STEP RUNS BY StepMetricsListener
+    private <A, B, C, R> UDF3<A, B, C, R> countingInvocations(SparkSession sparkSession, UDFName udfName, UDF3<A, B, C, R> udf) {
+
+        if (!metricsEnabled) {
+
+            return udf;
+        }
+
+        LongAccumulator invocations = sparkSession.sparkContext().longAccumulator(StepMetricsListener.UDF_ACCUMULATOR_PREFIX + udfName.getName());
+        return (a, b, c) -> {
+
+            invocations.add(1);
+            return udf.call(a, b, c);
+        };
+    }
+}
@@ -0,0 +1,159 @@
+package it.carloni.luca.lgd.spark.common;
+
+import it.carloni.luca.lgd.spark.common.StepMetricsListener.RunMetrics;
+import it.carloni.luca.lgd.spark.common.StepMetricsListener.StageMetrics;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/***
+ * Metrics of a step run (see AbstractStep.runWithMetrics), which are written as a .json run summary (by means of its getters)
+ * and in Prometheus text format (all metrics being gauges, labelled by step, as each run replaces the metrics of the previous one).
+ * Input and output rows are approximate, as they are summed from accumulator updates of tasks (which retried or speculative tasks may repeat)
+ */
+
+@Getter
+@AllArgsConstructor
+public class StepMetrics {
+
+    private final String step;
+    private final String runId;
+    private final String startTime;
+    private final long durationMs;
+    private final boolean succeeded;
+    private final String error;
+    @Getter(AccessLevel.NONE) private final RunMetrics runMetrics;
+    private final Map<String, Long> outputRows;
+
+    public int getJobs() {
+
+        return runMetrics.getJobs();
+    }
+
+    public Map<String, Long> getInputRows() {
+
+        return runMetrics.getInputRows();
+    }
+
+    public Map<String, Long> getUdfInvocations() {
+
+        return runMetrics.getUdfInvocations();
+    }
+
+    public Collection<StageMetrics> getStages() {
+
+        return runMetrics.getStages().values();
+    }
+
+    public long getTasks() {
+
+        return sumOfStages(StageMetrics::getTasks);
+    }
+
+    public long getFailedTasks() {
+
+        return sumOfStages(StageMetrics::getFailedTasks);
+    }
+
+    public long getExecutorRunTimeMs() {
+
+        return sumOfStages(StageMetrics::getExecutorRunTimeMs);
+    }
+
+    public long getGcTimeMs() {
+
+        return sumOfStages(StageMetrics::getGcTimeMs);
+    }
+
+    public long getShuffleReadBytes() {
+
+        return sumOfStages(StageMetrics::getShuffleReadBytes);
+    }
+
+    public long getShuffleWriteBytes() {
+
+        return sumOfStages(StageMetrics::getShuffleWriteBytes);
+    }
+
+    public long getMemorySpillBytes() {
+
+        return sumOfStages(StageMetrics::getMemorySpillBytes);
+    }
+
+    public long getDiskSpillBytes() {
+
+        return sumOfStages(StageMetrics::getDiskSpillBytes);
+    }
+
+    public double getMaxTaskSkew() {
+
+        return getStages().stream().mapToDouble(StageMetrics::getTaskSkew).max().orElse(1);
+    }
+
+    private long sumOfStages(ToLongFunction<StageMetrics> stageMetric) {
+
+        return getStages().stream().mapToLong(stageMetric).sum();
+    }
+
+    public String toPrometheusText() {
+
+        String stepLabel = String.format("step=\"%s\"", escape(step));
+        Map<String, Number> stepSample = Collections.singletonMap(stepLabel, 0);
+
+        StringBuilder text = new StringBuilder();
+        appendGauge(text, "lgd_step_succeeded", "Whether last run of the step succeeded (1) or not (0)", stepSample, sample -> succeeded ? 1 : 0);
+        appendGauge(text, "lgd_step_duration_seconds", "Wall time of last run of the step", stepSample, sample -> durationMs / 1000.0);
+        appendGauge(text, "lgd_step_jobs", "Spark jobs of last run of the step", stepSample, sample -> getJobs());
+        appendGauge(text, "lgd_step_input_rows", "Rows read from each input path by last run of the step",
+                withLabel(stepLabel, "path", getInputRows()), rows -> rows);
+        appendGauge(text, "lgd_step_output_rows", "Rows written at each output path by last run of the step",
+                withLabel(stepLabel, "path", outputRows), rows -> rows);
+        appendGauge(text, "lgd_step_udf_invocations", "Invocations of each UDF by last run of the step",
+                withLabel(stepLabel, "udf", getUdfInvocations()), invocations -> invocations);
+
+        Map<String, StageMetrics> stagesByLabels = new LinkedHashMap<>();
+        getStages().forEach(stageMetrics -> stagesByLabels.put(String.format("%s,stage=\"%s.%s\",name=\"%s\"",
+                stepLabel, stageMetrics.getStageId(), stageMetrics.getAttemptId(), escape(stageMetrics.getName())), stageMetrics));
+
+        appendGauge(text, "lgd_stage_duration_seconds", "Wall time of each stage of last run of the step", stagesByLabels, stage -> stage.getDurationMs() / 1000.0);
+        appendGauge(text, "lgd_stage_tasks", "Tasks of each stage of last run of the step", stagesByLabels, StageMetrics::getTasks);
+        appendGauge(text, "lgd_stage_max_task_seconds", "Longest task time of each stage of last run of the step", stagesByLabels, stage -> stage.getMaxTaskTimeMs() / 1000.0);
+        appendGauge(text, "lgd_stage_median_task_seconds", "Median task time of each stage of last run of the step", stagesByLabels, stage -> stage.getMedianTaskTimeMs() / 1000.0);
+        appendGauge(text, "lgd_stage_shuffle_read_bytes", "Shuffle bytes read by each stage of last run of the step", stagesByLabels, StageMetrics::getShuffleReadBytes);
+        appendGauge(text, "lgd_stage_shuffle_write_bytes", "Shuffle bytes written by each stage of last run of the step", stagesByLabels, StageMetrics::getShuffleWriteBytes);
+        appendGauge(text, "lgd_stage_spill_bytes", "Bytes spilled (from memory and to disk) by each stage of last run of the step", stagesByLabels,
+                stage -> stage.getMemorySpillBytes() + stage.getDiskSpillBytes());
+        appendGauge(text, "lgd_stage_gc_seconds", "GC time of tasks of each stage of last run of the step", stagesByLabels, stage -> stage.getGcTimeMs() / 1000.0);
+
+        return text.toString();
+    }
+
+    // SAMPLES OF A METRIC FAMILY MUST FOLLOW ITS HELP AND TYPE LINES
+    private <S> void appendGauge(StringBuilder text, String name, String help, Map<String, S> samplesByLabels, Function<S, Number> value) {
+
+        text.append(String.format("# HELP %s %s\n# TYPE %s gauge\n", name, help, name));
+        samplesByLabels.forEach((labels, sample) -> text.append(String.format("%s{%s} %s\n", name, labels, value.apply(sample))));
+    }
+
+    private Map<String, Long> withLabel(String stepLabel, String labelName, Map<String, Long> valuesByLabelValue) {
+
+        Map<String, Long> valuesByLabels = new LinkedHashMap<>();
+        valuesByLabelValue.forEach((labelValue, value) -> valuesByLabels.put(String.format("%s,%s=\"%s\"", stepLabel, labelName, escape(labelValue)), value));
+        return valuesByLabels;
+    }
+
+    private String escape(String labelValue) {
+
+        return labelValue == null ? "" : labelValue
+                .replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+}
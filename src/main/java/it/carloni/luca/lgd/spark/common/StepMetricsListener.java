@@ -0,0 +1,274 @@
+package it.carloni.luca.lgd.spark.common;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.scheduler.*;
+import org.apache.spark.sql.execution.SparkPlan;
+import org.apache.spark.sql.execution.SparkPlanInfo;
+import org.apache.spark.sql.execution.columnar.InMemoryTableScanExec;
+import org.apache.spark.sql.execution.metric.SQLMetricInfo;
+import org.apache.spark.sql.execution.ui.SparkListenerSQLExecutionEnd;
+import org.apache.spark.sql.execution.ui.SparkListenerSQLExecutionStart;
+import scala.collection.JavaConversions;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/***
+ * Collects metrics of each step run (see AbstractStep.runWithMetrics) from the Spark listener bus. Jobs are attributed to a step run
+ * by means of the local property lgd.step.run.id, which is set by the thread running the step (so that steps run concurrently
+ * by StepScheduler are told apart). For each run, it records stages (durations, task times, shuffle, spill, GC time),
+ * rows read from each input path (from the "number of output rows" SQL metric of file scans) and UDF invocations
+ * (from the accumulators named lgd.udf.<UDF name>, see StepContext)
+ */
+
+public class StepMetricsListener extends SparkListener {
+
+    public static final String RUN_ID_PROPERTY = "lgd.step.run.id";
+    public static final String UDF_ACCUMULATOR_PREFIX = "lgd.udf.";
+
+    private static final String SCAN_ROWS_METRIC_NAME = "number of output rows";
+
+    private final Map<String, RunMetrics> runs = new ConcurrentHashMap<>();
+    private final Map<Integer, String> stageRuns = new ConcurrentHashMap<>();
+
+    // INPUT PATH OF EACH SCAN ROWS METRIC (BY ACCUMULATOR ID), AND SUCH METRICS OF EACH RUNNING SQL EXECUTION
+    private final Map<Long, String> scanRowsMetrics = new ConcurrentHashMap<>();
+    private final Map<Long, List<Long>> sqlExecutionScanRowsMetrics = new ConcurrentHashMap<>();
+    private final Map<String, List<Long>> runCachedScanRowsMetrics = new ConcurrentHashMap<>();
+
+    public void startRun(String runId, String stepName) {
+
+        runs.put(runId, new RunMetrics(stepName));
+    }
+
+    // METRICS OF GIVEN RUN, WHICH ARE COMPLETE ONLY ONCE ALL EVENTS OF ITS JOBS HAVE BEEN DELIVERED
+    public RunMetrics finishRun(String runId) {
+
+        stageRuns.values().removeIf(runId::equals);
+        List<Long> cachedAccumulatorIds = runCachedScanRowsMetrics.remove(runId);
+        if (cachedAccumulatorIds != null) {
+
+            cachedAccumulatorIds.forEach(scanRowsMetrics::remove);
+        }
+
+        return runs.remove(runId);
+    }
+
+    // PLANS OF CACHED DATASETS ARE NOT PART OF THE PLAN OF AN SQL EXECUTION READING THEM (THEY ARE HIDDEN BY InMemoryTableScan),
+    // HENCE THEIR FILE SCANS ARE COLLECTED FROM THE PLAN OF A DATASET ABOUT TO BE COMPUTED BY GIVEN RUN
+    public void addCachedScans(String runId, SparkPlan sparkPlan) {
+
+        if (sparkPlan instanceof InMemoryTableScanExec) {
+
+            SparkPlan cachedPlan = ((InMemoryTableScanExec) sparkPlan).relation().child();
+            collectScanRowsMetrics(SparkPlanInfo.fromSparkPlan(cachedPlan), runCachedScanRowsMetrics.computeIfAbsent(runId, key -> new ArrayList<>()));
+            addCachedScans(runId, cachedPlan);
+        }
+
+        JavaConversions.seqAsJavaList(sparkPlan.children()).forEach(child -> addCachedScans(runId, child));
+    }
+
+    @Override
+    public void onOtherEvent(SparkListenerEvent event) {
+
+        if (event instanceof SparkListenerSQLExecutionStart) {
+
+            SparkListenerSQLExecutionStart executionStart = (SparkListenerSQLExecutionStart) event;
+            List<Long> accumulatorIds = new ArrayList<>();
+            collectScanRowsMetrics(executionStart.sparkPlanInfo(), accumulatorIds);
+            sqlExecutionScanRowsMetrics.put(executionStart.executionId(), accumulatorIds);
+
+        } else if (event instanceof SparkListenerSQLExecutionEnd) {
+
+            // TASKS OF AN EXECUTION END BEFORE THE EXECUTION ITSELF
+            List<Long> accumulatorIds = sqlExecutionScanRowsMetrics.remove(((SparkListenerSQLExecutionEnd) event).executionId());
+            if (accumulatorIds != null) {
+
+                accumulatorIds.forEach(scanRowsMetrics::remove);
+            }
+        }
+    }
+
+    // FILE SCANS ARE DESCRIBED BY THEIR LOCATION (e.g. InMemoryFileIndex[file:/data/lgd/input/fpasperd/tlbpaspe_filter.csv])
+    private void collectScanRowsMetrics(SparkPlanInfo sparkPlanInfo, List<Long> accumulatorIds) {
+
+        Map<String, String> metadata = JavaConversions.mapAsJavaMap(sparkPlanInfo.metadata());
+        String location = metadata.get("Location");
+        if (location != null && location.contains("[") && location.endsWith("]")) {
+
+            String path = Arrays.stream(location.substring(location.indexOf('[') + 1, location.length() - 1).split(",\\s*"))
+                    .map(StepMetricsListener::normalizePath)
+                    .collect(Collectors.joining(", "));
+
+            for (SQLMetricInfo metricInfo : JavaConversions.seqAsJavaList(sparkPlanInfo.metrics())) {
+
+                if (SCAN_ROWS_METRIC_NAME.equals(metricInfo.name())) {
+
+                    scanRowsMetrics.put(metricInfo.accumulatorId(), path);
+                    accumulatorIds.add(metricInfo.accumulatorId());
+                }
+            }
+        }
+
+        JavaConversions.seqAsJavaList(sparkPlanInfo.children()).forEach(child -> collectScanRowsMetrics(child, accumulatorIds));
+    }
+
+    @Override
+    public void onJobStart(SparkListenerJobStart jobStart) {
+
+        String runId = jobStart.properties() != null ? jobStart.properties().getProperty(RUN_ID_PROPERTY) : null;
+        RunMetrics runMetrics = runId != null ? runs.get(runId) : null;
+        if (runMetrics != null) {
+
+            runMetrics.jobs++;
+            JavaConversions.seqAsJavaList(jobStart.stageIds()).forEach(stageId -> stageRuns.put((Integer) stageId, runId));
+        }
+    }
+
+    @Override
+    public void onStageCompleted(SparkListenerStageCompleted stageCompleted) {
+
+        StageInfo stageInfo = stageCompleted.stageInfo();
+        RunMetrics runMetrics = getRunMetrics(stageInfo.stageId());
+        if (runMetrics != null) {
+
+            StageMetrics stageMetrics = runMetrics.getStageMetrics(stageInfo.stageId(), stageInfo.attemptId());
+            stageMetrics.name = stageInfo.name();
+            stageMetrics.failed = stageInfo.failureReason().isDefined();
+            if (stageInfo.submissionTime().isDefined() && stageInfo.completionTime().isDefined()) {
+
+                stageMetrics.durationMs = (Long) stageInfo.completionTime().get() - (Long) stageInfo.submissionTime().get();
+            }
+        }
+    }
+
+    @Override
+    public void onTaskEnd(SparkListenerTaskEnd taskEnd) {
+
+        RunMetrics runMetrics = getRunMetrics(taskEnd.stageId());
+        if (runMetrics == null) {
+
+            return;
+        }
+
+        TaskInfo taskInfo = taskEnd.taskInfo();
+        StageMetrics stageMetrics = runMetrics.getStageMetrics(taskEnd.stageId(), taskEnd.stageAttemptId());
+        stageMetrics.tasks++;
+        stageMetrics.failedTasks += taskInfo.successful() ? 0 : 1;
+        stageMetrics.taskTimesMs.add(taskInfo.duration());
+
+        // METRICS OF FAILED TASKS MAY BE MISSING
+        TaskMetrics taskMetrics = taskEnd.taskMetrics();
+        if (taskMetrics != null) {
+
+            stageMetrics.executorRunTimeMs += taskMetrics.executorRunTime();
+            stageMetrics.gcTimeMs += taskMetrics.jvmGCTime();
+            stageMetrics.inputRows += taskMetrics.inputMetrics().recordsRead();
+            stageMetrics.shuffleReadBytes += taskMetrics.shuffleReadMetrics().totalBytesRead();
+            stageMetrics.shuffleWriteBytes += taskMetrics.shuffleWriteMetrics().bytesWritten();
+            stageMetrics.memorySpillBytes += taskMetrics.memoryBytesSpilled();
+            stageMetrics.diskSpillBytes += taskMetrics.diskBytesSpilled();
+        }
+
+        // UPDATES OF NAMED ACCUMULATORS (INCLUDING SQL METRICS) MADE BY THE TASK
+        for (AccumulableInfo accumulableInfo : JavaConversions.seqAsJavaList(taskInfo.accumulables())) {
+
+            if (!accumulableInfo.update().isDefined() || !(accumulableInfo.update().get() instanceof Number)) {
+
+                continue;
+            }
+
+            long update = ((Number) accumulableInfo.update().get()).longValue();
+            String name = accumulableInfo.name().isDefined() ? accumulableInfo.name().get() : "";
+            String inputPath = scanRowsMetrics.get(accumulableInfo.id());
+            if (name.startsWith(UDF_ACCUMULATOR_PREFIX)) {
+
+                runMetrics.udfInvocations.merge(name.substring(UDF_ACCUMULATOR_PREFIX.length()), update, Long::sum);
+
+            } else if (inputPath != null) {
+
+                runMetrics.inputRows.merge(inputPath, update, Long::sum);
+            }
+        }
+    }
+
+    private RunMetrics getRunMetrics(int stageId) {
+
+        String runId = stageRuns.get(stageId);
+        return runId != null ? runs.get(runId) : null;
+    }
+
+    // PATH WITHOUT SCHEME (e.g. file:/data/lgd -> /data/lgd), SO THAT PATHS OF SCANS MATCH THE ONES OF SETTINGS
+    public static String normalizePath(String path) {
+
+        return new Path(path.trim()).toUri().getPath();
+    }
+
+    // EVENTS ARE DELIVERED BY A SINGLE THREAD, HENCE METRICS ARE UPDATED WITHOUT SYNCHRONIZATION
+    @Getter
+    public static class RunMetrics {
+
+        private final String stepName;
+        private int jobs;
+        private final Map<String, Long> inputRows = new TreeMap<>();
+        private final Map<String, Long> udfInvocations = new TreeMap<>();
+        private final Map<String, StageMetrics> stages = new LinkedHashMap<>();
+
+        private RunMetrics(String stepName) {
+
+            this.stepName = stepName;
+        }
+
+        private StageMetrics getStageMetrics(int stageId, int attemptId) {
+
+            return stages.computeIfAbsent(stageId + "." + attemptId, key -> new StageMetrics(stageId, attemptId));
+        }
+    }
+
+    @Getter
+    public static class StageMetrics {
+
+        private final int stageId;
+        private final int attemptId;
+        private String name;
+        private boolean failed;
+        private long durationMs;
+        private int tasks;
+        private int failedTasks;
+        private long executorRunTimeMs;
+        private long gcTimeMs;
+        private long inputRows;
+        private long shuffleReadBytes;
+        private long shuffleWriteBytes;
+        private long memorySpillBytes;
+        private long diskSpillBytes;
+        @Getter(AccessLevel.NONE) private final List<Long> taskTimesMs = new ArrayList<>();
+
+        private StageMetrics(int stageId, int attemptId) {
+
+            this.stageId = stageId;
+            this.attemptId = attemptId;
+        }
+
+        public long getMaxTaskTimeMs() {
+
+            return taskTimesMs.stream().mapToLong(Long::longValue).max().orElse(0);
+        }
+
+        public long getMedianTaskTimeMs() {
+
+            long[] sortedTaskTimesMs = taskTimesMs.stream().mapToLong(Long::longValue).sorted().toArray();
+            return sortedTaskTimesMs.length > 0 ? sortedTaskTimesMs[sortedTaskTimesMs.length / 2] : 0;
+        }
+
+        // RATIO BETWEEN MAX AND MEDIAN TASK TIME (1 MEANS NO SKEW)
+        public double getTaskSkew() {
+
+            return getMedianTaskTimeMs() > 0 ? (double) getMaxTaskTimeMs() / getMedianTaskTimeMs() : 1;
+        }
+    }
+}
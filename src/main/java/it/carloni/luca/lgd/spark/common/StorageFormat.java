@@ -0,0 +1,19 @@
+package it.carloni.luca.lgd.spark.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@AllArgsConstructor
+public enum StorageFormat {
+
+    CSV("csv"),
+    PARQUET("parquet"),
+    ORC("orc");
+
+    @Getter private final String name;
+
+    public static StorageFormat fromName(String name) {
+
+        return StorageFormat.valueOf(name.trim().toUpperCase());
+    }
+}
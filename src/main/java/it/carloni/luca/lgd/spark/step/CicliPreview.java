@@ -11,6 +11,9 @@ import org.apache.spark.sql.expressions.Window;
 import org.apache.spark.sql.expressions.WindowSpec;
 import org.apache.spark.sql.functions;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import static it.carloni.luca.lgd.spark.utils.StepUtils.changeDateFormatUDF;
 import static it.carloni.luca.lgd.spark.utils.StepUtils.changeDateFormat;
 import static it.carloni.luca.lgd.spark.utils.StepUtils.toIntCol;
@@ -150,12 +153,12 @@ public class CicliPreview extends AbstractStep<DataAUfficioValue> {
 
         String oldPattern = "yyyyMMdd";
         String newPattern = "yyyy-MM-dd";
-        Column dataInizioDefCol = changeDateFormatUDF(fposiBase.col("datainiziodef"), oldPattern, newPattern).as("datainiziodef");
-        Column dataFineDefCol = changeDateFormatUDF(fposiBase.col("datafinedef"), oldPattern, newPattern).as("datafinedef");
-        Column dataInizioPdCol = changeDateFormatUDF(fposiBase.col("datainiziopd"), oldPattern, newPattern).as("datainiziopd");
-        Column dataInizioIncCol = changeDateFormatUDF(fposiBase.col("datainizioinc"), oldPattern, newPattern).as("datainizioinc");
-        Column dataInizioRistruttCol = changeDateFormatUDF(fposiBase.col("datainizioristrutt"), oldPattern, newPattern).as("datainizioristrutt");
-        Column dataSofferenzaCol = changeDateFormatUDF(fposiBase.col("datasofferenza"), oldPattern, newPattern).as("datasofferenza");
+        Column dataInizioDefCol = changeDateFormatUDF(fposiBase.col("datainiziodef"), oldPattern, newPattern, nativeDateFunctions).as("datainiziodef");
+        Column dataFineDefCol = changeDateFormatUDF(fposiBase.col("datafinedef"), oldPattern, newPattern, nativeDateFunctions).as("datafinedef");
+        Column dataInizioPdCol = changeDateFormatUDF(fposiBase.col("datainiziopd"), oldPattern, newPattern, nativeDateFunctions).as("datainiziopd");
+        Column dataInizioIncCol = changeDateFormatUDF(fposiBase.col("datainizioinc"), oldPattern, newPattern, nativeDateFunctions).as("datainizioinc");
+        Column dataInizioRistruttCol = changeDateFormatUDF(fposiBase.col("datainizioristrutt"), oldPattern, newPattern, nativeDateFunctions).as("datainizioristrutt");
+        Column dataSofferenzaCol = changeDateFormatUDF(fposiBase.col("datasofferenza"), oldPattern, newPattern, nativeDateFunctions).as("datasofferenza");
 
         /*
         FLATTEN(fposi_base.ufficio)             as ufficio
@@ -195,8 +198,6 @@ public class CicliPreview extends AbstractStep<DataAUfficioValue> {
 
         // 129
 
-        writeDatasetAsCsvAtPath(fposiGen2, fposiGen2OutCsv);
-
         // 136
 
         Column subStringDataInizioDefCol = functions.substring(fposiBase.col("datainiziodef"), 0, 6).as("mese_apertura");
@@ -230,7 +231,11 @@ public class CicliPreview extends AbstractStep<DataAUfficioValue> {
 
         // 169
 
-        writeDatasetAsCsvAtPath(fposiSintGen2, fposiSintGen2Csv);
+        // fposi_gen2 AND fposi_sint_gen2 ARE BOTH DERIVED FROM fposiBase, WHICH IS THEN COMPUTED ONLY ONCE
+        Map<String, Dataset<Row>> outputDatasets = new LinkedHashMap<>();
+        outputDatasets.put(fposiGen2OutCsv, fposiGen2);
+        outputDatasets.put(fposiSintGen2Csv, fposiSintGen2);
+        writeDatasetsFromSharedBase(fposiBase, outputDatasets);
     }
 
     // column is null?'99999999':column
@@ -0,0 +1,40 @@
+package it.carloni.luca.lgd.spark.step;
+
+import it.carloni.luca.lgd.parameter.step.EmptyValue;
+import it.carloni.luca.lgd.schema.InputSchema;
+import it.carloni.luca.lgd.spark.common.AbstractStep;
+import it.carloni.luca.lgd.spark.common.StorageFormat;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+
+import java.util.Map;
+
+public class CsvToColumnar extends AbstractStep<EmptyValue> {
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    @Override
+    public void run(EmptyValue emptyValue) {
+
+        // CONVERTS EACH STEP INPUT WHOSE CONFIGURED STORAGE FORMAT IS COLUMNAR,
+        // READING ITS .csv VERSION BY MEANS OF THE RELATED PIG SCHEMA
+        for (Map.Entry<String, Map<String, String>> inputPigSchema : InputSchema.getInputPigSchemas().entrySet()) {
+
+            String inputKey = inputPigSchema.getKey();
+            String inputCsvPath = getValue(inputKey);
+            StorageFormat storageFormat = getStorageFormat(inputCsvPath);
+
+            logger.info(String.format("%s: %s (storage format: %s)", inputKey, inputCsvPath, storageFormat.getName()));
+
+            if (storageFormat == StorageFormat.CSV) {
+
+                logger.info(String.format("Skipping conversion of %s", inputKey));
+                continue;
+            }
+
+            Dataset<Row> inputCsv = readCsv(inputCsvPath, fromPigSchemaToStructType(inputPigSchema.getValue()));
+            writeDatasetAtPath(inputCsv, getStoragePath(inputCsvPath, storageFormat), storageFormat, getPartitionColumns(inputCsvPath));
+        }
+    }
+}
@@ -2,18 +2,19 @@ package it.carloni.luca.lgd.spark.step;
 
 import it.carloni.luca.lgd.parameter.step.DataANumeroMesi12Value;
 import it.carloni.luca.lgd.schema.FanagMonthlySchema;
-import it.carloni.luca.lgd.spark.common.AbstractStep;
+import it.carloni.luca.lgd.spark.common.AbstractIncrementalStep;
+import it.carloni.luca.lgd.spark.common.CycleWindowJoin;
+import it.carloni.luca.lgd.spark.common.IncrementalWindow;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.functions;
 import org.apache.log4j.Logger;
-import org.apache.spark.sql.types.DataTypes;
 
-import static it.carloni.luca.lgd.spark.utils.StepUtils.*;
+import static it.carloni.luca.lgd.spark.utils.StepUtils.toDateLit;
 
 
-public class FanagMonthly extends AbstractStep<DataANumeroMesi12Value> {
+public class FanagMonthly extends AbstractIncrementalStep<DataANumeroMesi12Value> {
 
     private final Logger logger = Logger.getLogger(getClass());
 
@@ -35,118 +36,35 @@ public class FanagMonthly extends AbstractStep<DataANumeroMesi12Value> {
         String dataA = dataANumeroMesi12Values.getDataA();
         int numeroMesi1 = dataANumeroMesi12Values.getNumeroMesi1();
         int numeroMesi2 = dataANumeroMesi12Values.getNumeroMesi2();
-        String Y4M2D2Format = "yyyyMMdd";
 
         Dataset<Row> cicliNdg = readCsvAtPathUsingSchema(cicliNdgPath, FanagMonthlySchema.getCicliNdgPigSchema());
 
-        // cicli_ndg_princ = FILTER cicli_ndg BY cd_collegamento IS NULL;
-        // cicli_ndg_coll = FILTER cicli_ndg BY cd_collegamento IS NOT NULL;
-
-        Dataset<Row> cicliNdgPrinc = cicliNdg.filter(cicliNdg.col("cd_collegamento").isNull());
-        Dataset<Row> cicliNdgColl = cicliNdg.filter(cicliNdg.col("cd_collegamento").isNotNull());
+        // IN INCREMENTAL MODE, ONLY MONTHS WITHIN THE INCREMENTAL WINDOW ARE RECOMPUTED
+        IncrementalWindow incrementalWindow = getIncrementalWindow(fanagOutPath, "datariferimento", cicliNdg, dataA, numeroMesi1, numeroMesi2);
 
-        Dataset<Row> tlbuact = readCsvAtPathUsingSchema(tlbuActPath, FanagMonthlySchema.getTlbuactPigSchema())
+        Dataset<Row> tlbuact = incrementalWindow.filter(readCsvAtPathUsingSchema(tlbuActPath, FanagMonthlySchema.getTlbuactPigSchema()), "dt_riferimento")
                 .selectExpr("dt_riferimento", "cd_istituto", "ndg", "tp_ndg", "intestazione",
                         "cd_fiscale", "partita_iva", "sae", "rae", "ciae", "provincia", "sportello", "ndg_caponucleo");
 
-        // JOIN  tlbuact BY (cd_istituto, ndg), cicli_ndg_princ BY (codicebanca_collegato, ndg_collegato);
-        Column tlbuactCicliNdgPrincJoinCondition = tlbuact.col("cd_istituto").equalTo(cicliNdgPrinc.col("codicebanca_collegato"))
-                .and(tlbuact.col("ndg").equalTo(cicliNdgPrinc.col("ndg_collegato")));
-
-        //  FILTER BY ToDate((chararray)dt_riferimento,'yyyyMMdd') >= SubtractDuration(ToDate((chararray)datainiziodef,'yyyyMMdd'),'$numero_mesi_1')
-        Column dtRiferimentoDataInizioDefPrincConditionCol = toStringCol(tlbuact.col("dt_riferimento"))
-                .geq(subtractDurationUDF(toStringCol(cicliNdgPrinc.col("datainiziodef")), Y4M2D2Format, numeroMesi1));
-
-        // LeastDate( (int)ToString(SubtractDuration(ToDate((chararray)datafinedef,'yyyyMMdd' ),'P1M'),'yyyyMMdd'), $data_a )
-        // [a] SubtractDuration(ToDate((chararray)datafinedef,'yyyyMMdd' ),'P1M'),'yyyyMMdd')
-        Column cicliNdgPrincDataFineDefSubtractDurationCol = subtractDurationUDF(toStringCol(cicliNdgPrinc.col("datafinedef")), Y4M2D2Format, 1);
-
-        // we need to format $data_a to pattern yyyyMMdd
-        String dataAPattern = getValue("params.dataa.pattern");
-        Column dataACol = functions.lit(changeDateFormat(dataA, dataAPattern, Y4M2D2Format));
-        Column leastDatePrincCol = leastDateUDF(cicliNdgPrincDataFineDefSubtractDurationCol, dataACol, Y4M2D2Format);
-
-        // AddDuration( ToDate( (chararray) leastDate(...),'yyyyMMdd'), $data_a ),'yyyyMMdd' ),'$numero_mesi_2' )
-        Column leastDateAddDurationPrincCol = addDurationUDF(leastDatePrincCol, Y4M2D2Format, numeroMesi2);
-
-        // SUBSTRING( (chararray)dt_riferimento,0,6 ) <= SUBSTRING(leastDateAddDurationPrincCol, 0,6)
-        Column dtRiferimentoLeastDateAddDurationPrincConditionCol = substring06(tlbuact.col("dt_riferimento"))
-                        .leq(substring06(leastDateAddDurationPrincCol));
-
-        // 132
-
-        // 154
-
-        /*
-          cicli_ndg_princ::codicebanca_collegato as codicebanca_collegato
-         ,cicli_ndg_princ::ndg_collegato  as ndg_collegato
-         ,cicli_ndg_princ::datainiziodef  as datainiziodef
-         ,cicli_ndg_princ::datafinedef  as datafinedef
-         ,tlbuact::dt_riferimento as datariferimento
-         ,tlbuact::tp_ndg as naturagiuridica
-         ,tlbuact::intestazione as intestazione
-         ,tlbuact::cd_fiscale as codicefiscale
-         ,tlbuact::partita_iva as partitaiva
-         ,tlbuact::sae as sae
-         ,tlbuact::rae as rae
-         ,tlbuact::ciae as ciae
-         ,cicli_ndg_princ::provincia_segm as  provincia
-         ,tlbuact::provincia as provincia_cod
-         ,tlbuact::sportello as  sportello
-         ,cicli_ndg_princ::segmento as segmento
-         ,cicli_ndg_princ::cd_collegamento as cd_collegamento
-         ,tlbuact::ndg_caponucleo as ndg_caponucleo
-         ,cicli_ndg_princ::codicebanca  as codicebanca
-         ,cicli_ndg_princ::ndgprincipale  as ndgprincipale
-         */
-
-        Dataset<Row> tlbcidefTlbuactPrinc = tlbuact.join(cicliNdgPrinc, tlbuactCicliNdgPrincJoinCondition, "inner")
-                .filter(dtRiferimentoDataInizioDefPrincConditionCol.and(dtRiferimentoLeastDateAddDurationPrincConditionCol))
-                .select(cicliNdgPrinc.col("codicebanca_collegato"),
-                        cicliNdgPrinc.col("ndg_collegato"),
-                        cicliNdgPrinc.col("datainiziodef"),
-                        cicliNdgPrinc.col("datafinedef"),
-                        tlbuact.col("dt_riferimento").alias("datariferimento"),
-                        tlbuact.col("tp_ndg").alias("naturagiuridica"),
-                        tlbuact.col("intestazione"),
-                        tlbuact.col("cd_fiscale").alias("codicefiscale"),
-                        tlbuact.col("partita_iva").alias("partitaiva"),
-                        tlbuact.col("sae"), tlbuact.col("rae"), tlbuact.col("ciae"),
-                        cicliNdgPrinc.col("provincia_segm").alias("provincia"),
-                        tlbuact.col("provincia").alias("provincia_cod"),
-                        tlbuact.col("sportello"),
-                        cicliNdgPrinc.col("segmento"),
-                        cicliNdgPrinc.col("cd_collegamento"),
-                        tlbuact.col("ndg_caponucleo"),
-                        cicliNdgPrinc.col("codicebanca"),
-                        cicliNdgPrinc.col("ndgprincipale"));
+        // cicli_ndg_princ = FILTER cicli_ndg BY cd_collegamento IS NULL;
+        // cicli_ndg_coll = FILTER cicli_ndg BY cd_collegamento IS NOT NULL;
+        // tlbcidef_tlbuact = DISTINCT (UNION tlbcidef_tlbuact_princ, tlbcidef_tlbuact_coll);
 
-        // JOIN  tlbuact BY (cd_istituto, ndg), cicli_ndg_coll BY (codicebanca_collegato, ndg_collegato);
-        Column tlbuactCicliNdgCollJoinCondition = tlbuact.col("cd_istituto").equalTo(cicliNdgColl.col("codicebanca_collegato"))
-                .and(tlbuact.col("ndg").equalTo(cicliNdgColl.col("ndg_collegato")));
+        // PRINC AND COLL CYCLES ARE JOINED WITH tlbuact BY SAME KEYS, FILTERED BY SAME DATE WINDOW AND PROJECTED ON SAME COLUMNS.
+        // SO, tlbuact IS JOINED ONLY ONCE WITH THE WHOLE cicli_ndg
+        CycleWindowJoin cycleWindowJoin = new CycleWindowJoin("fanag.monthly.tlbuact", cicliNdg, toDateLit(dataA, dataAPattern), numeroMesi1, numeroMesi2);
+        Dataset<Row> cicliNdgWindow = cycleWindowJoin.getCycles();
 
+        // JOIN  tlbuact BY (cd_istituto, ndg), cicli_ndg_princ|cicli_ndg_coll BY (codicebanca_collegato, ndg_collegato);
         //  FILTER BY ToDate((chararray)dt_riferimento,'yyyyMMdd') >= SubtractDuration(ToDate((chararray)datainiziodef,'yyyyMMdd'),'$numero_mesi_1')
-        Column dtRiferimentoDataInizioDefCollConditionCol = toStringCol(tlbuact.col("dt_riferimento"))
-                .geq(subtractDurationUDF(toStringCol(cicliNdgColl.col("datainiziodef")),Y4M2D2Format, numeroMesi1));
-
-        // LeastDate( (int)ToString(SubtractDuration(ToDate((chararray)datafinedef,'yyyyMMdd' ),'P1M'),'yyyyMMdd'), $data_a )
-        Column cicliNdgCollDataFineDefSubtractDurationCol = subtractDurationUDF(toStringCol(cicliNdgColl.col("datafinedef")), Y4M2D2Format, 1);
-        Column leastDateCollCol = leastDateUDF(cicliNdgCollDataFineDefSubtractDurationCol, dataACol, Y4M2D2Format);
-
-        // AddDuration( ToDate( (chararray) leastDate(...),'yyyyMMdd'), $data_a ),'yyyyMMdd' ),'$numero_mesi_2' )
-        Column leastDateAddDurationCollCol = addDurationUDF(leastDateCollCol, Y4M2D2Format, numeroMesi2);
-
-        // SUBSTRING( (chararray)dt_riferimento,0,6 ) <= SUBSTRING(leastDateAddDurationPrincCol, 0,6)
-        Column dtRiferimentoLeastDateAddDurationCollConditionCol = substring06(tlbuact.col("dt_riferimento"))
-                        .leq(substring06(leastDateAddDurationCollCol));
-
-        // 132
+        //  AND SUBSTRING( (chararray)dt_riferimento,0,6 ) <=
+        //  SUBSTRING(AddDuration(LeastDate( (int)ToString(SubtractDuration(ToDate((chararray)datafinedef,'yyyyMMdd' ),'P1M'),'yyyyMMdd'), $data_a ), '$numero_mesi_2'), 0, 6)
 
         /*
-         cicli_ndg_coll::codicebanca_collegato as codicebanca_collegato
-         ,cicli_ndg_coll::ndg_collegato  as ndg_collegato
-         ,cicli_ndg_coll::datainiziodef  as datainiziodef
-         ,cicli_ndg_coll::datafinedef  as datafinedef
+          cicli_ndg_princ|cicli_ndg_coll::codicebanca_collegato as codicebanca_collegato
+         ,cicli_ndg_princ|cicli_ndg_coll::ndg_collegato  as ndg_collegato
+         ,cicli_ndg_princ|cicli_ndg_coll::datainiziodef  as datainiziodef
+         ,cicli_ndg_princ|cicli_ndg_coll::datafinedef  as datafinedef
          ,tlbuact::dt_riferimento as datariferimento
          ,tlbuact::tp_ndg as naturagiuridica
          ,tlbuact::intestazione as intestazione
@@ -155,42 +73,38 @@ public class FanagMonthly extends AbstractStep<DataANumeroMesi12Value> {
          ,tlbuact::sae as sae
          ,tlbuact::rae as rae
          ,tlbuact::ciae as ciae
-         ,cicli_ndg_coll::provincia_segm as  provincia
+         ,cicli_ndg_princ|cicli_ndg_coll::provincia_segm as  provincia
          ,tlbuact::provincia as provincia_cod
          ,tlbuact::sportello as  sportello
-         ,cicli_ndg_coll::segmento as segmento
-         ,cicli_ndg_coll::cd_collegamento as cd_collegamento
+         ,cicli_ndg_princ|cicli_ndg_coll::segmento as segmento
+         ,cicli_ndg_princ|cicli_ndg_coll::cd_collegamento as cd_collegamento
          ,tlbuact::ndg_caponucleo as ndg_caponucleo
-         ,cicli_ndg_coll::codicebanca  as codicebanca
-         ,cicli_ndg_coll::ndgprincipale  as ndgprincipale
+         ,cicli_ndg_princ|cicli_ndg_coll::codicebanca  as codicebanca
+         ,cicli_ndg_princ|cicli_ndg_coll::ndgprincipale  as ndgprincipale
          */
 
-        Dataset<Row> tlbcidefTlbuactColl = tlbuact.join(cicliNdgColl, tlbuactCicliNdgCollJoinCondition, "inner")
-                .filter(dtRiferimentoDataInizioDefCollConditionCol.and(dtRiferimentoLeastDateAddDurationCollConditionCol))
-                .select(cicliNdgColl.col("codicebanca_collegato"),
-                        cicliNdgColl.col("ndg_collegato"),
-                        cicliNdgColl.col("datainiziodef"),
-                        cicliNdgColl.col("datafinedef"),
+        Dataset<Row> tlbcidefTlbuact = cycleWindowJoin.join(tlbuact, "dt_riferimento")
+                .select(cicliNdgWindow.col("codicebanca_collegato"),
+                        cicliNdgWindow.col("ndg_collegato"),
+                        cicliNdgWindow.col("datainiziodef"),
+                        cicliNdgWindow.col("datafinedef"),
                         tlbuact.col("dt_riferimento").alias("datariferimento"),
                         tlbuact.col("tp_ndg").alias("naturagiuridica"),
                         tlbuact.col("intestazione"),
                         tlbuact.col("cd_fiscale").alias("codicefiscale"),
                         tlbuact.col("partita_iva").alias("partitaiva"),
                         tlbuact.col("sae"), tlbuact.col("rae"), tlbuact.col("ciae"),
-                        cicliNdgColl.col("provincia_segm").alias("provincia"),
+                        cicliNdgWindow.col("provincia_segm").alias("provincia"),
                         tlbuact.col("provincia").alias("provincia_cod"),
                         tlbuact.col("sportello"),
-                        cicliNdgColl.col("segmento"),
-                        cicliNdgColl.col("cd_collegamento"),
+                        cicliNdgWindow.col("segmento"),
+                        cicliNdgWindow.col("cd_collegamento"),
                         tlbuact.col("ndg_caponucleo"),
-                        cicliNdgColl.col("codicebanca"),
-                        cicliNdgColl.col("ndgprincipale"));
-
-        Dataset<Row> tlbcidefTlbuact = tlbcidefTlbuactPrinc
-                .union(tlbcidefTlbuactColl)
+                        cicliNdgWindow.col("codicebanca"),
+                        cicliNdgWindow.col("ndgprincipale"))
                 .distinct();
 
-        Dataset<Row> tlbudtc = readCsvAtPathUsingSchema(tlbudtcPath, FanagMonthlySchema.getTlbudctPigSchema());
+        Dataset<Row> tlbudtc = incrementalWindow.filter(readCsvAtPathUsingSchema(tlbudtcPath, FanagMonthlySchema.getTlbudctPigSchema()), "dt_riferimento");
 
         // JOIN  tlbudtc BY (cd_istituto, ndg, dt_riferimento), tlbcidef_tlbuact BY (codicebanca_collegato,ndg_collegato, datariferimento) ;
         Column tlbudtcJoinCondition = tlbudtc.col("cd_istituto").equalTo(tlbcidefTlbuact.col("codicebanca_collegato"))
@@ -218,12 +132,6 @@ public class FanagMonthly extends AbstractStep<DataANumeroMesi12Value> {
                         tlbcidefTlbuact.col("ndgprincipale").as("ndgprincipale"),
                         tlbcidefTlbuact.col("datainiziodef").as("datainiziodef"));
 
-        writeDatasetAsCsvAtPath(fanagOut, fanagOutPath);
-    }
-
-    private Column substring06(Column column) {
-
-        return functions.substring(column.cast(DataTypes.StringType), 0, 6);
+        writeDatasetIncrementally(fanagOut, fanagOutPath, "datariferimento", incrementalWindow);
     }
 }
-
@@ -2,19 +2,16 @@ package it.carloni.luca.lgd.spark.step;
 
 import it.carloni.luca.lgd.parameter.step.EmptyValue;
 import it.carloni.luca.lgd.spark.common.AbstractStep;
+import it.carloni.luca.lgd.spark.common.SkewJoin;
 import it.carloni.luca.lgd.schema.FpasperdSchema;
 import org.apache.log4j.Logger;
 import org.apache.spark.sql.*;
 import org.apache.spark.sql.expressions.Window;
 import org.apache.spark.sql.expressions.WindowSpec;
 
-import java.util.Arrays;
-
-import static it.carloni.luca.lgd.spark.utils.StepUtils.addDurationUDF;
-import static it.carloni.luca.lgd.spark.utils.StepUtils.daysBetweenUDF;
-import static it.carloni.luca.lgd.spark.utils.StepUtils.substringAndToInt;
-import static it.carloni.luca.lgd.spark.utils.StepUtils.toScalaSeq;
-import static it.carloni.luca.lgd.spark.utils.StepUtils.toStringCol;
+import static it.carloni.luca.lgd.spark.utils.NativeDateFunctions.addMonthsToDate;
+import static it.carloni.luca.lgd.spark.utils.NativeDateFunctions.daysBetweenDates;
+import static it.carloni.luca.lgd.spark.utils.NativeDateFunctions.toYearMonth;
 
 public class Fpasperd extends AbstractStep<EmptyValue> {
 
@@ -37,7 +34,7 @@ public class Fpasperd extends AbstractStep<EmptyValue> {
         Dataset<Row> tlbcidefLoad = readCsvAtPathUsingSchema(cicliNdgPathCsv, FpasperdSchema.getTlbcidefLoadPigSchema());
 
         // (int)ToString(AddDuration( ToDate( (chararray)datafinedef,'yyyyMMdd' ),'P2M' ),'yyyyMMdd' )	AS  datafinedef
-        Column dataFineDefCol = addDurationUDF(toStringCol(tlbcidefLoad.col("datafinedef")), "yyyyMMdd", 2).as("datafinedef");
+        Column dataFineDefCol = addMonthsToDate(tlbcidefLoad.col("datafinedef"), 2).as("datafinedef");
         Dataset<Row> tlbcidef = tlbcidefLoad
                 .select(functions.col("codicebanca"), functions.col("ndgprincipale"),
                         functions.col("datainiziodef"), dataFineDefCol,
@@ -49,189 +46,50 @@ public class Fpasperd extends AbstractStep<EmptyValue> {
 
         // 71
 
-        // 77
-
-        // JOIN tlbpaspe_filter BY (cd_istituto, ndg) LEFT, tlbcidef BY (codicebanca_collegato, ndg_collegato);
-        Column tlbcidefTlbPaspeFilterJoinCondition = tlbpaspeFilter.col("cd_istituto").equalTo(tlbcidef.col("codicebanca_collegato"))
-                .and(tlbpaspeFilter.col("ndg").equalTo(tlbcidef.col("ndg_collegato")));
+        // 313
+        // EACH MOVEMENT IS MATCHED AGAINST CYCLES BY (codicebanca_collegato, ndg_collegato) OR, IF NO SUCH CYCLE EXISTS, BY (codicebanca, ndgprincipale).
+        // SINCE THE CHOICE DEPENDS ONLY ON (cd_istituto, ndg), IT IS RESOLVED ON tlbcidef SIDE, SO THAT tlbpaspe_filter IS JOINED ONLY ONCE
+        // AND THE FOLLOWING WINDOWS (PARTITIONED BY cd_istituto, ndg, ...) DO NOT REQUIRE FURTHER SHUFFLES
+        Dataset<Row> tlbcidefLinks = getTlbcidefLinks(tlbcidef);
 
-        // BY (int)SUBSTRING((chararray)tlbpaspe_filter::datacont,0,6) >= (int)SUBSTRING((chararray)tlbcidef::datainiziodef,0,6)
-        Column fpasperdBetweenGenDataContDataInizioDefFilterCol = substring06ToInt(tlbpaspeFilter.col("datacont"))
-                .geq(substring06ToInt(tlbcidef.col("datainiziodef")));
+        // (int)SUBSTRING((chararray)datacont,0,6) >= (int)SUBSTRING((chararray)datainiziodef,0,6)
+        // AND (int)SUBSTRING((chararray)datacont,0,6) < (int)SUBSTRING((chararray)datafinedef,0,6)
+        Column dataContYearMonthCol = toYearMonth(tlbpaspeFilter.col("datacont"));
+        Column isBetweenCol = functions.coalesce(dataContYearMonthCol.geq(toYearMonth(tlbcidefLinks.col("datainiziodef")))
+                .and(dataContYearMonthCol.lt(toYearMonth(tlbcidefLinks.col("datafinedef")))), functions.lit(false));
 
-        // AND (int)SUBSTRING((chararray)tlbpaspe_filter::datacont,0,6) < (int)SUBSTRING( (chararray)tlbcidef::datafinedef,0,6 )
-        Column fpasperdBetweenGenDataContDataFineDefFilterCol = substring06ToInt(tlbpaspeFilter.col("datacont"))
-                .lt(substring06ToInt(tlbcidef.col("datafinedef")));
+        // DaysBetween( ToDate((chararray)datafinedef,'yyyyMMdd' ), ToDate((chararray)datacont,'yyyyMMdd' ) ) as days_diff
+        Column daysDiffCol = daysBetweenDates(tlbcidefLinks.col("datafinedef"), tlbpaspeFilter.col("datacont"));
 
-        // DaysBetween( ToDate((chararray)tlbcidef::datafinedef,'yyyyMMdd' ), ToDate((chararray)tlbpaspe_filter::datacont,'yyyyMMdd' ) ) as days_diff
-        Column fpasperdBetweenGenDaysDiffColl = daysBetweenUDF(toStringCol(tlbcidef.col("datafinedef")), toStringCol(tlbpaspeFilter.col("datacont")), "yyyyMMdd");
+        SkewJoin tlbpaspeFilterTlbcidefLinksJoin = new SkewJoin("fpasperd.tlbpaspe.filter",
+                new String[] {"cd_istituto", "ndg"}, new String[] {"link_cd_istituto", "link_ndg"});
 
-        Dataset<Row> fpasperdBetweenGen = tlbpaspeFilter.join(tlbcidef, tlbcidefTlbPaspeFilterJoinCondition, "left")
-                .filter(fpasperdBetweenGenDataContDataInizioDefFilterCol.and(fpasperdBetweenGenDataContDataFineDefFilterCol))
+        Dataset<Row> fpasperdGen = tlbpaspeFilterTlbcidefLinksJoin.join(tlbpaspeFilter, tlbcidefLinks, "left")
                 .select(tlbpaspeFilter.col("cd_istituto"), tlbpaspeFilter.col("ndg"), tlbpaspeFilter.col("datacont"),
-                        tlbpaspeFilter.col("causale"), tlbpaspeFilter.col("importo"), tlbcidef.col("codicebanca"),
-                        tlbcidef.col("ndgprincipale"), tlbcidef.col("datainiziodef"), tlbcidef.col("datafinedef"))
-                .withColumn("days_diff", fpasperdBetweenGenDaysDiffColl);
-
-        // 104
+                        tlbpaspeFilter.col("causale"), tlbpaspeFilter.col("importo"), tlbcidefLinks.col("codicebanca"),
+                        tlbcidefLinks.col("ndgprincipale"), tlbcidefLinks.col("datainiziodef"),
+                        isBetweenCol.as("is_between"), daysDiffCol.as("days_diff"));
 
-        // 109
-        // GROUP fpasperd_between_gen BY ( cd_istituto, ndg, datacont, causale, codicebanca, ndgprincipale );
-        // ... ORDER fpasperd_between_gen by days_diff ASC
+        // fpasperd_between_out: GROUP ... BY ( cd_istituto, ndg, datacont, causale, codicebanca, ndgprincipale ), ORDER ... BY days_diff ASC
         WindowSpec fpasperdBetweenOutWindowSpec = Window.partitionBy("cd_istituto", "ndg", "datacont", "causale",
-                "codicebanca", "ndgprincipale").orderBy(functions.col("days_diff").asc());
-
-        Dataset<Row> fpasperdBetweenOut = fpasperdBetweenGen
-                .select(functions.col("cd_istituto"), functions.col("ndg"),
-                        functions.col("datacont"), functions.col("causale"),
-                        functions.first("importo").over(fpasperdBetweenOutWindowSpec).as("importo"),
-                        functions.col("codicebanca"), functions.col("ndgprincipale"),
-                        functions.first("datainiziodef").over(fpasperdBetweenOutWindowSpec).as("datainiziodef"))
-                .distinct();
-        // 127
-
-        // 132
-
-        Column codiceBancaNullCol = toStringCol(functions.lit(null)).as("codicebanca");
-        Column ndgPrincipaleNullCol = toStringCol(functions.lit(null)).as("ndgprincipale");
-        Column dataInizioDefNullCol = toStringCol(functions.lit(null)).as("datainiziodef");
-
-        // ... = JOIN tlbpaspe_filter BY (cd_istituto, ndg) LEFT, tlbcidef BY (codicebanca_collegato, ndg_collegato);
-        // FILTER ... BY tlbcidef::codicebanca IS NOT NULL
-        Dataset<Row> fpasperdOtherGen = tlbpaspeFilter.join(tlbcidef, tlbcidefTlbPaspeFilterJoinCondition, "left_semi")
-                .select(tlbpaspeFilter.col("cd_istituto"), tlbpaspeFilter.col("ndg"), tlbpaspeFilter.col("datacont"),
-                        tlbpaspeFilter.col("causale"), tlbpaspeFilter.col("importo"), codiceBancaNullCol, ndgPrincipaleNullCol,
-                        dataInizioDefNullCol);
-
-        // 147
-
-        // 152
-
-        // ... = JOIN fpasperd_other_gen BY (cd_istituto, ndg, datacont) LEFT, fpasperd_between_out BY (cd_istituto, ndg, datacont);
-        // FILTER ... BY fpasperd_between_out::cd_istituto IS NULL
-
-        Dataset<Row> fpasperdOtherOut = fpasperdOtherGen.join(fpasperdBetweenOut,
-                toScalaSeq(Arrays.asList("cd_istituto", "ndg", "datacont")),
-                "left_anti");
-
-        // 170
-
-        // 175
-
-        // ... = JOIN tlbpaspe_filter BY (cd_istituto, ndg) LEFT, tlbcidef BY (codicebanca_collegato, ndg_collegato);
-        // FILTER ... BY tlbcidef::codicebanca IS NULL
-
-        Dataset<Row> fpasperdNullOut = tlbpaspeFilter.join(tlbcidef, tlbcidefTlbPaspeFilterJoinCondition, "left_anti")
-                .select(tlbpaspeFilter.col("cd_istituto"), tlbpaspeFilter.col("ndg"), tlbpaspeFilter.col("datacont"),
-                        tlbpaspeFilter.col("causale"), tlbpaspeFilter.col("importo"), codiceBancaNullCol, ndgPrincipaleNullCol,
-                        dataInizioDefNullCol);
-
-        // 190
-
-        // 198
-
-        // JOIN fpasperd_null_out BY (cd_istituto, ndg) LEFT, tlbcidef BY (codicebanca, ndgprincipale);
-        Column principFpasperdBetweenGenJoinCondition = fpasperdNullOut.col("cd_istituto").equalTo(tlbcidef.col("codicebanca"))
-                .and(fpasperdNullOut.col("ndg").equalTo(tlbcidef.col("ndgprincipale")));
-
-        //  BY (int)SUBSTRING((chararray)fpasperd_null_out::datacont,0,6) >= (int)SUBSTRING((chararray)tlbcidef::datainiziodef,0,6)
-        Column principFpasperdBetweenGenDataContDataInizioDefFilterCol =
-                substring06ToInt(fpasperdNullOut.col("datacont"))
-                        .geq(substring06ToInt(tlbcidef.col("datainiziodef")));
-
-        // AND (int)SUBSTRING((chararray)fpasperd_null_out::datacont,0,6) < (int)SUBSTRING( (chararray)tlbcidef::datafinedef,0,6 )
-        Column principFpasperdBetweenGenDataContDataFineDefFilterCol =
-                substring06ToInt(fpasperdNullOut.col("datacont"))
-                        .lt(substring06ToInt(tlbcidef.col("datafinedef")));
-
-        // DaysBetween( ToDate((chararray)tlbcidef::datafinedef,'yyyyMMdd' ),
-        // ToDate((chararray)fpasperd_null_out::datacont,'yyyyMMdd' ) ) as days_diff
-        Column principFpasperdBetweenGenDaysDiffColl = daysBetweenUDF(
-                toStringCol(tlbcidef.col("datafinedef")),
-                toStringCol(fpasperdNullOut.col("datacont")), "yyyyMMdd");
-
-        Dataset<Row> principFpasperdBetweenGen = fpasperdNullOut.join(tlbcidef, principFpasperdBetweenGenJoinCondition, "left")
-                .filter(principFpasperdBetweenGenDataContDataInizioDefFilterCol.and(principFpasperdBetweenGenDataContDataFineDefFilterCol))
-                .select(fpasperdNullOut.col("cd_istituto"), fpasperdNullOut.col("ndg"), fpasperdNullOut.col("datacont"),
-                        fpasperdNullOut.col("causale"), fpasperdNullOut.col("importo"), tlbcidef.col("codicebanca"),
-                        tlbcidef.col("ndgprincipale"), tlbcidef.col("datainiziodef"), tlbcidef.col("datafinedef"))
-                .withColumn("days_diff", principFpasperdBetweenGenDaysDiffColl);
+                "codicebanca", "ndgprincipale", "is_between").orderBy(functions.col("days_diff").asc());
 
-        // 222
+        // fpasperd_other_out, fpasperd_null_out: MOVEMENTS WHOSE (cd_istituto, ndg, datacont) DOES NOT FALL WITHIN ANY CYCLE
+        WindowSpec dataContWindowSpec = Window.partitionBy("cd_istituto", "ndg", "datacont");
 
-        // 227
-        Dataset<Row> principFpasperdBetweenOut = principFpasperdBetweenGen
+        Column isBetween = functions.col("is_between");
+        Dataset<Row> fpasperdOutDistinct = fpasperdGen
+                .withColumn("any_between", functions.max(isBetween).over(dataContWindowSpec))
+                .filter(isBetween.or(functions.not(functions.col("any_between"))))
                 .select(functions.col("cd_istituto"), functions.col("ndg"),
                         functions.col("datacont"), functions.col("causale"),
-                        functions.first("importo").over(fpasperdBetweenOutWindowSpec).as("importo"),
-                        functions.col("codicebanca"), functions.col("ndgprincipale"),
-                        functions.first("datainiziodef").over(fpasperdBetweenOutWindowSpec).as("datainiziodef"))
+                        functions.when(isBetween, functions.first("importo").over(fpasperdBetweenOutWindowSpec))
+                                .otherwise(functions.col("importo")).as("importo"),
+                        functions.when(isBetween, functions.col("codicebanca")).as("codicebanca"),
+                        functions.when(isBetween, functions.col("ndgprincipale")).as("ndgprincipale"),
+                        functions.when(isBetween, functions.first("datainiziodef").over(fpasperdBetweenOutWindowSpec)).as("datainiziodef"))
                 .distinct();
 
-        // 245
-
-        // 250
-
-
-        // ... = JOIN fpasperd_null_out BY (cd_istituto, ndg) LEFT, tlbcidef BY (codicebanca, ndgprincipale);
-        // FILTER ... BY tlbcidef::codicebanca IS NOT NULL
-
-        Column principFpasperdOtherGenJoinCondition =
-                fpasperdNullOut.col("cd_istituto").equalTo(tlbcidef.col("codicebanca"))
-                        .and(fpasperdNullOut.col("ndg").equalTo(tlbcidef.col("ndgprincipale")));
-
-        Dataset<Row> principFpasperdOtherGen = fpasperdNullOut.join(tlbcidef, principFpasperdOtherGenJoinCondition, "left_semi")
-                .select(fpasperdNullOut.col("cd_istituto"), fpasperdNullOut.col("ndg"),
-                        fpasperdNullOut.col("datacont"), fpasperdNullOut.col("causale"),
-                        fpasperdNullOut.col("importo"), codiceBancaNullCol, ndgPrincipaleNullCol, dataInizioDefNullCol);
-
-        // 265
-
-        // 270
-
-        // JOIN princip_fpasperd_other_gen BY (cd_istituto, ndg, datacont) LEFT, princip_fpasperd_between_out BY (cd_istituto, ndg, datacont);
-        // FILTER BY princip_fpasperd_between_out::cd_istituto IS NULL
-
-        Dataset<Row> principFpasperdOtherOut = principFpasperdOtherGen.join(principFpasperdBetweenOut,
-                toScalaSeq(Arrays.asList("cd_istituto", "ndg", "datacont")),
-                "left_anti");
-
-        // 288
-
-        // 293
-
-        // ... = JOIN fpasperd_null_out BY (cd_istituto, ndg) LEFT, tlbcidef BY (codicebanca, ndgprincipale);
-        // FILTER ... BY tlbcidef::codicebanca IS NULL
-
-        Column principFpasperdNullOutJoinCondition = fpasperdNullOut.col("cd_istituto").equalTo(tlbcidef.col("codicebanca"))
-                .and(fpasperdNullOut.col("ndg").equalTo(tlbcidef.col("ndgprincipale")));
-
-        Dataset<Row> principFpasperdNullOut = fpasperdNullOut.join(tlbcidef, principFpasperdNullOutJoinCondition, "left_anti")
-                .select(fpasperdNullOut.col("cd_istituto"), fpasperdNullOut.col("ndg"),
-                        fpasperdNullOut.col("datacont"), fpasperdNullOut.col("causale"),
-                        fpasperdNullOut.col("importo"), codiceBancaNullCol, ndgPrincipaleNullCol, dataInizioDefNullCol);
-
-        // 308
-
-        // 313
-
-        logger.info("Trying to perform union of many DataFrames");
-
-        logNumberAndNameOfColumns(fpasperdBetweenOut, "fpasperdBetweenOut");
-        logNumberAndNameOfColumns(fpasperdOtherOut, "fpasperdOtherOut");
-        logNumberAndNameOfColumns(principFpasperdBetweenOut, "principFpasperdBetweenOut");
-        logNumberAndNameOfColumns(principFpasperdOtherOut, "principFpasperdOtherOut");
-        logNumberAndNameOfColumns(principFpasperdNullOut, "principFpasperdNullOut");
-
-        Dataset<Row> fpasperdOutDistinct = fpasperdBetweenOut
-                .union(fpasperdOtherOut)
-                .union(principFpasperdBetweenOut)
-                .union(principFpasperdOtherOut)
-                .union(principFpasperdNullOut)
-                .distinct();
-
-        logger.info("Successfully performed DataFrames union");
-
         // 331
 
         // 336
@@ -305,15 +163,30 @@ public class Fpasperd extends AbstractStep<EmptyValue> {
         writeDatasetAsCsvAtPath(paspePaspeossGenDist, paspePaspeossGenDistCsv);
     }
 
-    private void logNumberAndNameOfColumns(Dataset<Row> dataset, String datasetName) {
-
-        int numberOfColumns = dataset.columns().length;
-        String columnNames = String.join(", ", dataset.columns());
-        logger.info(String.format("DataFrame %s has %s columns (%s)", datasetName, numberOfColumns, columnNames));
-    }
-
-    private Column substring06ToInt(Column column) {
-
-        return substringAndToInt(column, 0, 6);
+    /***
+     * Cycles by (codicebanca_collegato, ndg_collegato) and by (codicebanca, ndgprincipale), as (link_cd_istituto, link_ndg).
+     * For each (link_cd_istituto, link_ndg), cycles by (codicebanca, ndgprincipale) are kept only if there is no cycle by (codicebanca_collegato, ndg_collegato)
+     * @param tlbcidef: tlbcidef dataset
+     * @return: dataset with columns link_cd_istituto, link_ndg, codicebanca, ndgprincipale, datainiziodef, datafinedef
+     */
+
+    private Dataset<Row> getTlbcidefLinks(Dataset<Row> tlbcidef) {
+
+        Dataset<Row> collegatoLinks = tlbcidef.select(functions.col("codicebanca_collegato").as("link_cd_istituto"),
+                functions.col("ndg_collegato").as("link_ndg"), functions.lit(1).as("link_priority"),
+                functions.col("codicebanca"), functions.col("ndgprincipale"),
+                functions.col("datainiziodef"), functions.col("datafinedef"));
+
+        Dataset<Row> principaleLinks = tlbcidef.select(functions.col("codicebanca").as("link_cd_istituto"),
+                functions.col("ndgprincipale").as("link_ndg"), functions.lit(2).as("link_priority"),
+                functions.col("codicebanca"), functions.col("ndgprincipale"),
+                functions.col("datainiziodef"), functions.col("datafinedef"));
+
+        WindowSpec linkWindowSpec = Window.partitionBy("link_cd_istituto", "link_ndg");
+        return collegatoLinks.union(principaleLinks)
+                .withColumn("min_link_priority", functions.min("link_priority").over(linkWindowSpec))
+                .filter(functions.col("link_priority").equalTo(functions.col("min_link_priority")))
+                .drop("link_priority", "min_link_priority")
+                .distinct();
     }
 }
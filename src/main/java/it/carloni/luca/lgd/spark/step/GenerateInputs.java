@@ -0,0 +1,365 @@
+package it.carloni.luca.lgd.spark.step;
+
+import it.carloni.luca.lgd.parameter.step.EmptyValue;
+import it.carloni.luca.lgd.schema.InputSchema;
+import it.carloni.luca.lgd.spark.common.AbstractStep;
+import it.carloni.luca.lgd.spark.common.StepContext;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.functions;
+import org.apache.spark.sql.types.DataTypes;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static it.carloni.luca.lgd.spark.utils.StepUtils.parseStringToLocalDate;
+
+/***
+ * Generates synthetic .csv inputs of all steps (see InputSchema), for scale and performance testing.
+ * Inputs are drawn from the same population of NDGs (generator.scale.factor * generator.ndgs.per.scale.unit), so that they are
+ * referentially consistent (e.g. NDGs of cicli_ndg appear within tlbuact, tlbudtc and tlbpaspe, within the same months).
+ * Columns are filled according to their name and Pig type, while rows depend on the columns of the input
+ * cycles (e.g. cicli_ndg, with a cycle start column and no reference date): rows for each cycle, and for each linked NDG if any
+ * monthly (e.g. tlbuact, tlbpaspe, with a reference date column): rows for each NDG and month up to generator.data.a
+ * NDG (others): one row for each NDG.
+ * The first generator.heavy.ndgs NDGs all have cycles and own generator.heavy.ndg.rows rows of each month of monthly inputs,
+ * so that keys are skewed as production ones. Values are derived from hashes of generator.seed and of row keys,
+ * hence the same settings always lead to the same data.
+ * As inputs are written at the paths of real ones, the step fails (before writing anything) if any of them already exists,
+ * unless generator.overwrite is true
+ */
+
+public class GenerateInputs extends AbstractStep<EmptyValue> {
+
+    private static final List<String> BANK_COLUMNS = Arrays.asList("cd_istituto", "codicebanca", "codicebanca_princ", "cd_isti", "istituto", "cd_isti_ced");
+    private static final List<String> NDG_COLUMNS = Arrays.asList("ndg", "ndgprincipale", "ndg_principale", "ndg_ced");
+    private static final List<String> LINKED_BANK_COLUMNS = Arrays.asList("codicebanca_collegato", "istituto_collegato", "cd_istituto_coll", "cd_isti_coll", "cd_isti_ric");
+    private static final List<String> LINKED_NDG_COLUMNS = Arrays.asList("ndg_collegato", "ndg_coll", "ndg_ric");
+    private static final List<String> CYCLE_START_COLUMNS = Arrays.asList("datainiziodef", "data_inizio_def", "dt_inizio_ciclo", "datainizio");
+    private static final List<String> CYCLE_END_COLUMNS = Arrays.asList("datafinedef", "dt_fine_ciclo", "datafine");
+    private static final List<String> REFERENCE_DATE_COLUMNS = Arrays.asList("dt_riferimento", "datariferimento", "data_rif");
+    private static final List<String> EVENT_DATE_COLUMNS = Arrays.asList("datacont", "dt_contabile");
+    private static final List<String> AMOUNT_COLUMN_PARTS = Arrays.asList("importo", "imp_", "saldo", "tot_", "totale", "util", "acco", "fair_value", "reddito", "patrimonio");
+    private static final String LINK_CODE_COLUMN = "cd_collegamento";
+
+    private static final String Y4M2D2_PATTERN = "yyyyMMdd";
+    private static final String OPEN_CYCLE_END = "9999-12-31";
+    private static final int HASH_BUCKETS = 1000000;
+
+    private final Logger logger = Logger.getLogger(getClass());
+    private final StepContext stepContext = StepContext.getInstance();
+    private final SparkSession sparkSession = stepContext.getSparkSession();
+
+    private final long seed = Long.parseLong(getValue("generator.seed"));
+    private final long numberOfNdgs = Math.round(Double.parseDouble(getValue("generator.scale.factor")) * Long.parseLong(getValue("generator.ndgs.per.scale.unit")));
+    private final long heavyNdgs = Math.min(Long.parseLong(getValue("generator.heavy.ndgs")), numberOfNdgs);
+    private final String[] banks = stepContext.getValues("generator.banks");
+    private final int months = Integer.parseInt(getValue("generator.months"));
+    private final LocalDate dataA = parseStringToLocalDate(getValue("generator.data.a"), Y4M2D2_PATTERN);
+    private final double nullShare = Double.parseDouble(getValue("generator.null.share"));
+    private final int codeCardinality = Integer.parseInt(getValue("generator.code.cardinality"));
+
+    @Override
+    public void run(EmptyValue emptyValue) {
+
+        logger.info(String.format("Generating inputs for %s NDG(s) (heavy: %s) and %s month(s) up to %s (seed: %s)",
+                numberOfNdgs, heavyNdgs, months, dataA, seed));
+
+        checkExistingInputs();
+
+        for (Map.Entry<String, Map<String, String>> inputPigSchema : InputSchema.getInputPigSchemas().entrySet()) {
+
+            String inputKey = inputPigSchema.getKey();
+            String inputCsvPath = getValue(inputKey);
+            Map<String, String> pigSchema = inputPigSchema.getValue();
+
+            Dataset<Row> inputKeys;
+            boolean hasReferenceDate = hasAnyColumn(pigSchema, REFERENCE_DATE_COLUMNS) || hasAnyColumn(pigSchema, EVENT_DATE_COLUMNS);
+            if (hasReferenceDate) {
+
+                int rowsPerNdg = Integer.parseInt(getDatasetSetting("generator.rows.per.ndg", inputCsvPath));
+                int heavyNdgRows = Integer.parseInt(getDatasetSetting("generator.heavy.ndg.rows", inputCsvPath));
+                logger.info(String.format("%s: %s (monthly, rows per NDG: %s, heavy NDG rows: %s)", inputKey, inputCsvPath, rowsPerNdg, heavyNdgRows));
+                inputKeys = getMonthlyKeys(rowsPerNdg, heavyNdgRows);
+
+            } else if (hasAnyColumn(pigSchema, CYCLE_START_COLUMNS)) {
+
+                logger.info(String.format("%s: %s (cycles)", inputKey, inputCsvPath));
+                inputKeys = getCycleKeys(hasAnyColumn(pigSchema, LINKED_NDG_COLUMNS));
+
+            } else {
+
+                logger.info(String.format("%s: %s (NDG)", inputKey, inputCsvPath));
+                inputKeys = getNdgKeys();
+            }
+
+            String datePattern = getDatasetSetting("generator.date.pattern", inputCsvPath);
+            Column[] inputColumns = pigSchema.entrySet()
+                    .stream()
+                    .map(entry -> getInputColumn(entry.getKey(), entry.getValue(), datePattern).as(entry.getKey()))
+                    .toArray(Column[]::new);
+
+            String[] partitionColumns = getPartitionColumns(inputCsvPath);
+            Dataset<Row> input = repartitionForOutput(inputKeys.select(inputColumns), inputCsvPath, partitionColumns);
+            writeCsv(input, inputCsvPath, false, partitionColumns);
+        }
+    }
+
+    // EXISTING INPUTS (e.g. REAL ONES) ARE NOT OVERWRITTEN, UNLESS EXPLICITLY REQUESTED
+    private void checkExistingInputs() {
+
+        boolean overwrite = Boolean.parseBoolean(getValue("generator.overwrite"));
+        List<String> existingInputPaths = InputSchema.getInputPigSchemas().keySet()
+                .stream()
+                .map(this::getValue)
+                .filter(this::exists)
+                .collect(Collectors.toList());
+
+        if (!existingInputPaths.isEmpty()) {
+
+            if (!overwrite) {
+
+                throw new IllegalStateException(String.format("%s input(s) already exist (%s). Set generator.overwrite = true to overwrite them",
+                        existingInputPaths.size(), String.join(", ", existingInputPaths)));
+            }
+
+            logger.warn(String.format("Overwriting %s existing input(s) (generator.overwrite = true)", existingInputPaths.size()));
+        }
+    }
+
+    private boolean exists(String path) {
+
+        try {
+
+            Path hadoopPath = new Path(path);
+            FileSystem fileSystem = hadoopPath.getFileSystem(sparkSession.sparkContext().hadoopConfiguration());
+            return fileSystem.exists(hadoopPath);
+        }
+
+        catch (IOException e) {
+
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ONE ROW FOR EACH NDG
+    private Dataset<Row> getNdgKeys() {
+
+        Column idCol = functions.col("id");
+        return withKeyColumns(sparkSession.range(0, numberOfNdgs).toDF(), idCol, functions.lit(0), idCol.cast(DataTypes.StringType));
+    }
+
+    // HEAVY NDGs AND A SHARE (generator.cycle.ndg.share) OF OTHER NDGs HAVE UP TO generator.max.cycles.per.ndg CYCLES.
+    // IF withLinkedNdgs, EACH CYCLE HAS A ROW FOR ITS PRINCIPAL NDG (link 0, WITHOUT cd_collegamento)
+    // AND UP TO generator.max.linked.ndgs ROWS FOR OTHER NDGs LINKED TO IT
+    private Dataset<Row> getCycleKeys(boolean withLinkedNdgs) {
+
+        int maxCycles = Integer.parseInt(getValue("generator.max.cycles.per.ndg"));
+        int maxLinkedNdgs = withLinkedNdgs ? Integer.parseInt(getValue("generator.max.linked.ndgs")) : 0;
+        double cycleNdgShare = Double.parseDouble(getValue("generator.cycle.ndg.share"));
+
+        Column idCol = functions.col("id");
+        Column cycleCol = functions.col("cycle");
+        Column linkCol = functions.col("link");
+
+        Dataset<Row> cycleLinks = sparkSession.range(0, numberOfNdgs).toDF()
+                .filter(idCol.lt(heavyNdgs).or(uniform("cycle_ndg", idCol).lt(cycleNdgShare)))
+                .withColumn("cycle", functions.explode(intArray(maxCycles)))
+                .filter(cycleCol.lt(functions.floor(uniform("cycles", idCol).multiply(maxCycles)).plus(1)))
+                .withColumn("link", functions.explode(intArray(maxLinkedNdgs + 1)))
+                .filter(linkCol.leq(functions.floor(uniform("links", idCol, cycleCol).multiply(maxLinkedNdgs + 1))));
+
+        // LINKED NDGs ARE DRAWN AMONG ALL NDGs BUT THE PRINCIPAL ONE
+        Column linkedIdCol = functions.pmod(idCol.plus(1).plus(functions.floor(uniform("linked_id", idCol, cycleCol, linkCol).multiply(numberOfNdgs - 1))),
+                functions.lit(numberOfNdgs));
+
+        return withKeyColumns(cycleLinks, functions.when(linkCol.equalTo(0), idCol).otherwise(linkedIdCol), cycleCol,
+                functions.concat_ws("_", idCol, cycleCol, linkCol))
+                .withColumn(LINK_CODE_COLUMN, functions.when(linkCol.gt(0), functions.lpad(linkCol.cast(DataTypes.StringType), 3, "0")));
+    }
+
+    // rowsPerNdg ROWS (heavyNdgRows FOR HEAVY NDGs) FOR EACH NDG AND MONTH, WHOSE REFERENCE DATE IS THE LAST DAY OF THE MONTH
+    // (AND EVENT DATE A DAY WITHIN THE MONTH)
+    private Dataset<Row> getMonthlyKeys(int rowsPerNdg, int heavyNdgRows) {
+
+        Column idCol = functions.col("id");
+        Column monthCol = functions.col("month");
+        Column rowCol = functions.col("row");
+
+        Dataset<Row> ndgRows = sparkSession.range(heavyNdgs, numberOfNdgs).toDF()
+                .withColumn("row", functions.explode(intArray(rowsPerNdg)));
+
+        Dataset<Row> heavyNdgRowsDataset = sparkSession.range(0, heavyNdgs * heavyNdgRows).toDF()
+                .select(functions.floor(idCol.divide(heavyNdgRows)).cast(DataTypes.LongType).as("id"),
+                        functions.pmod(idCol, functions.lit(heavyNdgRows)).cast(DataTypes.IntegerType).as("row"));
+
+        Dataset<Row> monthlyRows = ndgRows.union(heavyNdgRowsDataset)
+                .withColumn("month", functions.explode(intArray(months)));
+
+        Column referenceDateCol = getMonthEnd(monthCol);
+        Column eventDateCol = fromEpochDay(toEpochDay(referenceDateCol).minus(functions.floor(uniform("event_day", idCol, monthCol, rowCol).multiply(28))));
+
+        return withKeyColumns(monthlyRows, idCol, functions.lit(0), functions.concat_ws("_", idCol, monthCol, rowCol))
+                .withColumn("reference_date", referenceDateCol)
+                .withColumn("event_date", eventDateCol);
+    }
+
+    // bank AND ndg OF THE ROW (FROM id), linked_bank AND linked_ndg (FROM linkedIdCol), BOUNDS OF THE GIVEN CYCLE OF THE NDG
+    // AND row_key (FROM WHICH OTHER COLUMNS ARE DRAWN). BANKS ARE SKEWED TOWARDS THE FIRST ONES OF generator.banks (SQUARED UNIFORM INDEX)
+    private Dataset<Row> withKeyColumns(Dataset<Row> dataset, Column linkedIdCol, Column cycleCol, Column rowKeyCol) {
+
+        Column idCol = functions.col("id");
+        Column cycleStartMonthCol = functions.floor(uniform("cycle_start_month", idCol, cycleCol).multiply(months));
+        Column cycleStartCol = fromEpochDay(toEpochDay(getMonthEnd(cycleStartMonthCol))
+                .minus(functions.floor(uniform("cycle_start_day", idCol, cycleCol).multiply(28))));
+
+        Column cycleEndCol = functions.when(uniform("cycle_open", idCol, cycleCol).lt(0.5), functions.to_date(functions.lit(OPEN_CYCLE_END)))
+                .otherwise(fromEpochDay(toEpochDay(cycleStartCol).plus(functions.floor(uniform("cycle_days", idCol, cycleCol).multiply(months * 30)).plus(1))));
+
+        return dataset.withColumn("bank", getBank(idCol))
+                .withColumn("ndg", getNdg(idCol))
+                .withColumn("linked_bank", getBank(linkedIdCol))
+                .withColumn("linked_ndg", getNdg(linkedIdCol))
+                .withColumn(LINK_CODE_COLUMN, functions.lit(null).cast(DataTypes.StringType))
+                .withColumn("cycle_start", cycleStartCol)
+                .withColumn("cycle_end", cycleEndCol)
+                .withColumn("reference_date", getMonthEnd(functions.lit(0)))
+                .withColumn("event_date", getMonthEnd(functions.lit(0)))
+                .withColumn("row_key", rowKeyCol);
+    }
+
+    // VALUE OF AN INPUT COLUMN, ACCORDING TO ITS NAME AND PIG TYPE
+    private Column getInputColumn(String columnName, String pigType, String datePattern) {
+
+        String name = normalize(columnName);
+        Column rowKeyCol = functions.col("row_key");
+        String[] values = stepContext.getValues("generator.column.values." + name);
+
+        if (BANK_COLUMNS.contains(name)) return functions.col("bank");
+        if (NDG_COLUMNS.contains(name)) return functions.col("ndg");
+        if (LINKED_BANK_COLUMNS.contains(name)) return functions.col("linked_bank");
+        if (LINKED_NDG_COLUMNS.contains(name)) return functions.col("linked_ndg");
+        if (LINK_CODE_COLUMN.equals(name)) return functions.col(LINK_CODE_COLUMN);
+        if (CYCLE_START_COLUMNS.contains(name)) return formatDate(functions.col("cycle_start"), pigType, datePattern);
+        if (CYCLE_END_COLUMNS.contains(name)) return formatDate(functions.col("cycle_end"), pigType, datePattern);
+        if (REFERENCE_DATE_COLUMNS.contains(name)) return formatDate(functions.col("reference_date"), pigType, datePattern);
+        if (EVENT_DATE_COLUMNS.contains(name)) return formatDate(functions.col("event_date"), pigType, datePattern);
+
+        Column uniformCol = uniform(name, rowKeyCol);
+        if (values.length > 0) {
+
+            return pick(values, uniformCol);
+        }
+
+        // OTHER DATES (e.g. datainiziopd, dt_accensione) ARE OPTIONAL
+        if (pigType.equals("date") || name.startsWith("dt") || name.startsWith("data")) {
+
+            Column dateCol = getMonthEnd(functions.floor(uniformCol.multiply(months)));
+            return functions.when(uniform(name + "_null", rowKeyCol).geq(nullShare), formatDate(dateCol, pigType, datePattern));
+        }
+
+        switch (pigType) {
+
+            case "int": return functions.floor(uniformCol.multiply(1000)).cast(DataTypes.IntegerType);
+            case "double": return functions.round(uniformCol.multiply(1000000), 2);
+            default: {
+
+                return AMOUNT_COLUMN_PARTS.stream().anyMatch(name::contains) ?
+                        functions.round(uniformCol.multiply(1000000), 2).cast(DataTypes.StringType) :
+                        functions.lpad(functions.floor(uniformCol.multiply(codeCardinality)).cast(DataTypes.StringType), 2, "0");
+            }
+        }
+    }
+
+    // DATES ARE FORMATTED AS datePattern (yyyyMMdd FOR int COLUMNS)
+    private Column formatDate(Column dateCol, String pigType, String datePattern) {
+
+        return pigType.equals("int") ?
+                functions.date_format(dateCol, Y4M2D2_PATTERN).cast(DataTypes.IntegerType) :
+                functions.date_format(dateCol, datePattern);
+    }
+
+    // LAST DAY OF THE MONTH monthsBeforeDataACol MONTHS BEFORE generator.data.a
+    private Column getMonthEnd(Column monthsBeforeDataACol) {
+
+        Column monthCountCol = functions.lit(dataA.getYear() * 12L + dataA.getMonthValue() - 1).minus(monthsBeforeDataACol);
+        Column yearCol = functions.floor(monthCountCol.divide(12)).cast(DataTypes.StringType);
+        Column monthCol = functions.lpad(functions.pmod(monthCountCol, functions.lit(12)).plus(1).cast(DataTypes.StringType), 2, "0");
+
+        return functions.last_day(functions.to_date(functions.concat_ws("-", yearCol, monthCol, functions.lit("01"))));
+    }
+
+    private Column toEpochDay(Column dateCol) {
+
+        return functions.datediff(dateCol, functions.to_date(functions.lit("1970-01-01")));
+    }
+
+    // (AT NOON, SO THAT THE DATE DOES NOT DEPEND ON THE SESSION TIME ZONE)
+    private Column fromEpochDay(Column epochDayCol) {
+
+        return functions.to_date(functions.from_unixtime(epochDayCol.cast(DataTypes.LongType).multiply(86400).plus(43200)));
+    }
+
+    private Column getBank(Column idCol) {
+
+        return pick(banks, functions.pow(uniform("bank", idCol), 2));
+    }
+
+    // VALUE AT INDEX floor(uniformCol * values.length)
+    private Column pick(String[] values, Column uniformCol) {
+
+        Column indexCol = functions.floor(uniformCol.multiply(values.length));
+        Column valueCol = functions.lit(values[values.length - 1]);
+        for (int i = values.length - 2; i >= 0; i--) {
+
+            valueCol = functions.when(indexCol.equalTo(i), values[i]).otherwise(valueCol);
+        }
+
+        return valueCol;
+    }
+
+    private Column getNdg(Column idCol) {
+
+        return functions.lpad(idCol.cast(DataTypes.StringType), 16, "0");
+    }
+
+    // UNIFORM VALUE WITHIN [0, 1), DERIVED FROM seed, salt AND GIVEN COLUMNS
+    private Column uniform(String salt, Column... columns) {
+
+        Column[] hashedCols = new Column[columns.length + 2];
+        hashedCols[0] = functions.lit(seed);
+        hashedCols[1] = functions.lit(salt);
+        System.arraycopy(columns, 0, hashedCols, 2, columns.length);
+
+        return functions.pmod(functions.hash(hashedCols), functions.lit(HASH_BUCKETS)).divide(HASH_BUCKETS);
+    }
+
+    private Column intArray(int length) {
+
+        return functions.array(IntStream.range(0, length).mapToObj(functions::lit).toArray(Column[]::new));
+    }
+
+    private boolean hasAnyColumn(Map<String, String> pigSchema, List<String> columnNames) {
+
+        return pigSchema.keySet().stream().map(this::normalize).anyMatch(columnNames::contains);
+    }
+
+    // COLUMN NAMES ARE MATCHED IN LOWER CASE, WITHOUT PREFIXES _ (tlbpaspeoss) AND mo_ (tlbmovconta)
+    private String normalize(String columnName) {
+
+        String lowerCaseName = columnName.toLowerCase();
+        return lowerCaseName.startsWith("_") ? lowerCaseName.substring(1) :
+                lowerCaseName.startsWith("mo_") ? lowerCaseName.substring(3) : lowerCaseName;
+    }
+}
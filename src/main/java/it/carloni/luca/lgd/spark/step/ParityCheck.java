@@ -0,0 +1,227 @@
+package it.carloni.luca.lgd.spark.step;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.carloni.luca.lgd.parameter.step.EmptyValue;
+import it.carloni.luca.lgd.spark.common.AbstractStep;
+import it.carloni.luca.lgd.spark.common.DatasetComparison;
+import it.carloni.luca.lgd.spark.common.StepContext;
+import it.carloni.luca.lgd.spark.common.StorageFormat;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/***
+ * Compares datasets written by steps (actual) with reference ones (expected), e.g. written by the Pig scripts (see PIG folder)
+ * or by steps run with different settings (e.g. date.functions.mode, storage.format) and another lgd.output.data.dir.
+ * Each dataset (parity.datasets, all outputs of steps if empty) is compared by means of DatasetComparison on its key columns
+ * (parity.key.columns.<dataset key>). Mismatches are written as .csv at <parity.output.dir>/<dataset key>/mismatches,
+ * while their number (by kind and column) and per-column checksums of both datasets are written as <parity.output.dir>/parity_report.json
+ */
+
+public class ParityCheck extends AbstractStep<EmptyValue> {
+
+    private final Logger logger = Logger.getLogger(getClass());
+    private final SparkSession sparkSession = StepContext.getInstance().getSparkSession();
+
+    /***
+     * Keys of compared datasets, i.e. the inputs of this step (see StepScheduler)
+     * @return: keys of parity.datasets, or of all outputs of steps if empty
+     */
+
+    public static List<String> getComparedKeys() {
+
+        String[] datasetKeys = StepContext.getInstance().getValues("parity.datasets");
+        return datasetKeys.length > 0 ?
+                Arrays.asList(datasetKeys) :
+                Arrays.stream(Step.values())
+                        .filter(step -> step != Step.CSV_TO_COLUMNAR && step != Step.GENERATE_INPUTS)
+                        .flatMap(step -> step.getOutputKeys().stream())
+                        .collect(Collectors.toList());
+    }
+
+    @Override
+    public void run(EmptyValue emptyValue) {
+
+        List<String> keys = getComparedKeys();
+        String outputDir = getValue("parity.output.dir");
+        Map<String, Object> report = new LinkedHashMap<>();
+        List<String> mismatchingKeys = new ArrayList<>();
+        for (String key : keys) {
+
+            Map<String, Object> datasetReport = compare(key, outputDir);
+            report.put(key, datasetReport);
+            if (Boolean.FALSE.equals(datasetReport.get("matching"))) {
+
+                mismatchingKeys.add(key);
+            }
+        }
+
+        Path reportPath = new Path(outputDir, "parity_report.json");
+        try {
+
+            writeTextFile(reportPath.getFileSystem(sparkSession.sparkContext().hadoopConfiguration()), reportPath,
+                    new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(report));
+        }
+
+        catch (IOException e) {
+
+            throw new UncheckedIOException(e);
+        }
+
+        logger.info(String.format("Written parity report at path %s (%s dataset(s) out of %s not matching: %s)", reportPath, mismatchingKeys.size(), keys.size(), mismatchingKeys));
+        if (!mismatchingKeys.isEmpty() && Boolean.parseBoolean(getValue("parity.fail.on.mismatch"))) {
+
+            throw new IllegalStateException(String.format("Parity check failed for dataset(s) %s (see %s)", mismatchingKeys, reportPath));
+        }
+    }
+
+    private Map<String, Object> compare(String key, String outputDir) {
+
+        String actualPath = getValue(key);
+        StorageFormat actualStorageFormat = getStorageFormat(actualPath);
+        String actualStoragePath = getStoragePath(actualPath, actualStorageFormat);
+
+        String expectedPath = getExpectedPath(key, actualPath);
+        StorageFormat expectedStorageFormat = StorageFormat.fromName(getDatasetSetting("parity.expected.format", actualPath));
+        String expectedStoragePath = expectedPath != null ? getStoragePath(expectedPath, expectedStorageFormat) : null;
+
+        Map<String, Object> datasetReport = new LinkedHashMap<>();
+        datasetReport.put("expectedPath", expectedStoragePath);
+        datasetReport.put("actualPath", actualStoragePath);
+        if (expectedStoragePath == null || !exists(expectedStoragePath) || !exists(actualStoragePath)) {
+
+            logger.warn(String.format("Skipping comparison of %s, as expected (%s) or actual (%s) data do not exist", key, expectedStoragePath, actualStoragePath));
+            datasetReport.put("skipped", true);
+            return datasetReport;
+        }
+
+        logger.info(String.format("Comparing %s: expected %s data at path %s, actual %s data at path %s",
+                key, expectedStorageFormat.getName(), expectedStoragePath, actualStorageFormat.getName(), actualStoragePath));
+
+        // COLUMNS OF EXPECTED .csv DATA WITHOUT HEADER (e.g. PIG OUTPUTS) ARE NAMED AFTER THE ACTUAL ONES
+        Dataset<Row> actual = read(actualStoragePath, actualStorageFormat, true, null);
+        Dataset<Row> expected = read(expectedStoragePath, expectedStorageFormat,
+                Boolean.parseBoolean(getDatasetSetting("parity.expected.header", actualPath)), actual.columns());
+
+        String[] keyColumns = getDatasetSettingValues("parity.key.columns", actualPath);
+        List<String> columns = DatasetComparison.getCommonColumns(expected, actual);
+        List<String> missingKeyColumns = Arrays.stream(keyColumns).filter(keyColumn -> !columns.contains(keyColumn)).collect(Collectors.toList());
+        if (!missingKeyColumns.isEmpty()) {
+
+            throw new IllegalStateException(String.format("Key columns %s of %s are not columns of both expected and actual data", missingKeyColumns, key));
+        }
+
+        DatasetComparison datasetComparison = new DatasetComparison(keyColumns, Integer.parseInt(getValue("parity.partitions")),
+                Boolean.parseBoolean(getDatasetSetting("parity.normalize.numbers", actualPath)));
+
+        String mismatchesPath = new Path(new Path(outputDir, key), "mismatches").toString();
+        Dataset<Row> mismatches = datasetComparison.getMismatches(expected, actual);
+        writeCsv(mismatches, mismatchesPath, true);
+
+        // MISMATCHES ARE COUNTED FROM WRITTEN DATA, SO THAT THE COMPARISON IS NOT COMPUTED AGAIN
+        Map<String, Long> mismatchCounts = new TreeMap<>();
+        sparkSession.read()
+                .format(getValue("csv.format"))
+                .option("sep", getValue("csv.delimiter"))
+                .option("header", true)
+                .schema(mismatches.schema())
+                .csv(mismatchesPath)
+                .groupBy(DatasetComparison.MISMATCH_COLUMN, DatasetComparison.COLUMN_COLUMN)
+                .count()
+                .collectAsList()
+                .forEach(row -> mismatchCounts.put(row.isNullAt(1) ? row.getString(0) : row.getString(0) + "." + row.getString(1), row.getLong(2)));
+
+        Map<String, Long> expectedChecksums = datasetComparison.getChecksums(expected, columns);
+        Map<String, Long> actualChecksums = datasetComparison.getChecksums(actual, columns);
+        List<String> differingChecksums = expectedChecksums.keySet().stream()
+                .filter(checksum -> !expectedChecksums.get(checksum).equals(actualChecksums.get(checksum)))
+                .collect(Collectors.toList());
+
+        List<String> expectedOnlyColumns = Arrays.stream(expected.columns()).filter(column -> !columns.contains(column)).collect(Collectors.toList());
+        List<String> actualOnlyColumns = Arrays.stream(actual.columns()).filter(column -> !columns.contains(column)).collect(Collectors.toList());
+        long totalMismatches = mismatchCounts.values().stream().mapToLong(Long::longValue).sum();
+        boolean matching = totalMismatches == 0 && differingChecksums.isEmpty() && expectedOnlyColumns.isEmpty() && actualOnlyColumns.isEmpty();
+
+        datasetReport.put("matching", matching);
+        datasetReport.put("keyColumns", keyColumns);
+        datasetReport.put("expectedOnlyColumns", expectedOnlyColumns);
+        datasetReport.put("actualOnlyColumns", actualOnlyColumns);
+        datasetReport.put("mismatches", totalMismatches);
+        datasetReport.put("mismatchesByKind", mismatchCounts);
+        datasetReport.put("mismatchesPath", mismatchesPath);
+        datasetReport.put("differingChecksums", differingChecksums);
+        datasetReport.put("expectedChecksums", expectedChecksums);
+        datasetReport.put("actualChecksums", actualChecksums);
+
+        logger.info(String.format("Compared %s: %s (rows: %s expected, %s actual; %s mismatch(es) %s; differing checksums: %s)",
+                key, matching ? "matching" : "not matching", expectedChecksums.get(DatasetComparison.ROWS_CHECKSUM),
+                actualChecksums.get(DatasetComparison.ROWS_CHECKSUM), totalMismatches, mismatchCounts, differingChecksums));
+
+        return datasetReport;
+    }
+
+    // EXPECTED DATA ARE AT parity.expected.path.<dataset key>, OR AT THE ACTUAL PATH WITH lgd.output.data.dir REPLACED BY parity.expected.data.dir
+    private String getExpectedPath(String key, String actualPath) {
+
+        String expectedPath = getValue("parity.expected.path." + key);
+        if (expectedPath != null && !expectedPath.trim().isEmpty()) {
+
+            return expectedPath.trim();
+        }
+
+        String outputDataDir = getValue("lgd.output.data.dir");
+        return actualPath.startsWith(outputDataDir) ?
+                getValue("parity.expected.data.dir") + actualPath.substring(outputDataDir.length()) :
+                null;
+    }
+
+    // .csv DATA ARE READ AS STRINGS, AS THEY ARE COMPARED AS CANONICAL STRINGS ANYWAY
+    private Dataset<Row> read(String path, StorageFormat storageFormat, boolean header, String[] columnNames) {
+
+        if (storageFormat != StorageFormat.CSV) {
+
+            return sparkSession.read().format(storageFormat.getName()).load(path);
+        }
+
+        Dataset<Row> dataset = sparkSession.read()
+                .format(getValue("csv.format"))
+                .option("sep", getValue("csv.delimiter"))
+                .option("header", header)
+                .csv(path);
+
+        if (header) {
+
+            return dataset;
+        }
+
+        if (columnNames.length != dataset.columns().length) {
+
+            throw new IllegalStateException(String.format("Data at path %s have %s column(s), while %s are expected (%s)",
+                    path, dataset.columns().length, columnNames.length, String.join(", ", columnNames)));
+        }
+
+        return dataset.toDF(columnNames);
+    }
+
+    private boolean exists(String path) {
+
+        try {
+
+            Path hadoopPath = new Path(path);
+            return hadoopPath.getFileSystem(sparkSession.sparkContext().hadoopConfiguration()).exists(hadoopPath);
+        }
+
+        catch (IOException e) {
+
+            throw new UncheckedIOException(e);
+        }
+    }
+}
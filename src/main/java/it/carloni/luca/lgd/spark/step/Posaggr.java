@@ -3,6 +3,7 @@ package it.carloni.luca.lgd.spark.step;
 import it.carloni.luca.lgd.parameter.step.EmptyValue;
 import it.carloni.luca.lgd.schema.PosaggrSchema;
 import it.carloni.luca.lgd.spark.common.AbstractStep;
+import it.carloni.luca.lgd.spark.common.SkewJoin;
 import org.apache.log4j.Logger;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
@@ -11,11 +12,6 @@ import org.apache.spark.sql.expressions.WindowSpec;
 import org.apache.spark.sql.expressions.Window;
 import org.apache.spark.sql.functions;
 import org.apache.spark.sql.types.DataTypes;
-import scala.collection.Seq;
-
-import java.util.Arrays;
-
-import static it.carloni.luca.lgd.spark.utils.StepUtils.toScalaSeq;
 
 public class Posaggr extends AbstractStep<EmptyValue> {
 
@@ -77,9 +73,11 @@ public class Posaggr extends AbstractStep<EmptyValue> {
 
         // 147
         // JOIN tblcomp_tlbaggr BY (dt_riferimento,cd_istituto,ndg), tlbposi BY (dt_riferimento,cd_istituto,ndg);
-        Seq<String> joinColumnSeq = toScalaSeq((Arrays.asList("dt_riferimento", "cd_istituto", "ndg")));
+        String[] joinColumns = new String[] {"dt_riferimento", "cd_istituto", "ndg"};
+        SkewJoin tblcompTlbaggrTlbposiJoin = new SkewJoin("posaggr.tlbposi", joinColumns, joinColumns);
 
-        Dataset<Row> tblcompTlbaggrTlbposi = tlbcompTlbaggr.join(tlbposi, joinColumnSeq)
+        // HEAVY KEYS ARE THE ONES OF tlbposi (SEVERAL POSITIONS FOR EACH ndg), HENCE IT IS THE SAMPLED (LEFT) SIDE
+        Dataset<Row> tblcompTlbaggrTlbposi = tblcompTlbaggrTlbposiJoin.join(tlbposi, tlbcompTlbaggr, "inner")
                 .select(tlbcompTlbaggr.col("dt_riferimento"), tlbcompTlbaggr.col("cd_istituto"),
                         tlbcompTlbaggr.col("ndg"), tlbcompTlbaggr.col("c_key_aggr"), tlbcompTlbaggr.col("tipo_segmne_aggr"),
                         tlbcompTlbaggr.col("segmento"), functions.trim(tlbcompTlbaggr.col("tp_ndg")).as("tp_ndg"),
@@ -103,9 +101,28 @@ public class Posaggr extends AbstractStep<EmptyValue> {
          */
 
         // GROUP tblcomp_tlbaggr_tlbposi BY (dt_riferimento, cd_istituto, c_key_aggr, tipo_segmne_aggr)
+        String aggregationMode = getValue("posaggr.aggregation.mode");
+        logger.info("posaggr.aggregation.mode: " + aggregationMode);
+
+        // SUMS OVER A WINDOW (SAME OUTPUT OF PREVIOUS VERSIONS) UNLESS groupby IS EXPLICITLY REQUESTED
+        Dataset<Row> posaggr = "groupby".equalsIgnoreCase(aggregationMode) ?
+                aggregateByGroup(tblcompTlbaggrTlbposi) :
+                aggregateOverWindow(tblcompTlbaggrTlbposi);
+
+        writeDatasetAsCsvAtPath(posaggr, posaggrCsvPath);
+    }
+
+    /***
+     * Sums over a window, i.e. one row (with group sums) for each record of tblcomp_tlbaggr_tlbposi
+     * @param tblcompTlbaggrTlbposi: tblcomp_tlbaggr_tlbposi dataset
+     * @return: posaggr dataset
+     */
+
+    private Dataset<Row> aggregateOverWindow(Dataset<Row> tblcompTlbaggrTlbposi) {
+
         WindowSpec windowsSpec = Window.partitionBy("dt_riferimento", "cd_istituto", "c_key_aggr", "tipo_segmne_aggr");
 
-        Dataset<Row> posaggr = tblcompTlbaggrTlbposi
+        return tblcompTlbaggrTlbposi
                 .select(functions.col("dt_riferimento"), functions.col("cd_istituto"), functions.col("c_key_aggr"),
                         functions.col("tipo_segmne_aggr"), functions.col("segmento"), functions.col("tp_ndg"),
                         sumOverWindowAndToDouble(functions.col("bo_acco"), "accordato_bo", windowsSpec),
@@ -118,8 +135,44 @@ public class Posaggr extends AbstractStep<EmptyValue> {
                         sumOverWindowAndToDouble(functions.col("fido_op_cassa"), "fido_op_cassa", windowsSpec),
                         sumOverWindowAndToDouble(functions.col("utilizzo_titoli"), "utilizzo_titoli", windowsSpec),
                         sumOverWindowAndToDouble(functions.col("esposizione_titoli"), "esposizione_titoli", windowsSpec));
+    }
 
-        writeDatasetAsCsvAtPath(posaggr, posaggrCsvPath);
+    /***
+     * Sums by means of a hash aggregation (partially computed before the shuffle), i.e. one row for each group
+     * and each of its distinct (segmento, tp_ndg), which is the distinct output of aggregateOverWindow (opt-in, posaggr.aggregation.mode = groupby)
+     * @param tblcompTlbaggrTlbposi: tblcomp_tlbaggr_tlbposi dataset
+     * @return: posaggr dataset
+     */
+
+    private Dataset<Row> aggregateByGroup(Dataset<Row> tblcompTlbaggrTlbposi) {
+
+        // DISTINCT (segmento, tp_ndg) OF EACH GROUP, EXPLODED BELOW SO AS TO REPRODUCE THE DISTINCT ROWS OF aggregateOverWindow
+        Column segmentoTpNdgSetCol = functions.collect_set(functions.struct(functions.col("segmento"), functions.col("tp_ndg")))
+                .as("segmento_tp_ndg_set");
+
+        Dataset<Row> posaggrGrp = tblcompTlbaggrTlbposi
+                .groupBy("dt_riferimento", "cd_istituto", "c_key_aggr", "tipo_segmne_aggr")
+                .agg(segmentoTpNdgSetCol,
+                        sumAndToDouble(functions.col("bo_acco"), "accordato_bo"),
+                        sumAndToDouble(functions.col("bo_util"), "utilizzato_bo"),
+                        sumAndToDouble(functions.col("tot_add_sosp"), "tot_add_sosp"),
+                        sumAndToDouble(functions.col("tot_val_intr"), "tot_val_intr_ps"),
+                        sumAndToDouble(functions.col("ca_acco"), "accordato_ca"),
+                        sumAndToDouble(functions.col("ca_util"), "utilizzato_ca"),
+                        sumAndToDouble(functions.col("util_cassa"), "util_cassa"),
+                        sumAndToDouble(functions.col("fido_op_cassa"), "fido_op_cassa"),
+                        sumAndToDouble(functions.col("utilizzo_titoli"), "utilizzo_titoli"),
+                        sumAndToDouble(functions.col("esposizione_titoli"), "esposizione_titoli"));
+
+        return posaggrGrp
+                .withColumn("segmento_tp_ndg", functions.explode(functions.col("segmento_tp_ndg_set")))
+                .select(functions.col("dt_riferimento"), functions.col("cd_istituto"), functions.col("c_key_aggr"),
+                        functions.col("tipo_segmne_aggr"), functions.col("segmento_tp_ndg.segmento").as("segmento"),
+                        functions.col("segmento_tp_ndg.tp_ndg").as("tp_ndg"),
+                        functions.col("accordato_bo"), functions.col("utilizzato_bo"), functions.col("tot_add_sosp"),
+                        functions.col("tot_val_intr_ps"), functions.col("accordato_ca"), functions.col("utilizzato_ca"),
+                        functions.col("util_cassa"), functions.col("fido_op_cassa"), functions.col("utilizzo_titoli"),
+                        functions.col("esposizione_titoli"));
     }
 
     private Column replaceAndToDouble(Dataset<Row> df, String columnName){
@@ -136,4 +189,12 @@ public class Posaggr extends AbstractStep<EmptyValue> {
                 .cast(DataTypes.DoubleType)
                 .as(alias);
     }
+
+    // DoubleConverter(SUM(...))
+    private Column sumAndToDouble(Column column, String alias) {
+
+        return functions.sum(column)
+                .cast(DataTypes.DoubleType)
+                .as(alias);
+    }
 }
@@ -37,8 +37,8 @@ public class QuadFcoll extends AbstractStep<EmptyValue> {
         String newPattern = "yyyyMMdd";
 
         Dataset<Row> fcoll = fcollLoad
-                .withColumn("data_inizio_DEF", changeDateFormatUDF(functions.col("data_inizio_DEF"), oldPattern, newPattern))
-                .withColumn("data_collegamento", changeDateFormatUDF(functions.col("data_collegamento"), oldPattern, newPattern));
+                .withColumn("data_inizio_DEF", changeDateFormatUDF(functions.col("data_inizio_DEF"), oldPattern, newPattern, nativeDateFunctions))
+                .withColumn("data_collegamento", changeDateFormatUDF(functions.col("data_collegamento"), oldPattern, newPattern, nativeDateFunctions));
 
         // 39
 
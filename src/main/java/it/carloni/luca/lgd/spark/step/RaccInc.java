@@ -28,7 +28,7 @@ public class RaccInc extends AbstractStep<EmptyValue> {
         Dataset<Row> tlbmign = readCsvAtPathUsingSchema(tlbmignPathCsv, RaccIncSchema.getTlbmignPigSchema());
 
         // AddDuration(ToDate(data_migraz,'yyyyMMdd'),'P1M') AS month_up
-        Column monthUpCol = addDurationUDF(tlbmign.col("data_migraz"), "yyyyMMdd", 1);
+        Column monthUpCol = addDurationUDF(tlbmign.col("data_migraz"), "yyyyMMdd", 1, nativeDateFunctions);
 
         Dataset<Row> raccIncOut = tlbmign
                 .select(tlbmign.col("cd_isti_ric").as("ist_ric_inc"), tlbmign.col("ndg_ric").as("ndg_ric_inc"),
@@ -12,6 +12,9 @@ import org.apache.spark.sql.expressions.WindowSpec;
 import org.apache.spark.sql.functions;
 import org.apache.spark.sql.types.DataTypes;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import static it.carloni.luca.lgd.spark.utils.StepUtils.changeDateFormat;
 import static it.carloni.luca.lgd.spark.utils.StepUtils.changeDateFormatUDF;
 
@@ -69,8 +72,8 @@ public class SofferenzePreview extends AbstractStep<DataAUfficioValue> {
         String oldPattern = "yyyyMMdd";
         String newPattern = "yyyy-MM-dd";
 
-        Column dataInizioCol = changeDateFormatUDF(soffBase.col("datainizio"), oldPattern, newPattern).alias("datainizio");
-        Column dataFineCol = changeDateFormatUDF(soffBase.col("datafine"), oldPattern, newPattern).alias("datafine");
+        Column dataInizioCol = changeDateFormatUDF(soffBase.col("datainizio"), oldPattern, newPattern, nativeDateFunctions).alias("datainizio");
+        Column dataFineCol = changeDateFormatUDF(soffBase.col("datafine"), oldPattern, newPattern, nativeDateFunctions).alias("datafine");
 
         // GROUP soff_base BY ( istituto, ndg, numerosofferenza );
         WindowSpec soffGen2WindowSpec = Window.partitionBy("istituto", "ndg", "numerosofferenza");
@@ -88,8 +91,6 @@ public class SofferenzePreview extends AbstractStep<DataAUfficioValue> {
                 dataInizioCol, dataFineCol, soffBase.col("statopratica"),
                 saldoPosizioneSumCol, saldoPosizioneContabSumCol);
 
-        writeDatasetAsCsvAtPath(soffGen2, soffGen2Path);
-
         // 87
 
         // 89
@@ -104,7 +105,11 @@ public class SofferenzePreview extends AbstractStep<DataAUfficioValue> {
                         functions.sum(soffBase.col("saldoposizione")).as("saldoposizione"),
                         functions.sum(soffBase.col("saldoposizionecontab")).as("saldoposizionecontab"));
 
-        writeDatasetAsCsvAtPath(soffSintGen2, soffSintGen2Path);
+        // soff_gen2 AND soff_gen_sint2 ARE BOTH DERIVED FROM soffBase, WHICH IS THEN COMPUTED ONLY ONCE
+        Map<String, Dataset<Row>> outputDatasets = new LinkedHashMap<>();
+        outputDatasets.put(soffGen2Path, soffGen2);
+        outputDatasets.put(soffSintGen2Path, soffSintGen2);
+        writeDatasetsFromSharedBase(soffBase, outputDatasets);
     }
 
     private Column replaceAndToDouble(Dataset<Row> df, String columnName){
@@ -1,26 +1,94 @@
 package it.carloni.luca.lgd.spark.step;
 
+import it.carloni.luca.lgd.schema.InputSchema;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/***
+ * Each step declares the keys (within lgd.properties) of the datasets it reads and writes.
+ * Such keys are used by the pipeline scheduler in order to detect data dependencies among steps
+ */
+
 @AllArgsConstructor
 public enum Step {
 
-    CICLILAV_STEP_1("CICLILAV_STEP_1"),
-    CICLI_PREVIEW("CICLI_PREVIEW"),
-    FANAG_MONTHLY("FANAG_MONTHLY"),
-    FPASPERD("FPASPERD"),
-    FRAPP_NDG_MONTHLY("FRAPP_NDG_MONTHLY"),
-    FRAPP_PUMA("FRAPP_PUMA"),
-    MOVIMENTI("MOVIMENTI"),
-    POSAGGR("POSAGGR"),
-    QUAD_FCOLL("QUAD_FCOLL"),
-    QUAD_FCOLL_CICLI("QUAD_FCOLL_CICLI"),
-    QUAD_FPOSI("QUAD_FPOSI"),
-    QUAD_FRAPP("QUAD_FRAPP"),
-    RACC_INC("RACC_INC"),
-    SOFFERENZE_PREVIEW("SOFFERENZE_PREVIEW");
+    CICLILAV_STEP_1("CICLILAV_STEP_1",
+            Arrays.asList("ciclilav.step1.tlbcidef.csv", "ciclilav.step1.tlbcracc.csv"),
+            Arrays.asList("ciclilav.step1.out.csv", "ciclilav.step1.filecracc.csv")),
+
+    // DATASETS ARE CONVERTED IN PLACE (FROM A DEPENDENCY POINT OF VIEW)
+    CSV_TO_COLUMNAR("CSV_TO_COLUMNAR",
+            new ArrayList<>(InputSchema.getInputPigSchemas().keySet()),
+            new ArrayList<>(InputSchema.getInputPigSchemas().keySet())),
+
+    // SYNTHETIC INPUTS OF ALL STEPS (FOR SCALE AND PERFORMANCE TESTING)
+    GENERATE_INPUTS("GENERATE_INPUTS",
+            new ArrayList<>(),
+            new ArrayList<>(InputSchema.getInputPigSchemas().keySet())),
+
+    CICLI_PREVIEW("CICLI_PREVIEW",
+            Arrays.asList("cicli.preview.fposi.outdir.csv"),
+            Arrays.asList("cicli.preview.fposi.gen2.csv", "cicli.preview.fposi.sint.gen2")),
+
+    FANAG_MONTHLY("FANAG_MONTHLY",
+            Arrays.asList("fanag.monthly.cicli.ndg.path.csv", "fanag.monthly.tlbuact.csv", "fanag.monthly.tlbduct.path.csv"),
+            Arrays.asList("fanag.monthly.fanag.out")),
+
+    FPASPERD("FPASPERD",
+            Arrays.asList("fpasperd.cicli.ndg.path.csv", "fpasperd.tlbpaspe.filter.csv", "fpasperd.tlbpaspeoss.csv"),
+            Arrays.asList("fpasperd.paspe.paspeoss.gen.dist.csv")),
+
+    FRAPP_NDG_MONTHLY("FRAPP_NDG_MONTHLY",
+            Arrays.asList("frapp.ndg.monthly.cicli.ndg.path.csv", "frapp.ndg.monthly.tlburtt.csv"),
+            Arrays.asList("frapp.ndg.monthly.tlbcidef.tlburtt")),
+
+    FRAPP_PUMA("FRAPP_PUMA",
+            Arrays.asList("frapp.puma.cicli.ndg.path", "frapp.puma.tlbgaran.path"),
+            Arrays.asList("frapp.puma.frapp.puma.out")),
+
+    MOVIMENTI("MOVIMENTI",
+            Arrays.asList("movimenti.tlbmovconta.csv"),
+            Arrays.asList("movimenti.mov.out.dist")),
+
+    // COMPARES OUTPUTS OF STEPS WITH REFERENCE ONES. ITS INPUTS DEPEND ON parity.datasets, HENCE THEY ARE RESOLVED BY StepScheduler
+    PARITY_CHECK("PARITY_CHECK",
+            new ArrayList<>(),
+            new ArrayList<>()),
+
+    POSAGGR("POSAGGR",
+            Arrays.asList("posaggr.tblcomp.path.csv", "posaggr.tlbaggr.path.csv", "posaggr.tlbposi.load.csv"),
+            Arrays.asList("posaggr.out.csv")),
+
+    QUAD_FCOLL("QUAD_FCOLL",
+            Arrays.asList("quad.fcoll.fcoll.csv", "quad.fcoll.oldfposi.csv"),
+            Arrays.asList("quad.fcoll.fileoutdist")),
+
+    QUAD_FCOLL_CICLI("QUAD_FCOLL_CICLI",
+            Arrays.asList("quad.fcoll.cicli.fcoll.csv", "quad.fcoll.cicli.cicli.ndg.load.csv"),
+            Arrays.asList("quad.fcoll.cicli.file.out")),
+
+    QUAD_FPOSI("QUAD_FPOSI",
+            Arrays.asList("quad.fposi.hadoop.fposi.csv", "quad.fposi.old.fposi.load.csv"),
+            Arrays.asList("quad.fposi.hadoop.fposi.out", "quad.fposi.old.fposi.out", "quad.fposi.abbinati.out")),
+
+    QUAD_FRAPP("QUAD_FRAPP",
+            Arrays.asList("quad.frapp.hadoop.frapp.csv", "quad.frapp.old.frapp.load.csv", "quad.frapp.fcoll.csv"),
+            Arrays.asList("quad.frapp.hadoop.frapp.out", "quad.frapp.old.frapp.out")),
+
+    RACC_INC("RACC_INC",
+            Arrays.asList("racc.inc.tlbmign.path.csv"),
+            Arrays.asList("racc.inc.racc.inc.out")),
+
+    SOFFERENZE_PREVIEW("SOFFERENZE_PREVIEW",
+            Arrays.asList("sofferenze.preview.soff.outdir.csv"),
+            Arrays.asList("sofferenze.preview.soff.gen2", "sofferenze.preview.soff.gen.sint2"));
 
     @Getter private String name;
+    @Getter private List<String> inputKeys;
+    @Getter private List<String> outputKeys;
 
 }
@@ -0,0 +1,229 @@
+package it.carloni.luca.lgd.spark.udf;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/***
+ * Date functions backing LGD UDFs. Formatters are compiled only once per pattern, while dates with pattern yyyyMMdd
+ * (by far the most common one) are handled by means of integer arithmetic, without any formatter or LocalDate.
+ * Results (and exceptions) are the same of LocalDate.parse/format with DateTimeFormatter.ofPattern(pattern),
+ * whose SMART resolution adjusts days 29-31 to the last day of the month (e.g. 20190231 is parsed as 20190228)
+ */
+
+public class DateFunctions {
+
+    public static final String Y4M2D2_PATTERN = "yyyyMMdd";
+
+    private static final ConcurrentMap<String, DateTimeFormatter> DATE_TIME_FORMATTERS = new ConcurrentHashMap<>();
+    private static final int NOT_PARSEABLE = -1;
+    private static final long DAYS_0000_TO_1970 = 719528L;
+
+    public static DateTimeFormatter getFormatter(String pattern) {
+
+        return DATE_TIME_FORMATTERS.computeIfAbsent(pattern, DateTimeFormatter::ofPattern);
+    }
+
+    public static LocalDate parse(String date, String pattern) {
+
+        if (Y4M2D2_PATTERN.equals(pattern)) {
+
+            int y4m2d2 = parseY4M2D2(date);
+            if (y4m2d2 != NOT_PARSEABLE) {
+
+                return LocalDate.of(year(y4m2d2), month(y4m2d2), day(y4m2d2));
+            }
+        }
+
+        return LocalDate.parse(date, getFormatter(pattern));
+    }
+
+    public static String format(LocalDate date, String pattern) {
+
+        if (Y4M2D2_PATTERN.equals(pattern) && date.getYear() >= 1 && date.getYear() <= 9999) {
+
+            return formatY4M2D2(date.getYear(), date.getMonthValue(), date.getDayOfMonth());
+        }
+
+        return date.format(getFormatter(pattern));
+    }
+
+    public static String changeDateFormat(String date, String oldPattern, String newPattern) {
+
+        if (Y4M2D2_PATTERN.equals(oldPattern) && Y4M2D2_PATTERN.equals(newPattern)) {
+
+            int y4m2d2 = parseY4M2D2(date);
+            if (y4m2d2 != NOT_PARSEABLE) {
+
+                return formatY4M2D2(year(y4m2d2), month(y4m2d2), day(y4m2d2));
+            }
+        }
+
+        LocalDate localDate = parse(date, oldPattern);
+        return format(localDate, newPattern);
+    }
+
+    // EQUIVALENT OF LocalDate.parse(date, pattern).plusMonths(numberOfMonths).format(pattern)
+    public static String addMonths(String date, String pattern, int numberOfMonths) {
+
+        if (Y4M2D2_PATTERN.equals(pattern)) {
+
+            int y4m2d2 = parseY4M2D2(date);
+            if (y4m2d2 != NOT_PARSEABLE) {
+
+                long monthCount = year(y4m2d2) * 12L + (month(y4m2d2) - 1) + numberOfMonths;
+                long newYear = Math.floorDiv(monthCount, 12);
+                int newMonth = (int) Math.floorMod(monthCount, 12) + 1;
+                if (newYear >= 1 && newYear <= 9999) {
+
+                    int newDay = Math.min(day(y4m2d2), lengthOfMonth((int) newYear, newMonth));
+                    return formatY4M2D2((int) newYear, newMonth, newDay);
+                }
+            }
+        }
+
+        return format(parse(date, pattern).plusMonths(numberOfMonths), pattern);
+    }
+
+    // EQUIVALENT OF Math.abs(ChronoUnit.DAYS.between(firstDate, secondDate))
+    public static long daysBetween(String firstDate, String secondDate, String commonPattern) {
+
+        if (Y4M2D2_PATTERN.equals(commonPattern)) {
+
+            int firstY4M2D2 = parseY4M2D2(firstDate);
+            int secondY4M2D2 = parseY4M2D2(secondDate);
+            if (firstY4M2D2 != NOT_PARSEABLE && secondY4M2D2 != NOT_PARSEABLE) {
+
+                return Math.abs(toEpochDay(firstY4M2D2) - toEpochDay(secondY4M2D2));
+            }
+        }
+
+        return Math.abs(parse(firstDate, commonPattern).toEpochDay() - parse(secondDate, commonPattern).toEpochDay());
+    }
+
+    public static String leastDate(String firstDate, String secondDate, String commonPattern) {
+
+        return compareAndFormat(firstDate, secondDate, commonPattern, true);
+    }
+
+    public static String greatestDate(String firstDate, String secondDate, String commonPattern) {
+
+        return compareAndFormat(firstDate, secondDate, commonPattern, false);
+    }
+
+    private static String compareAndFormat(String firstDate, String secondDate, String commonPattern, boolean least) {
+
+        if (Y4M2D2_PATTERN.equals(commonPattern)) {
+
+            int firstY4M2D2 = parseY4M2D2(firstDate);
+            int secondY4M2D2 = parseY4M2D2(secondDate);
+            if (firstY4M2D2 != NOT_PARSEABLE && secondY4M2D2 != NOT_PARSEABLE) {
+
+                int y4m2d2 = (least ? firstY4M2D2 <= secondY4M2D2 : firstY4M2D2 >= secondY4M2D2) ? firstY4M2D2 : secondY4M2D2;
+                return formatY4M2D2(year(y4m2d2), month(y4m2d2), day(y4m2d2));
+            }
+        }
+
+        LocalDate first = parse(firstDate, commonPattern);
+        LocalDate second = parse(secondDate, commonPattern);
+        int comparison = first.compareTo(second);
+        return format((least ? comparison <= 0 : comparison >= 0) ? first : second, commonPattern);
+    }
+
+    // yyyyMMdd DATE AS yyyy * 10000 + MM * 100 + dd (WITH DAYS 29-31 ADJUSTED TO THE LAST DAY OF THE MONTH),
+    // OR NOT_PARSEABLE FOR INPUTS (NULL, INVALID, ...) TO BE LEFT TO THE FORMATTER
+    private static int parseY4M2D2(String date) {
+
+        if (date == null || date.length() != 8) {
+
+            return NOT_PARSEABLE;
+        }
+
+        int y4m2d2 = 0;
+        for (int i = 0; i < 8; i++) {
+
+            char c = date.charAt(i);
+            if (c < '0' || c > '9') {
+
+                return NOT_PARSEABLE;
+            }
+
+            y4m2d2 = y4m2d2 * 10 + (c - '0');
+        }
+
+        int year = year(y4m2d2);
+        int month = month(y4m2d2);
+        int day = day(y4m2d2);
+        if (year < 1 || month < 1 || month > 12 || day < 1 || day > 31) {
+
+            return NOT_PARSEABLE;
+        }
+
+        return year * 10000 + month * 100 + Math.min(day, lengthOfMonth(year, month));
+    }
+
+    private static String formatY4M2D2(int year, int month, int day) {
+
+        char[] chars = new char[8];
+        chars[0] = (char) ('0' + year / 1000);
+        chars[1] = (char) ('0' + year / 100 % 10);
+        chars[2] = (char) ('0' + year / 10 % 10);
+        chars[3] = (char) ('0' + year % 10);
+        chars[4] = (char) ('0' + month / 10);
+        chars[5] = (char) ('0' + month % 10);
+        chars[6] = (char) ('0' + day / 10);
+        chars[7] = (char) ('0' + day % 10);
+        return new String(chars);
+    }
+
+    private static int year(int y4m2d2) {
+        return y4m2d2 / 10000;
+    }
+
+    private static int month(int y4m2d2) {
+        return y4m2d2 / 100 % 100;
+    }
+
+    private static int day(int y4m2d2) {
+        return y4m2d2 % 100;
+    }
+
+    private static boolean isLeapYear(int year) {
+
+        return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+
+        switch (month) {
+
+            case 2: return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11: return 30;
+            default: return 31;
+        }
+    }
+
+    // SAME ALGORITHM OF LocalDate.toEpochDay (FOR POSITIVE YEARS)
+    private static long toEpochDay(int y4m2d2) {
+
+        long year = year(y4m2d2);
+        long month = month(y4m2d2);
+        long total = 365 * year + (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400;
+        total += (367 * month - 362) / 12;
+        total += day(y4m2d2) - 1;
+        if (month > 2) {
+
+            total--;
+            if (!isLeapYear((int) year)) {
+
+                total--;
+            }
+        }
+
+        return total - DAYS_0000_TO_1970;
+    }
+}
@@ -4,7 +4,6 @@ import org.apache.spark.sql.api.java.UDF3;
 
 import java.time.DateTimeException;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 
 public class UDFFactory {
@@ -17,9 +16,7 @@ public class UDFFactory {
 
             try {
 
-                DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern(datePattern);
-                LocalDate localDate = LocalDate.parse(date, dateTimeFormatter);
-                return localDate.plusMonths(numberOfMonths).format(dateTimeFormatter);
+                return DateFunctions.addMonths(date, datePattern, numberOfMonths);
             }
 
             catch (NullPointerException | DateTimeParseException e) { return null; }};
@@ -32,8 +29,7 @@ public class UDFFactory {
 
            try {
 
-               return LocalDate.parse(inputDate, DateTimeFormatter.ofPattern(oldPattern))
-                       .format(DateTimeFormatter.ofPattern(newPattern));
+               return DateFunctions.changeDateFormat(inputDate, oldPattern, newPattern);
            }
 
            catch (NullPointerException | DateTimeException e) { return null; }};
@@ -47,11 +43,10 @@ public class UDFFactory {
 
             try {
 
-                DateTimeFormatter newPatternFormatter = DateTimeFormatter.ofPattern(newPattern);
-                LocalDate inputDateAsLocalDate = LocalDate.parse(inputDate, DateTimeFormatter.ofPattern(oldPattern));
+                LocalDate inputDateAsLocalDate = DateFunctions.parse(inputDate, oldPattern);
                 return inputDateAsLocalDate.isAfter(LocalDate.now()) ?
-                        inputDateAsLocalDate.minusYears(100).format(newPatternFormatter):
-                        inputDateAsLocalDate.format(newPatternFormatter);
+                        DateFunctions.format(inputDateAsLocalDate.minusYears(100), newPattern):
+                        DateFunctions.format(inputDateAsLocalDate, newPattern);
             }
 
             catch (NullPointerException | DateTimeException e) {return null; }};
@@ -65,10 +60,7 @@ public class UDFFactory {
 
             try {
 
-                DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern(commonPattern);
-                LocalDate firstDate = LocalDate.parse(stringFirstDate, dateTimeFormatter);
-                LocalDate secondDate = LocalDate.parse(stringSecondDate, dateTimeFormatter);
-                return Math.abs(firstDate.minusDays(secondDate.toEpochDay()).toEpochDay()); }
+                return DateFunctions.daysBetween(stringFirstDate, stringSecondDate, commonPattern); }
 
             catch (NullPointerException | DateTimeException e) { return null;} };
     }
@@ -77,13 +69,8 @@ public class UDFFactory {
     public static UDF3<String, String, String, String> buildGreatestDateUDF(){
 
         return (UDF3<String, String, String, String>)
-                (stringFirstDate, stringSecondDate, commonPattern) -> {
-
-                    DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern(commonPattern);
-                    LocalDate firstDate = LocalDate.parse(stringFirstDate, dateTimeFormatter);
-                    LocalDate secondDate = LocalDate.parse(stringSecondDate, dateTimeFormatter);
-                    return firstDate.compareTo(secondDate) >= 0 ? firstDate.format(dateTimeFormatter) : secondDate.format(dateTimeFormatter);
-                };
+                (stringFirstDate, stringSecondDate, commonPattern) ->
+                        DateFunctions.greatestDate(stringFirstDate, stringSecondDate, commonPattern);
     }
 
     // RETURN THE LEAST DATE BETWEEN TWO DATES WITH SAME PATTERN
@@ -93,10 +80,7 @@ public class UDFFactory {
 
             try {
 
-                DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern(commonPattern);
-                LocalDate firstDate = LocalDate.parse(stringFirstDate, dateTimeFormatter);
-                LocalDate secondDate = LocalDate.parse(stringSecondDate, dateTimeFormatter);
-                return firstDate.compareTo(secondDate) <= 0 ? firstDate.format(dateTimeFormatter) : secondDate.format(dateTimeFormatter);
+                return DateFunctions.leastDate(stringFirstDate, stringSecondDate, commonPattern);
             }
 
             catch (NullPointerException | DateTimeException e) { return null;}};
@@ -110,9 +94,7 @@ public class UDFFactory {
 
             try {
 
-                DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern(datePattern);
-                LocalDate localDate = LocalDate.parse(date, dateTimeFormatter);
-                return localDate.minusMonths(numberOfMonths).format(dateTimeFormatter);
+                return DateFunctions.addMonths(date, datePattern, -numberOfMonths);
             }
 
             catch (NullPointerException | DateTimeException e) { return null;}};
@@ -0,0 +1,290 @@
+package it.carloni.luca.lgd.spark.utils;
+
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.functions;
+import org.apache.spark.sql.types.DataTypes;
+
+/***
+ * Catalyst-native date functions. Being built from Spark expressions, they are visible to the optimizer and take part in whole-stage codegen.
+ * Functions on yyyyMMdd strings are equivalents of LGD date UDFs (used when date.functions.mode = native),
+ * while functions on DateType columns serve steps whose schemas declare Pig type "date".
+ * As UDFs do, days 29-31 are adjusted to the last day of the month and month shifts follow LocalDate.plusMonths
+ * (unlike add_months, the last day of a month is not mapped to the last day of the shifted month).
+ * Values that are not valid yyyyMMdd dates lead to null, while shifted dates beyond years 1-9999 are formatted as DateTimeFormatter does
+ * (year of era, with a leading + beyond 4 digits). Parity with UDFs on such edge cases is checked by NativeDateFunctionsParityCheck (profile benchmark)
+ */
+
+public class NativeDateFunctions {
+
+    private static final String Y4M2D2_PATTERN = "yyyyMMdd";
+    private static final long DAYS_0000_TO_1970 = 719528L;
+
+    public static boolean isSupported(String pattern) {
+
+        return Y4M2D2_PATTERN.equals(pattern);
+    }
+
+    // PATTERNS THAT date_format RENDERS AS DateTimeFormatter DOES
+    public static boolean isSupportedOutputPattern(String pattern) {
+
+        return pattern != null && pattern.matches("[yMd\\-/. ]+");
+    }
+
+    /***
+     * Native equivalent of addDurationUDF (and subtractDurationUDF, with a negative numberOfMonths)
+     * @param dateCol: String column expressing a yyyyMMdd date
+     * @param numberOfMonths: number of months to add
+     * @return: String column (yyyyMMdd)
+     */
+
+    public static Column addMonths(Column dateCol, int numberOfMonths) {
+
+        return DateParts.fromY4M2D2(dateCol).plusMonths(numberOfMonths).toY4M2D2String();
+    }
+
+    /***
+     * Native equivalent of leastDateUDF
+     * @param dateCol1: first date (String column, yyyyMMdd)
+     * @param dateCol2: second date (String column, yyyyMMdd)
+     * @return: String column (yyyyMMdd), null if any of the two dates is not valid
+     */
+
+    public static Column leastDate(Column dateCol1, Column dateCol2) {
+
+        DateParts firstDate = DateParts.fromY4M2D2(dateCol1);
+        DateParts secondDate = DateParts.fromY4M2D2(dateCol2);
+
+        return functions.when(firstDate.isValid.and(secondDate.isValid),
+                functions.when(firstDate.toInt().leq(secondDate.toInt()), firstDate.toY4M2D2String())
+                        .otherwise(secondDate.toY4M2D2String()));
+    }
+
+    /***
+     * Native equivalent of daysBetweenUDF
+     * @param dateCol1: first date (String column, yyyyMMdd)
+     * @param dateCol2: second date (String column, yyyyMMdd)
+     * @return: Long column (absolute number of days between the two dates)
+     */
+
+    public static Column daysBetween(Column dateCol1, Column dateCol2) {
+
+        DateParts firstDate = DateParts.fromY4M2D2(dateCol1);
+        DateParts secondDate = DateParts.fromY4M2D2(dateCol2);
+
+        return functions.when(firstDate.isValid.and(secondDate.isValid),
+                functions.abs(firstDate.toEpochDay().minus(secondDate.toEpochDay())));
+    }
+
+    /***
+     * Native equivalent of changeDateFormatUDF from yyyyMMdd
+     * @param dateCol: String column expressing a yyyyMMdd date
+     * @param newPattern: new format (see isSupportedOutputPattern)
+     * @return: String column with format newPattern
+     */
+
+    public static Column changeDateFormat(Column dateCol, String newPattern) {
+
+        return functions.date_format(toDate(dateCol), newPattern);
+    }
+
+    /***
+     * Parses a yyyyMMdd date
+     * @param dateCol: String (or Integer) column expressing a yyyyMMdd date
+     * @return: DateType column, null if dateCol is not a valid yyyyMMdd date
+     */
+
+    public static Column toDate(Column dateCol) {
+
+        // DAYS BEYOND THE END OF THE MONTH (e.g. 20190231) ARE PARSED BY to_date INTO THE FOLLOWING MONTH,
+        // SO THAT THEY ARE ADJUSTED TO THE LAST DAY OF THE MONTH. A COMPACT EXPRESSION IS WORTHWHILE HERE,
+        // AS PARSED DATES ARE INLINED BY THE OPTIMIZER WITHIN ALL THE EXPRESSIONS THAT USE THEM
+        Column stringDateCol = dateCol.cast(DataTypes.StringType);
+        Column yearCol = functions.substring(stringDateCol, 1, 4);
+        Column monthCol = functions.substring(stringDateCol, 5, 2);
+        Column dayCol = functions.substring(stringDateCol, 7, 2);
+        Column firstDayOfMonthCol = functions.to_date(functions.concat_ws("-", yearCol, monthCol, functions.lit("01")));
+        Column isValid = stringDateCol.rlike("^[0-9]{8}$")
+                .and(yearCol.notEqual("0000"))
+                .and(dayCol.between("01", "31"));
+
+        return functions.when(isValid,
+                functions.least(functions.to_date(functions.concat_ws("-", yearCol, monthCol, dayCol)), functions.last_day(firstDayOfMonthCol)));
+    }
+
+    /***
+     * Formats a date as yyyyMMdd
+     * @param dateCol: DateType column
+     * @return: String column (yyyyMMdd)
+     */
+
+    public static Column toY4M2D2String(Column dateCol) {
+
+        return functions.date_format(dateCol, Y4M2D2_PATTERN);
+    }
+
+    /***
+     * Adds numberOfMonths to a date, as LocalDate.plusMonths does
+     * @param dateCol: DateType column
+     * @param numberOfMonths: number of months to add (subtracted, if negative)
+     * @return: DateType column
+     */
+
+    public static Column addMonthsToDate(Column dateCol, int numberOfMonths) {
+
+        if (numberOfMonths == 0) {
+
+            return dateCol;
+        }
+
+        // add_months MAPS THE LAST DAY OF A MONTH TO THE LAST DAY OF THE SHIFTED MONTH (e.g. 20190228 + 1 MONTH = 20190331).
+        // IN SUCH CASE, THE DAY IS RESTORED BY SHIFTING A DAY THAT IS NOT THE LAST ONE (AND TAKING THE LAST DAY OF THE SHIFTED MONTH IF SHORTER)
+        Column addMonthsCol = functions.add_months(dateCol, numberOfMonths);
+        Column restoredDayCol = functions.date_add(functions.add_months(functions.date_sub(dateCol, 3), numberOfMonths), 3);
+
+        return functions.when(functions.last_day(dateCol).equalTo(dateCol), functions.least(addMonthsCol, restoredDayCol))
+                .otherwise(addMonthsCol);
+    }
+
+    /***
+     * Least date between two dates. Unlike functions.least, null if any of the two dates is null (as leastDateUDF)
+     * @param dateCol1: first date (DateType column)
+     * @param dateCol2: second date (DateType column)
+     * @return: DateType column
+     */
+
+    public static Column leastOfDates(Column dateCol1, Column dateCol2) {
+
+        return functions.when(dateCol1.isNotNull().and(dateCol2.isNotNull()), functions.least(dateCol1, dateCol2));
+    }
+
+    /***
+     * Absolute number of days between two dates
+     * @param dateCol1: first date (DateType column)
+     * @param dateCol2: second date (DateType column)
+     * @return: Long column
+     */
+
+    public static Column daysBetweenDates(Column dateCol1, Column dateCol2) {
+
+        return functions.abs(functions.datediff(dateCol1, dateCol2)).cast(DataTypes.LongType);
+    }
+
+    /***
+     * Year and month of a date as yyyyMM
+     * @param dateCol: DateType column
+     * @return: Integer column
+     */
+
+    public static Column toYearMonth(Column dateCol) {
+
+        return functions.year(dateCol).multiply(100).plus(functions.month(dateCol));
+    }
+
+    /***
+     * Number of months from year 0 (year * 12 + month - 1), so that month shifts can be computed by integer arithmetic
+     * @param dateCol: DateType column
+     * @return: Integer column
+     */
+
+    public static Column toMonthCount(Column dateCol) {
+
+        return functions.year(dateCol).multiply(12).plus(functions.month(dateCol)).minus(1);
+    }
+
+    private static Column lengthOfMonth(Column year, Column month) {
+
+        Column isLeapYear = functions.pmod(year, functions.lit(4)).equalTo(0)
+                .and(functions.pmod(year, functions.lit(100)).notEqual(0).or(functions.pmod(year, functions.lit(400)).equalTo(0)));
+
+        return functions.when(month.equalTo(2), functions.when(isLeapYear, 29).otherwise(28))
+                .when(month.isin(4, 6, 9, 11), 30)
+                .otherwise(31);
+    }
+
+    private static Column integerDivision(Column dividend, int divisor) {
+
+        return functions.floor(dividend.divide(divisor));
+    }
+
+    private static Column lpad(Column column, int length) {
+
+        return functions.lpad(column.cast(DataTypes.StringType), length, "0");
+    }
+
+    // yyyyMMdd DATE SPLIT INTO year, month AND day (ADJUSTED TO THE LENGTH OF THE MONTH), MEANINGFUL ONLY WHEN isValid
+    private static class DateParts {
+
+        private final Column isValid;
+        private final Column year;
+        private final Column month;
+        private final Column day;
+
+        private DateParts(Column isValid, Column year, Column month, Column day) {
+
+            this.isValid = isValid;
+            this.year = year;
+            this.month = month;
+            this.day = day;
+        }
+
+        private static DateParts fromY4M2D2(Column dateCol) {
+
+            Column stringDateCol = dateCol.cast(DataTypes.StringType);
+            Column year = functions.substring(stringDateCol, 1, 4).cast(DataTypes.IntegerType);
+            Column month = functions.substring(stringDateCol, 5, 2).cast(DataTypes.IntegerType);
+            Column dayOfMonth = functions.substring(stringDateCol, 7, 2).cast(DataTypes.IntegerType);
+            Column isValid = stringDateCol.rlike("^[0-9]{8}$")
+                    .and(year.geq(1))
+                    .and(month.between(1, 12))
+                    .and(dayOfMonth.between(1, 31));
+
+            return new DateParts(isValid, year, month, functions.least(dayOfMonth, lengthOfMonth(year, month)));
+        }
+
+        private DateParts plusMonths(int numberOfMonths) {
+
+            Column monthCount = year.multiply(12).plus(month.minus(1)).plus(numberOfMonths);
+            Column newYear = integerDivision(monthCount, 12).cast(DataTypes.IntegerType);
+            Column newMonth = functions.pmod(monthCount, functions.lit(12)).plus(1);
+            Column newDay = functions.least(day, lengthOfMonth(newYear, newMonth));
+
+            return new DateParts(isValid, newYear, newMonth, newDay);
+        }
+
+        private Column toInt() {
+
+            return year.multiply(10000).plus(month.multiply(100)).plus(day);
+        }
+
+        // yyyy IS THE YEAR OF ERA (e.g. YEAR 0 IS 1 BC, HENCE 0001), PRINTED WITH A LEADING + WHEN LONGER THAN 4 DIGITS
+        private Column toY4M2D2String() {
+
+            Column yearOfEra = functions.when(year.lt(1), functions.lit(1).minus(year)).otherwise(year);
+            Column yearOfEraString = functions.when(yearOfEra.gt(9999), functions.concat(functions.lit("+"), yearOfEra.cast(DataTypes.StringType)))
+                    .otherwise(lpad(yearOfEra, 4));
+
+            return functions.when(isValid, functions.concat(yearOfEraString, lpad(month, 2), lpad(day, 2)));
+        }
+
+        // SAME ALGORITHM OF LocalDate.toEpochDay (datediff WOULD FOLLOW JULIAN CALENDAR BEFORE 1582)
+        private Column toEpochDay() {
+
+            Column leapYearAdjustment = functions.when(month.gt(2), functions.when(lengthOfMonth(year, functions.lit(2)).equalTo(29), 1).otherwise(2))
+                    .otherwise(0);
+
+            return year.cast(DataTypes.LongType).multiply(365)
+                    .plus(integerDivision(year.plus(3), 4))
+                    .minus(integerDivision(year.plus(99), 100))
+                    .plus(integerDivision(year.plus(399), 400))
+                    .plus(integerDivision(month.multiply(367).minus(362), 12))
+                    .plus(day.minus(1))
+                    .minus(leapYearAdjustment)
+                    .minus(DAYS_0000_TO_1970);
+        }
+
+        private Column toDate() {
+
+            return functions.when(isValid, functions.to_date(functions.concat_ws("-", lpad(year, 4), lpad(month, 2), lpad(day, 2))));
+        }
+    }
+}
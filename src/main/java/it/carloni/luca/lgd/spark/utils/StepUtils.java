@@ -1,5 +1,6 @@
 package it.carloni.luca.lgd.spark.utils;
 
+import it.carloni.luca.lgd.spark.udf.DateFunctions;
 import it.carloni.luca.lgd.spark.udf.UDFName;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.functions;
@@ -7,8 +8,8 @@ import org.apache.spark.sql.types.DataTypes;
 import scala.collection.JavaConversions;
 import scala.collection.Seq;
 
+import java.sql.Date;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
 import java.util.List;
 
 public class StepUtils {
@@ -18,10 +19,16 @@ public class StepUtils {
      * @param dateCol: String column expressing a date
      * @param dateColFormat: format of String column
      * @param numberOfMonths: number of months to add
+     * @param nativeDateFunctions: whether native date functions are used (see AbstractStep.nativeDateFunctions)
      * @return: dateCol.plusMonths(numberOfMonths)
      */
 
-    public static Column addDurationUDF(Column dateCol, String dateColFormat, int numberOfMonths){
+    public static Column addDurationUDF(Column dateCol, String dateColFormat, int numberOfMonths, boolean nativeDateFunctions){
+
+        if (useNativeDateFunctions(nativeDateFunctions, dateColFormat)) {
+
+            return NativeDateFunctions.addMonths(dateCol, numberOfMonths);
+        }
 
         return functions.callUDF(UDFName.ADD_DURATION.getName(),
                 dateCol,
@@ -34,10 +41,16 @@ public class StepUtils {
      * @param dateColumn: String column expressing a date
      * @param oldPattern: old format of String column
      * @param newPattern: new format of String column
+     * @param nativeDateFunctions: whether native date functions are used (see AbstractStep.nativeDateFunctions)
      * @return: dateColumn with format updated to newPattern
      */
 
-    public static Column changeDateFormatUDF(Column dateColumn, String oldPattern, String newPattern) {
+    public static Column changeDateFormatUDF(Column dateColumn, String oldPattern, String newPattern, boolean nativeDateFunctions) {
+
+        if (useNativeDateFunctions(nativeDateFunctions, oldPattern) && NativeDateFunctions.isSupportedOutputPattern(newPattern)) {
+
+            return NativeDateFunctions.changeDateFormat(dateColumn, newPattern);
+        }
 
         return functions.callUDF(UDFName.CHANGE_DATE_FORMAT.getName(),
                 dateColumn,
@@ -64,8 +77,7 @@ public class StepUtils {
 
     public static String changeDateFormat(String date, String oldPattern, String newPattern){
 
-        return LocalDate.parse(date, DateTimeFormatter.ofPattern(oldPattern))
-                .format(DateTimeFormatter.ofPattern(newPattern));
+        return DateFunctions.changeDateFormat(date, oldPattern, newPattern);
     }
 
     /***
@@ -73,10 +85,16 @@ public class StepUtils {
      * @param dateCol1: first date (Column)
      * @param dateCol2: second date (Column)
      * @param commonPattern: first and second date pattern
+     * @param nativeDateFunctions: whether native date functions are used (see AbstractStep.nativeDateFunctions)
      * @return: Integer column
      */
 
-    public static Column daysBetweenUDF(Column dateCol1, Column dateCol2, String commonPattern){
+    public static Column daysBetweenUDF(Column dateCol1, Column dateCol2, String commonPattern, boolean nativeDateFunctions){
+
+        if (useNativeDateFunctions(nativeDateFunctions, commonPattern)) {
+
+            return NativeDateFunctions.daysBetween(dateCol1, dateCol2);
+        }
 
         return functions.callUDF(UDFName.DAYS_BETWEEN.getName(),
                 dateCol1,
@@ -89,10 +107,16 @@ public class StepUtils {
      * @param dateColumn1: first date (String Column)
      * @param dateColumn2: second date (String Column)
      * @param commonDateFormat: common date format
+     * @param nativeDateFunctions: whether native date functions are used (see AbstractStep.nativeDateFunctions)
      * @return: String Column
      */
 
-    public static Column leastDateUDF(Column dateColumn1, Column dateColumn2, String commonDateFormat){
+    public static Column leastDateUDF(Column dateColumn1, Column dateColumn2, String commonDateFormat, boolean nativeDateFunctions){
+
+        if (useNativeDateFunctions(nativeDateFunctions, commonDateFormat)) {
+
+            return NativeDateFunctions.leastDate(dateColumn1, dateColumn2);
+        }
 
         return functions.callUDF(UDFName.LEAST_DATE.getName(),
                 dateColumn1,
@@ -102,7 +126,19 @@ public class StepUtils {
 
     public static LocalDate parseStringToLocalDate(String stringDate, String pattern){
 
-        return LocalDate.parse(stringDate, DateTimeFormatter.ofPattern(pattern));
+        return DateFunctions.parse(stringDate, pattern);
+    }
+
+    /***
+     * Date literal, to be compared with DateType columns
+     * @param stringDate: date (String)
+     * @param pattern: date format
+     * @return: DateType literal Column
+     */
+
+    public static Column toDateLit(String stringDate, String pattern) {
+
+        return functions.lit(Date.valueOf(parseStringToLocalDate(stringDate, pattern)));
     }
 
     public static Column substringAndToInt(Column column, int startIndex, int length){
@@ -115,10 +151,16 @@ public class StepUtils {
      * @param dateCol: date (String Column)
      * @param dateColFormat: date format
      * @param numberOfMonths: number of months to subtract
+     * @param nativeDateFunctions: whether native date functions are used (see AbstractStep.nativeDateFunctions)
      * @return: String Column
      */
 
-    public static Column subtractDurationUDF(Column dateCol, String dateColFormat, int numberOfMonths) {
+    public static Column subtractDurationUDF(Column dateCol, String dateColFormat, int numberOfMonths, boolean nativeDateFunctions) {
+
+        if (useNativeDateFunctions(nativeDateFunctions, dateColFormat)) {
+
+            return NativeDateFunctions.addMonths(dateCol, -numberOfMonths);
+        }
 
         return functions.callUDF(UDFName.SUBTRACT_DURATION.getName(),
                 dateCol,
@@ -126,6 +168,12 @@ public class StepUtils {
                 functions.lit(numberOfMonths));
     }
 
+    // WHEN NATIVE DATE FUNCTIONS ARE USED, DATE FUNCTIONS ON SUPPORTED PATTERNS ARE BUILT FROM CATALYST EXPRESSIONS INSTEAD OF UDFs
+    private static boolean useNativeDateFunctions(boolean nativeDateFunctions, String pattern) {
+
+        return nativeDateFunctions && NativeDateFunctions.isSupported(pattern);
+    }
+
     public static <T> Seq<T> toScalaSeq(List<T> javaList) {
 
         return JavaConversions.asScalaBuffer(javaList).toSeq();